@@ -0,0 +1,133 @@
+package Non.blocking.server.messages;
+
+import Non.blocking.server.ServerException;
+import Non.blocking.server.Socket;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Crypto of a TEXT message with both frame modes: AES/ECB and HmacSHA256 (SECRET) against AES/GCM (SECRET_GCM).
+ * serverToClient: the frame is sealed by {@code FrameEncoder}.
+ * clientToServer: the frame is sealed as a client does, and then decrypted and checked as {@code MessageReader} does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CipherModeBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int bodyLength;
+
+    private Socket ecbHmacSocket;
+
+    /**The client of ecbHmacSocket. ECB frames don't have direction, so it seals as the server.*/
+    private Socket ecbHmacClient;
+
+    private Socket gcmSocket;
+
+    /**Client's GCM cipher*/
+    private Cipher gcmClient;
+
+    private SecretKeySpec gcmKey;
+
+    private Message message;
+
+    /**Plaintext fields of message, for the client's GCM cipher*/
+    private byte[] fields;
+
+    /**The client's frame*/
+    private ByteBuffer clientBundle;
+
+    private long sequence = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyGenerator kg = KeyGenerator.getInstance("AES");
+        kg.init(256, new SecureRandom());
+        byte[] ecbKey = kg.generateKey().getEncoded();
+        byte[] macKey = {1, 2, 3};
+
+        ecbHmacSocket = new Socket(null);
+        ecbHmacSocket.setSecretKeyCiphers(ecbKey);
+        ecbHmacSocket.setMacGenerator(macKey);
+        ecbHmacClient = new Socket(null);
+        ecbHmacClient.setSecretKeyCiphers(ecbKey);
+        ecbHmacClient.setMacGenerator(macKey);
+
+        byte[] gcmKeyInBytes = kg.generateKey().getEncoded();
+        gcmSocket = new Socket(null);
+        gcmSocket.setSecretKeyCiphers(gcmKeyInBytes, true);
+        gcmKey = new SecretKeySpec(gcmKeyInBytes, MessageUtilities.DEFAULT_SECRET_KEY_ALGORITHM);
+        gcmClient = Cipher.getInstance(MessageUtilities.AEAD_ALGORITHM);
+
+        message = new Message(MessageType.TEXT, "User1", "User2", 0, new byte[bodyLength]);
+        ByteBuffer bb = ByteBuffer.allocate(8 + 4 + 5 + 4 + 5 + 4 + bodyLength);
+        bb.putLong(0).putInt(5).put("User1".getBytes()).putInt(5).put("User2".getBytes()).putInt(bodyLength).put(new byte[bodyLength]);
+        fields = bb.array();
+        clientBundle = ByteBuffer.allocate(fields.length + 1024);
+    }
+
+    @Benchmark
+    public ByteBuffer ecbHmacServerToClient() throws ServerException {
+        ByteBuffer frame = message.getMessageInByteBuffer(ecbHmacSocket);
+        ecbHmacSocket.getFrameBufferPool().release(frame);
+        return frame;
+    }
+
+    @Benchmark
+    public ByteBuffer gcmServerToClient() throws ServerException {
+        ByteBuffer frame = message.getMessageInByteBuffer(gcmSocket);
+        gcmSocket.getFrameBufferPool().release(frame);
+        return frame;
+    }
+
+    @Benchmark
+    public Message ecbHmacClientToServer() throws ServerException {
+        ByteBuffer frame = message.getMessageInByteBuffer(ecbHmacClient);
+        frame.flip().position(MessageReader.HEADER_LENGTH);
+
+        BufferPool bufferPool = ecbHmacSocket.getFrameBufferPool();
+        ByteBuffer decryptedBundle = bufferPool.lease(frame.remaining());
+        try {
+            ecbHmacSocket.decryptWithSecretKey(frame, decryptedBundle);
+            decryptedBundle.flip();
+            return Message.rebuildAndCheckMessage(MessageType.TEXT, decryptedBundle, ecbHmacSocket);
+        } finally {
+            bufferPool.release(decryptedBundle);
+            ecbHmacClient.getFrameBufferPool().release(frame);
+        }
+    }
+
+    @Benchmark
+    public Message gcmClientToServer() throws Exception {
+        long id = ++sequence;
+        ByteBuffer.wrap(fields).putLong(0, id);
+        clientBundle.clear();
+        clientBundle.putLong(id);
+        gcmClient.init(Cipher.ENCRYPT_MODE, gcmKey, new GCMParameterSpec(MessageUtilities.AEAD_TAG_LENGTH * 8,
+                ByteBuffer.allocate(MessageUtilities.AEAD_NONCE_LENGTH).putInt(MessageUtilities.AEAD_CLIENT_TO_SERVER).putLong(id).array()));
+        gcmClient.updateAAD(new byte[]{MessageType.TEXT.byteValue});
+        int written = gcmClient.doFinal(fields, 0, fields.length, clientBundle.array(), clientBundle.position());
+        clientBundle.position(clientBundle.position() + written).flip();
+
+        BufferPool bufferPool = gcmSocket.getFrameBufferPool();
+        ByteBuffer decryptedBundle = bufferPool.lease(clientBundle.remaining());
+        try {
+            gcmSocket.decryptAead(MessageType.TEXT, clientBundle, decryptedBundle);
+            decryptedBundle.flip();
+            return Message.rebuildMessage(MessageType.TEXT, decryptedBundle);
+        } finally {
+            bufferPool.release(decryptedBundle);
+        }
+    }
+}
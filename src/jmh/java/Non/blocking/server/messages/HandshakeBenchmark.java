@@ -0,0 +1,81 @@
+package Non.blocking.server.messages;
+
+import Non.blocking.server.ServerException;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import java.nio.ByteBuffer;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side handshakes per second of one thread (one core of the {@code HandshakeExecutor}): a SECRET message
+ * (RSA decryption, see {@code Handshake.prepare}), a KEY_SHARE message (X25519 and HKDF) and a RESUME message with
+ * a session ticket (see {@code Handshake.resume}). A ticket can be redeemed once, so resume issues the ticket too,
+ * as the previous connection would have done. The client's crypto isn't measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HandshakeBenchmark {
+
+    private static final long SOCKET_ID = 7;
+
+    private static final byte[] SERVER_RANDOM = new byte[MessageUtilities.SERVER_RANDOM_LENGTH];
+
+    private byte[] encryptedSecret;
+
+    private byte[] secretKey;
+
+    /**Plaintext bundle of a KEY_SHARE, with the public key of a client*/
+    private byte[] keyShareBundle;
+
+    private SessionTickets sessionTickets;
+
+    @Setup
+    public void setUp() throws Exception {
+        MessageUtilities.initKeyPair();
+        KeyGenerator kg = KeyGenerator.getInstance("AES");
+        kg.init(256, new SecureRandom());
+        secretKey = kg.generateKey().getEncoded();
+
+        byte[] body = ByteBuffer.allocate(4 + secretKey.length).putInt(1).put(secretKey).array();
+        ByteBuffer bundle = ByteBuffer.allocate(8 + 4 + 6 + 4 + 6 + 4 + body.length);
+        bundle.putLong(0).putInt(6).put("client".getBytes()).putInt(6).put("server".getBytes()).putInt(body.length).put(body);
+        Cipher rsa = Cipher.getInstance(MessageUtilities.DEFAULT_PAIR_KEY_ALGORITHM);
+        rsa.init(Cipher.ENCRYPT_MODE, MessageUtilities.getPublicKey());
+        encryptedSecret = rsa.doFinal(bundle.array());
+
+        MessageUtilities.initKeyAgreementKeyPair();
+        byte[] clientPublicKey = KeyPairGenerator.getInstance(MessageUtilities.KEY_AGREEMENT_ALGORITHM).generateKeyPair().getPublic().getEncoded();
+        byte[] keyShareBody = ByteBuffer.allocate(1 + clientPublicKey.length).put(Handshake.KEY_SHARE_MODE_SECRET_GCM).put(clientPublicKey).array();
+        ByteBuffer keyShare = ByteBuffer.allocate(8 + 4 + 6 + 4 + 6 + 4 + keyShareBody.length);
+        keyShare.putLong(0).putInt(6).put("client".getBytes()).putInt(6).put("server".getBytes()).putInt(keyShareBody.length).put(keyShareBody);
+        keyShareBundle = keyShare.array();
+
+        sessionTickets = new SessionTickets(60 * 60 * 1000, 1024);
+    }
+
+    @Benchmark
+    public Handshake secret() throws ServerException {
+        return Handshake.prepare(MessageType.SECRET, encryptedSecret, SOCKET_ID, SERVER_RANDOM);
+    }
+
+    @Benchmark
+    public Handshake keyShare() throws ServerException {
+        return Handshake.prepare(MessageType.KEY_SHARE, keyShareBundle, SOCKET_ID, SERVER_RANDOM);
+    }
+
+    @Benchmark
+    public Handshake resume() throws ServerException {
+        byte[] ticket = sessionTickets.issue(secretKey, true);
+        Message resume = new Message(MessageType.RESUME, "client", MessageUtilities.SERVER_NAME, 0,
+                ByteBuffer.allocate(4 + ticket.length).putInt(1).put(ticket).array());
+        return Handshake.resume(resume, SOCKET_ID, sessionTickets);
+    }
+}
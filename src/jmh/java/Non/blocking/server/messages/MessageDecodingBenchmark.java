@@ -0,0 +1,90 @@
+package Non.blocking.server.messages;
+
+import Non.blocking.server.ServerException;
+import Non.blocking.server.Socket;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.KeyGenerator;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of an inbound TEXT message and its encoding for the destination (forwarding): the {@code Message} view
+ * against the previous decoder, which copied the bundle and each field into new arrays and built both strings.
+ * Run with the gc profiler (see build.gradle) to compare gc.alloc.rate.norm (bytes allocated by message).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageDecodingBenchmark {
+
+    @Param({"64", "1024"})
+    public int bodyLength;
+
+    private Socket socket;
+
+    /**The encrypted bundle, without type and length*/
+    private ByteBuffer bundle;
+
+    @Setup
+    public void setUp() throws Exception {
+        socket = new Socket(null);
+        KeyGenerator kg = KeyGenerator.getInstance("AES");
+        kg.init(256, new SecureRandom());
+        socket.setSecretKeyCiphers(kg.generateKey().getEncoded());
+        socket.setMacGenerator(new byte[] {1, 2, 3});
+
+        byte[] frame = new Message(MessageType.TEXT, "User1", "User2", 3433, new byte[bodyLength]).getMessageInBytes(socket);
+        bundle = ByteBuffer.wrap(Arrays.copyOfRange(frame, MessageReader.HEADER_LENGTH, frame.length));
+    }
+
+    @Benchmark
+    public ByteBuffer viewDecoder() throws ServerException {
+        BufferPool bufferPool = socket.getFrameBufferPool();
+        ByteBuffer decryptedBundle = bufferPool.lease(bundle.remaining());
+        try {
+            socket.decryptWithSecretKey(bundle.duplicate(), decryptedBundle);
+            decryptedBundle.flip();
+            Message message = Message.rebuildAndCheckMessage(MessageType.TEXT, decryptedBundle, socket);
+
+            ByteBuffer frame = message.getMessageInByteBuffer(socket);
+            bufferPool.release(frame);
+            return frame;
+        } finally {
+            bufferPool.release(decryptedBundle);
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer copyingDecoder() throws ServerException {
+        byte[] encrypted = new byte[bundle.remaining()];
+        bundle.duplicate().get(encrypted);
+        ByteBuffer bb = ByteBuffer.wrap(socket.decryptWithSecretKey(encrypted));
+
+        long messageId = bb.getLong();
+        byte[] originInBytes = new byte[bb.getInt()];
+        bb.get(originInBytes);
+        byte[] destinationInBytes = new byte[bb.getInt()];
+        bb.get(destinationInBytes);
+        byte[] body = new byte[bb.getInt()];
+        bb.get(body);
+        byte[] srcMac = new byte[bb.getInt()];
+        bb.get(srcMac);
+
+        byte[] calculatedMac = socket.generateMac(new byte[][]{new byte[]{MessageType.TEXT.byteValue}, originInBytes, destinationInBytes, body});
+        if (Arrays.compare(srcMac, calculatedMac) != 0) throw new ServerException(ServerException.Type.MAC_NOT_EQUAL);
+
+        Message message = new Message(MessageType.TEXT, new String(originInBytes, StandardCharsets.UTF_8),
+                new String(destinationInBytes, StandardCharsets.UTF_8), messageId, body);
+
+        ByteBuffer frame = message.getMessageInByteBuffer(socket);
+        socket.getFrameBufferPool().release(frame);
+        return frame;
+    }
+}
@@ -0,0 +1,81 @@
+package Non.blocking.server;
+
+import Non.blocking.server.messages.MessageProcessor;
+
+/**
+ * Verifies the passwords of LOG_IN and hashes the ones of NEW_USER (see {@code Database}) with a few worker threads,
+ * out of the processor threads: the password hash is slow on purpose, and it would stop every socket of the processor.
+ * The result is applied by the socket's processor thread (see {@code MessageProcessor.completeLogIn}).
+ * At most maxInFlight of them are given to the workers at once (see {@code BoundedWorkerPool}).
+ * Shared by all the {@code SocketProcessor}'s of the server.
+ * @author xsala
+ *
+ */
+public class AuthExecutor {
+
+	private final BoundedWorkerPool workers;
+
+	/**
+	 * Constructor.
+	 * @param threads Number of worker threads. At least 1.
+	 * @param maxInFlight Maximum number of verifications given to the workers at once. At least 1.
+	 */
+	public AuthExecutor(int threads, int maxInFlight) {
+		this.workers = new BoundedWorkerPool("auth-worker", threads, maxInFlight, null);
+	}
+
+	/**
+	 * Logs in a user (or creates it, and logs it in) with a worker. The result, or the error, is given to
+	 * {@code MessageProcessor.completeLogIn} at the socket's processor thread.
+	 * The socket shouldn't read until then (see {@code Socket.pauseReading(int)}).
+	 * @param socket
+	 * @param userName
+	 * @param password A copy, it can't be a buffer of the processor.
+	 * @param messageId Of the LOG_IN (or NEW_USER) message.
+	 * @param newUser true for NEW_USER.
+	 */
+	public void submit(Socket socket, String userName, byte[] password, long messageId, boolean newUser) {
+		SocketProcessor socketProcessor = socket.socketProcessor;
+
+		workers.submit(() -> {
+			ServerException error = null;
+			try {
+				if (newUser) {
+					Database.newUser(userName, password);
+				} else if (!Database.canILogIn(userName, password)) {
+					error = new ServerException(ServerException.Type.LOG_IN_PROBLEM, messageId);
+				}
+			} catch (ServerException e) {
+				e.messageId = messageId;
+				error = e;
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				error = new ServerException(ServerException.Type.LOG_IN_PROBLEM, messageId);
+			}
+
+			ServerException resultError = error;
+			socketProcessor.execute(() -> MessageProcessor.completeLogIn(socket, userName, messageId, resultError));
+		});
+	}
+
+	/**
+	 * @return Verifications given to the workers and not finished.
+	 */
+	public int getInFlight() {
+		return workers.getInFlight();
+	}
+
+	/**
+	 * @return Verifications waiting for a worker.
+	 */
+	public int getWaiting() {
+		return workers.getWaiting();
+	}
+
+	/**
+	 * Stops the workers. Waiting verifications aren't done.
+	 */
+	public void shutdown() {
+		workers.shutdown();
+	}
+}
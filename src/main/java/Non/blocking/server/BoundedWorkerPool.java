@@ -0,0 +1,117 @@
+package Non.blocking.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A few worker threads for the slow jobs that can't be done by the processor threads (see {@code HandshakeExecutor}
+ * and {@code AuthExecutor}).
+ * At most maxInFlight jobs are given to the workers at once. The rest wait in a queue, so a wave of jobs doesn't fill
+ * the queue of the executor: the sockets waiting for their jobs don't read meanwhile, and the clients are slowed
+ * down by TCP.
+ * @author xsala
+ *
+ */
+public class BoundedWorkerPool {
+
+	private final ExecutorService workers;
+
+	/**Maximum number of jobs given to the workers at once*/
+	private final int maxInFlight;
+
+	/**Jobs given to the workers and not finished*/
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**Jobs waiting for a worker*/
+	private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Constructor.
+	 * @param name Prefix of the names of the worker threads.
+	 * @param threads Number of worker threads. At least 1.
+	 * @param maxInFlight Maximum number of jobs given to the workers at once. At least 1.
+	 * @param workerInit Run by each worker when it starts, before its first job. null for nothing.
+	 */
+	public BoundedWorkerPool(String name, int threads, int maxInFlight, Runnable workerInit) {
+		this.maxInFlight = Math.max(1, maxInFlight);
+		AtomicInteger threadNumber = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (workerInit != null) {
+			//Each of the first tasks starts a new worker, so every worker is ready before the first job.
+			for (int i = 0; i < Math.max(1, threads); i++) {
+				workers.execute(workerInit);
+			}
+		}
+	}
+
+	/**
+	 * Runs a job with a worker, when there are less than maxInFlight.
+	 * @param job
+	 */
+	public void submit(Runnable job) {
+		waiting.add(job);
+		dispatch();
+	}
+
+	/**
+	 * Gives waiting jobs to the workers while there are less than maxInFlight.
+	 * Called when a job is submitted and when a worker finishes one.
+	 */
+	private void dispatch() {
+		while (!waiting.isEmpty()) {
+			int current = inFlight.get();
+			if (current >= maxInFlight) return; //the worker finishing a job will call dispatch().
+			if (!inFlight.compareAndSet(current, current + 1)) continue;
+
+			Runnable job = waiting.poll();
+			if (job == null) { //taken by another thread.
+				inFlight.decrementAndGet();
+				continue;
+			}
+
+			try {
+				workers.execute(() -> {
+					try {
+						job.run();
+					} finally {
+						inFlight.decrementAndGet();
+						dispatch();
+					}
+				});
+			} catch (RejectedExecutionException e) { //shut down.
+				inFlight.decrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return Jobs given to the workers and not finished.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return Jobs waiting for a worker.
+	 */
+	public int getWaiting() {
+		return waiting.size();
+	}
+
+	/**
+	 * Stops the workers. Waiting jobs aren't done.
+	 */
+	public void shutdown() {
+		waiting.clear();
+		workers.shutdown();
+	}
+}
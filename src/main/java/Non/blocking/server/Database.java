@@ -1,51 +1,304 @@
 package Non.blocking.server;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * The users of the server, kept at a {@code UserStore}. {@code Server.start()} sets the one of {@code Server.setUserStore},
+ * or a {@code MemoryUserStore} with three test users (see {@code createDefaultStore}).
+ * The passwords aren't kept: the credential of a user is a PBKDF2 hash of its password bytes with a random salt (see
+ * {@code createCredential}), slow on purpose. So {@code canILogIn} and {@code newUser} are slow too, they are called by
+ * the {@code AuthExecutor} workers, not by the processor threads. The users verified lately are remembered, so a
+ * client logging in again (a wave of reconnections) doesn't pay the hash again; a wrong password always pays it.
+ * A credential kept as plain password (by an old server) is still accepted, and replaced by a hash at the first log in.
+ */
 public abstract class Database {
-    private static HashMap<String, byte[]> usersAndPasswords = null;
+    /**Empty until {@code Server.start()} sets one*/
+    private static volatile UserStore userStore = new MemoryUserStore();
+
+    /**PRF of PBKDF2. The hash is PBKDF2WithHmacSHA256, but over the password bytes as they are received.*/
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /**PBKDF2 iterations of the new credentials. The ones of each credential are kept with it.*/
+    public static final int DEFAULT_HASH_ITERATIONS = 210000;
+    private static volatile int hashIterations = DEFAULT_HASH_ITERATIONS;
+
+    /**First byte of a hashed credential (a plain password doesn't start with 0), and its version*/
+    private static final byte CREDENTIAL_MARK = 0;
+    private static final byte CREDENTIAL_VERSION = 1;
+
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+
+    /**Mark, version, iterations (4 bytes), salt and hash*/
+    private static final int CREDENTIAL_LENGTH = 1 + 1 + 4 + SALT_LENGTH + HASH_LENGTH;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**Number of password hashes calculated. See {@code getHashCount()}*/
+    private static final AtomicLong hashCount = new AtomicLong();
+
+    /**Maximum number of users remembered as verified*/
+    private static final int VERIFIED_CACHE_SIZE = 4096;
+
+    /**Random prefix of the digests of the verified passwords, so they only mean something to this process*/
+    private static final byte[] verifiedPepper = new byte[32];
+
+    /**Users verified lately (the least recently used one is forgotten), by name. Guarded by itself.*/
+    private static final LinkedHashMap<String, Verified> verified = new LinkedHashMap<String, Verified>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+            return size() > VERIFIED_CACHE_SIZE;
+        }
+    };
+
+    /**A verified user: the credential it was verified with, and a fast digest of the password.*/
+    private static class Verified {
+        final byte[] credential;
+        final byte[] passwordDigest;
+
+        Verified(byte[] credential, byte[] passwordDigest) {
+            this.credential = credential;
+            this.passwordDigest = passwordDigest;
+        }
+    }
+
+    static {
+        random.nextBytes(verifiedPepper);
+    }
 
     /**
-     * Returns true if user exist and password matches.
+     * Creates the default store: in memory, with the test users. Their passwords are hashed, so it's slow, it's called
+     * by {@code Server.start()}.
+     * @return
+     */
+    public static UserStore createDefaultStore() {
+        MemoryUserStore store = new MemoryUserStore();
+        addTestUsers(store);
+        return store;
+    }
+
+    /**
+     * Adds User1, User2 and User3 (passwords User1p, User2p and User3p) to a store, the ones that don't exist.
+     * @param store
+     */
+    public static void addTestUsers(UserStore store) {
+        try {
+            store.addUser("User1", createCredential("User1p".getBytes(StandardCharsets.UTF_8)));
+            store.addUser("User2", createCredential("User2p".getBytes(StandardCharsets.UTF_8)));
+            store.addUser("User3", createCredential("User3p".getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sets where the users are kept.
+     * @param store
+     */
+    public static void setUserStore(UserStore store) {
+        userStore = store;
+    }
+
+    public static UserStore getUserStore() {
+        return userStore;
+    }
+
+    /**
+     * Sets the PBKDF2 iterations of the new credentials. More is slower for an attacker, and for the server.
+     * @param iterations
+     */
+    public static void setHashIterations(int iterations) {
+        hashIterations = iterations;
+    }
+
+    /**
+     * Creates the credential of a password: a PBKDF2 hash with a random salt.
+     * @param password
+     * @return Mark, version, iterations (4 bytes), salt and hash.
+     */
+    public static byte[] createCredential(byte[] password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        int iterations = hashIterations;
+
+        ByteBuffer credential = ByteBuffer.allocate(CREDENTIAL_LENGTH);
+        credential.put(CREDENTIAL_MARK).put(CREDENTIAL_VERSION).putInt(iterations).put(salt);
+        credential.put(hash(password, salt, iterations));
+        return credential.array();
+    }
+
+    /**
+     * @return A credential with the current iterations and a random salt and hash, no password matches it.
+     */
+    private static byte[] createDummyCredential() {
+        byte[] saltAndHash = new byte[SALT_LENGTH + HASH_LENGTH];
+        random.nextBytes(saltAndHash);
+
+        ByteBuffer credential = ByteBuffer.allocate(CREDENTIAL_LENGTH);
+        credential.put(CREDENTIAL_MARK).put(CREDENTIAL_VERSION).putInt(hashIterations).put(saltAndHash);
+        return credential.array();
+    }
+
+    /**
+     * Returns true if user exist and password matches. The hash is slow, it shouldn't be called by a processor thread.
      * @param userName
      * @param password
      * @return
      */
     public static boolean canILogIn (String userName, byte[] password){
-        if (usersAndPasswords == null){
-            usersAndPasswords = new HashMap<String, byte[]>();
-            usersAndPasswords.put("User1","User1p".getBytes(StandardCharsets.UTF_8) );
-            usersAndPasswords.put("User2","User2p".getBytes(StandardCharsets.UTF_8) );
-            usersAndPasswords.put("User3","User3p".getBytes(StandardCharsets.UTF_8) );
+        UserStore store = userStore;
+        byte[] credential = store.getCredential(userName);
+        if (credential == null) {
+            matches(createDummyCredential(), password); //as slow as a wrong password, the time doesn't tell if the user exists.
+            return false;
         }
 
-        byte[] passwordDB = usersAndPasswords.get(userName);
+        byte[] passwordDigest = digest(password);
+        synchronized (verified) {
+            Verified user = verified.get(userName);
+            //a changed credential (a new password) isn't the remembered one. A wrong password is checked with the
+            //credential, so it's as slow as for any user: the time doesn't tell who logged in lately.
+            if (user != null && user.credential == credential && MessageDigest.isEqual(user.passwordDigest, passwordDigest)) return true;
+        }
+
+        if (!matches(credential, password)) return false;
 
-        return (passwordDB != null) && (Arrays.compare(passwordDB, password) == 0);
+        if (!isHashed(credential)) {
+            try {
+                store.setCredential(userName, createCredential(password));
+            } catch (IOException e) {
+                e.printStackTrace(); //the plain password is kept, it will be replaced at the next log in.
+            }
+            credential = store.getCredential(userName);
+        }
+
+        synchronized (verified) {
+            verified.put(userName, new Verified(credential, passwordDigest));
+        }
+        return true;
     }
 
+    /**
+     * Adds a user, with the credential of the password. When it returns, the user is kept by the store (with a
+     * {@code FileUserStore}, at disk). The hash is slow, it shouldn't be called by a processor thread.
+     * @param userName
+     * @param password
+     * @throws ServerException NEW_USER_PROBLEM if the user already exists, USER_STORE_PROBLEM if it can't be kept.
+     */
     public static void newUser (String userName, byte[] password) throws ServerException{
-        if (usersAndPasswords == null){
-            usersAndPasswords = new HashMap<String, byte[]>();
-            usersAndPasswords.put("User1","User1p".getBytes(StandardCharsets.UTF_8) );
-            usersAndPasswords.put("User2","User2p".getBytes(StandardCharsets.UTF_8) );
-            usersAndPasswords.put("User3","User3p".getBytes(StandardCharsets.UTF_8) );
+        UserStore store = userStore;
+        if (store.getCredential(userName) != null) throw new ServerException(ServerException.Type.NEW_USER_PROBLEM);
+
+        boolean added;
+        try {
+            added = store.addUser(userName, createCredential(password));
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new ServerException(ServerException.Type.USER_STORE_PROBLEM);
         }
 
-        if (usersAndPasswords.get(userName) == null) {
-            usersAndPasswords.put(userName, password);
-        } else {
-            throw new ServerException(ServerException.Type.NEW_USER_PROBLEM);
+        if (!added) throw new ServerException(ServerException.Type.NEW_USER_PROBLEM);
+    }
+
+    public static Set<String> getAllUsers(){
+        return userStore.getUserNames();
+    }
+
+    /**
+     * @return Number of password hashes calculated since the start, by log ins and new users. Each one is slow.
+     */
+    public static long getHashCount() {
+        return hashCount.get();
+    }
+
+    /**
+     * Forgets the users verified lately, so the next log in of each one is verified with its credential.
+     */
+    public static void forgetVerified() {
+        synchronized (verified) {
+            verified.clear();
         }
+    }
 
+    /**
+     * Checks a password with a credential, in constant time (the time doesn't tell how much of it matches).
+     * @param credential
+     * @param password
+     * @return
+     */
+    private static boolean matches(byte[] credential, byte[] password) {
+        if (!isHashed(credential)) return MessageDigest.isEqual(credential, password); //a plain password.
+
+        ByteBuffer buffer = ByteBuffer.wrap(credential, 2, CREDENTIAL_LENGTH - 2);
+        int iterations = buffer.getInt();
+        byte[] salt = new byte[SALT_LENGTH];
+        buffer.get(salt);
+        byte[] expectedHash = new byte[HASH_LENGTH];
+        buffer.get(expectedHash);
 
+        return MessageDigest.isEqual(expectedHash, hash(password, salt, iterations));
     }
 
-    public static Set<String> getAllUsers(){
-        return usersAndPasswords.keySet();
+    private static boolean isHashed(byte[] credential) {
+        return credential.length == CREDENTIAL_LENGTH && credential[0] == CREDENTIAL_MARK && credential[1] == CREDENTIAL_VERSION;
+    }
+
+    /**
+     * PBKDF2 with HMAC-SHA256 (RFC 8018) of the password bytes, so two different passwords never have the same input,
+     * even if they aren't valid UTF-8. For a UTF-8 password it's the same as PBKDF2WithHmacSHA256 of its characters.
+     * @param password
+     * @param salt
+     * @param iterations
+     * @return HASH_LENGTH bytes, one block of PBKDF2.
+     */
+    static byte[] hash(byte[] password, byte[] salt, int iterations) {
+        hashCount.incrementAndGet();
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            //HMAC pads the key with zeros, an empty password is the same as one zero (SecretKeySpec rejects empty keys).
+            mac.init(new SecretKeySpec(password.length == 0 ? new byte[1] : password, HMAC_ALGORITHM));
+
+            mac.update(salt);
+            mac.update(new byte[] {0, 0, 0, 1}); //block index.
+            byte[] u = mac.doFinal();
+            byte[] result = u.clone();
+            for (int i = 1; i < iterations; i++) {
+                mac.update(u);
+                mac.doFinal(u, 0);
+                for (int j = 0; j < result.length; j++) {
+                    result[j] ^= u[j];
+                }
+            }
+            return result;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e); //HmacSHA256 is in every Java platform.
+        }
+    }
+
+    /**
+     * @param password
+     * @return A fast digest of the password, for remembering it as verified.
+     */
+    private static byte[] digest(byte[] password) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(verifiedPepper);
+            return sha256.digest(password);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
 
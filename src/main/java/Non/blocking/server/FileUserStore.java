@@ -0,0 +1,510 @@
+package Non.blocking.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A {@code UserStore} kept at a file, so the users survive a restart.
+ * The file is a log: each change (a user added, its credential changed or the user removed) is appended as a record,
+ * and the users are kept in memory in a hash map (the index), so the lookups don't read the file nor wait for the
+ * writes. At start, the file is read once from the beginning to build the index.
+ * A record is: payload length (4 bytes), CRC32 of the payload (4 bytes) and the payload: operation (1 byte), name
+ * length (2 bytes), UTF-8 name, credential length (2 bytes) and credential. A record cut by a crash, or corrupted,
+ * is the end of the log: the store doesn't start with it, unless the repair is allowed, then it's removed with the
+ * rest of the file (see {@code getTruncatedBytes()}).
+ * The writes are made durable by a flusher thread, with one fsync for all the records appended meanwhile (group
+ * commit), so concurrent registrations share the fsync. A change returns when its record is durable, so it can't be
+ * made by a processor thread: {@code Server.start()} requires auth threads with this store (see {@code AuthExecutor}).
+ * The flusher also compacts the log periodically, when most of it is old records: the current users are written to
+ * a new file, which replaces the log atomically.
+ * @author xsala
+ *
+ */
+public class FileUserStore implements UserStore {
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	/**Payload length and CRC32*/
+	private static final int RECORD_HEADER_LENGTH = 4 + 4;
+
+	/**Longest payload: operation, and name and credential of the longest length*/
+	private static final int MAX_PAYLOAD_LENGTH = 1 + 2 + 0xFFFF + 2 + 0xFFFF;
+
+	/**How often the flusher checks if the log has to be compacted, in milliseconds*/
+	private static final long COMPACTION_CHECK_MILLIS = 60 * 1000;
+
+	/**The log isn't compacted under these bytes*/
+	private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+	private final Path path;
+
+	/**The current users, by name*/
+	private final ConcurrentHashMap<String, byte[]> index = new ConcurrentHashMap<String, byte[]>();
+
+	/**Only replaced by compact(), holding forceLock and this*/
+	private FileChannel channel;
+
+	/**Held while the channel is forced, so compact() doesn't close it meanwhile*/
+	private final Object forceLock = new Object();
+
+	/**Bytes of the log, and bytes of the records of the current users (the rest are old records)*/
+	private long logBytes = 0;
+	private long liveBytes = 0;
+
+	/**Bytes removed from the end of the file at start, a record cut by a crash or corrupted. See {@code getTruncatedBytes()}*/
+	private long truncatedBytes = 0;
+
+	/**Number of records appended, and number of them that are durable (the file has been forced after them)*/
+	private long appended = 0;
+	private long durable = 0;
+
+	/**Error forcing the file. After it, nothing can be written.*/
+	private IOException failure = null;
+
+	private boolean closed = false;
+
+	private long nextCompactionCheck;
+
+	private final Thread flusher;
+
+	/**
+	 * Constructor. Reads the file, or creates it if it doesn't exist, and starts the flusher thread.
+	 * The file isn't repaired, see {@code FileUserStore(Path, boolean)}.
+	 * @param path
+	 * @throws IOException if the file can't be read or created, or if its end isn't a valid record.
+	 */
+	public FileUserStore(Path path) throws IOException {
+		this(path, false);
+	}
+
+	/**
+	 * Constructor. Reads the file, or creates it if it doesn't exist, and starts the flusher thread.
+	 * @param path
+	 * @param repair If the end of the file isn't a valid record (cut by a crash, or corrupted), true to remove it with
+	 * the rest of the file (the users of the next records are lost, see {@code getTruncatedBytes()}), false to fail.
+	 * @throws IOException if the file can't be read or created, or if its end isn't a valid record and repair is false.
+	 */
+	public FileUserStore(Path path, boolean repair) throws IOException {
+		this.path = path;
+		long validLength = load();
+
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (channel.size() > validLength) {
+			//the end of the log was cut by a crash, or it's corrupted.
+			long fileLength = channel.size();
+			if (!repair) {
+				channel.close();
+				throw new IOException("Users file " + path + " isn't valid after byte " + validLength + " of " + fileLength + ".");
+			}
+			truncatedBytes = fileLength - validLength;
+			channel.truncate(validLength);
+			channel.force(false);
+		}
+		channel.position(validLength);
+		logBytes = validLength;
+
+		nextCompactionCheck = System.currentTimeMillis() + COMPACTION_CHECK_MILLIS;
+		flusher = new Thread(this::flush, "user-store-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Builds the index from the file.
+	 * @return Length of the valid records, from the beginning of the file.
+	 * @throws IOException
+	 */
+	private long load() throws IOException {
+		long validLength = 0;
+		CRC32 crc = new CRC32();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+			while (true) {
+				int payloadLength;
+				try {
+					payloadLength = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (payloadLength < 1 + 2 + 2 || payloadLength > MAX_PAYLOAD_LENGTH) break;
+
+				byte[] payload = new byte[payloadLength];
+				int expectedCrc;
+				try {
+					expectedCrc = in.readInt();
+					in.readFully(payload);
+				} catch (EOFException e) {
+					break;
+				}
+				crc.reset();
+				crc.update(payload);
+				if ((int) crc.getValue() != expectedCrc || !apply(ByteBuffer.wrap(payload))) break;
+
+				validLength += RECORD_HEADER_LENGTH + payloadLength;
+			}
+		} catch (NoSuchFileException e) {
+			return 0;
+		}
+		return validLength;
+	}
+
+	/**
+	 * Applies a record of the file to the index.
+	 * @param payload
+	 * @return false if the record is malformed.
+	 */
+	private boolean apply(ByteBuffer payload) {
+		byte operation = payload.get();
+		int nameLength = payload.getShort() & 0xFFFF;
+		if (payload.remaining() < nameLength + 2) return false;
+		byte[] name = new byte[nameLength];
+		payload.get(name);
+		int credentialLength = payload.getShort() & 0xFFFF;
+		if (payload.remaining() != credentialLength) return false;
+		byte[] credential = new byte[credentialLength];
+		payload.get(credential);
+
+		String userName = new String(name, StandardCharsets.UTF_8);
+		if (operation == PUT) {
+			setIndex(userName, credential);
+		} else if (operation == REMOVE) {
+			setIndex(userName, null);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public byte[] getCredential(String userName) {
+		return index.get(userName);
+	}
+
+	@Override
+	public boolean addUser(String userName, byte[] credential) throws IOException {
+		long record;
+		synchronized (this) {
+			if (index.containsKey(userName)) return false;
+			record = append(PUT, userName, credential);
+			setIndex(userName, credential.clone());
+		}
+		awaitDurable(record);
+		return true;
+	}
+
+	@Override
+	public boolean setCredential(String userName, byte[] credential) throws IOException {
+		long record;
+		synchronized (this) {
+			if (!index.containsKey(userName)) return false;
+			record = append(PUT, userName, credential);
+			setIndex(userName, credential.clone());
+		}
+		awaitDurable(record);
+		return true;
+	}
+
+	@Override
+	public boolean removeUser(String userName) throws IOException {
+		long record;
+		synchronized (this) {
+			if (!index.containsKey(userName)) return false;
+			record = append(REMOVE, userName, new byte[0]);
+			setIndex(userName, null);
+		}
+		awaitDurable(record);
+		return true;
+	}
+
+	@Override
+	public Set<String> getUserNames() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return Bytes of the log file.
+	 */
+	public synchronized long getLogBytes() {
+		return logBytes;
+	}
+
+	/**
+	 * @return Bytes removed from the end of the file at start because they weren't a valid record (cut by a crash,
+	 * or corrupted), with the repair allowed. 0 if the file was right.
+	 */
+	public long getTruncatedBytes() {
+		return truncatedBytes;
+	}
+
+	/**
+	 * Changes the index, and the bytes of the records of the current users.
+	 * @param userName
+	 * @param credential null to remove the user.
+	 */
+	private void setIndex(String userName, byte[] credential) {
+		byte[] previous = credential == null ? index.remove(userName) : index.put(userName, credential);
+		if (previous != null) liveBytes -= recordLength(userName, previous);
+		if (credential != null) liveBytes += recordLength(userName, credential);
+	}
+
+	private static int recordLength(String userName, byte[] credential) {
+		return RECORD_HEADER_LENGTH + 1 + 2 + userName.getBytes(StandardCharsets.UTF_8).length + 2 + credential.length;
+	}
+
+	private static ByteBuffer encode(byte operation, String userName, byte[] credential) {
+		byte[] name = userName.getBytes(StandardCharsets.UTF_8);
+		if (name.length > 0xFFFF || credential.length > 0xFFFF) throw new IllegalArgumentException("User name or credential too long.");
+
+		int payloadLength = 1 + 2 + name.length + 2 + credential.length;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + payloadLength);
+		record.putInt(payloadLength);
+		record.putInt(0); //CRC32, below.
+		record.put(operation);
+		record.putShort((short) name.length);
+		record.put(name);
+		record.putShort((short) credential.length);
+		record.put(credential);
+
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER_LENGTH, payloadLength);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Appends a record to the log and wakes up the flusher. Called holding this.
+	 * @return Number of the record, for {@code awaitDurable(long)}.
+	 * @throws IOException if it can't be written. The log is left as it was.
+	 */
+	private long append(byte operation, String userName, byte[] credential) throws IOException {
+		if (closed) throw new IOException("User store closed.");
+		if (failure != null) throw new IOException("User store failed.", failure);
+
+		ByteBuffer record = encode(operation, userName, credential);
+		try {
+			while (record.hasRemaining()) {
+				channel.write(record);
+			}
+		} catch (IOException e) {
+			//a piece of record would be the end of the log, so the next records would be lost at the next start.
+			try {
+				channel.truncate(logBytes);
+				channel.position(logBytes);
+			} catch (IOException truncateException) {
+				failure = truncateException;
+			}
+			throw e;
+		}
+		logBytes += record.limit();
+		appended++;
+		notifyAll();
+		return appended;
+	}
+
+	/**
+	 * Waits until the flusher has forced the file after the record.
+	 * @param record
+	 * @throws IOException if the file can't be forced.
+	 */
+	private synchronized void awaitDurable(long record) throws IOException {
+		while (durable < record) {
+			if (failure != null) throw new IOException("User store failed.", failure);
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the user store.");
+			}
+		}
+	}
+
+	/**
+	 * The flusher thread: forces the file when there are records appended, for all of them at once, and compacts the
+	 * log when it's due. Finishes when the store is closed and everything is durable.
+	 */
+	private void flush() {
+		while (true) {
+			long target;
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				while (durable == appended && !closed && now < nextCompactionCheck) {
+					try {
+						wait(nextCompactionCheck - now);
+					} catch (InterruptedException e) {
+						return;
+					}
+					now = System.currentTimeMillis();
+				}
+				if (closed && durable == appended) return;
+				target = appended;
+			}
+
+			if (target > durable) {
+				try {
+					synchronized (forceLock) {
+						channel.force(false);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					synchronized (this) {
+						failure = e;
+						notifyAll();
+					}
+					return;
+				}
+				synchronized (this) {
+					durable = Math.max(durable, target);
+					notifyAll();
+				}
+			}
+
+			boolean compactionDue;
+			synchronized (this) {
+				compactionDue = System.currentTimeMillis() >= nextCompactionCheck;
+				if (compactionDue) nextCompactionCheck = System.currentTimeMillis() + COMPACTION_CHECK_MILLIS;
+				compactionDue = compactionDue && !closed && logBytes > MIN_COMPACTION_BYTES && logBytes > 2 * liveBytes;
+			}
+			if (compactionDue) {
+				try {
+					compact();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compacts the log: writes the records of the current users to a new file, forces it and replaces the log with
+	 * it. If it fails before replacing the log, the log is left as it was.
+	 * The changes wait meanwhile.
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		synchronized (forceLock) {
+			synchronized (this) {
+				if (closed) throw new IOException("User store closed.");
+				if (failure != null) throw new IOException("User store failed.", failure);
+
+				Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+				long compactedBytes = 0;
+				try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+					for (Map.Entry<String, byte[]> user : index.entrySet()) {
+						ByteBuffer record = encode(PUT, user.getKey(), user.getValue());
+						if (record.remaining() > batch.remaining()) compactedBytes += writeBatch(out, batch);
+						if (record.remaining() > batch.capacity()) {
+							compactedBytes += writeFully(out, record);
+						} else {
+							batch.put(record);
+						}
+					}
+					compactedBytes += writeBatch(out, batch);
+					out.force(false);
+				} catch (IOException e) {
+					Files.deleteIfExists(compacted);
+					throw e;
+				}
+
+				Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				try {
+					forceDirectory();
+					channel.close();
+					channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+					channel.position(compactedBytes);
+				} catch (IOException e) {
+					failure = e;
+					notifyAll();
+					throw e;
+				}
+
+				logBytes = compactedBytes;
+				liveBytes = compactedBytes;
+				//the records appended before are at the new file, already forced.
+				durable = appended;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes the bytes put at a buffer and clears it.
+	 * @return Bytes written.
+	 */
+	private static int writeBatch(FileChannel out, ByteBuffer batch) throws IOException {
+		batch.flip();
+		int length = writeFully(out, batch);
+		batch.clear();
+		return length;
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer.
+	 * @return Bytes written.
+	 */
+	private static int writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		return length;
+	}
+
+	/**
+	 * Forces the directory of the file, so the replacement of the log survives a crash. Not every system allows it.
+	 */
+	private void forceDirectory() {
+		Path directory = path.toAbsolutePath().getParent();
+		if (directory == null) return;
+		try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			directoryChannel.force(true);
+		} catch (IOException e) {
+			//not supported by the system.
+		}
+	}
+
+	/**
+	 * Waits until the records appended are durable, stops the flusher and closes the file.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (forceLock) {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+package Non.blocking.server;
+
+import Non.blocking.server.messages.Handshake;
+import Non.blocking.server.messages.MessageUtilities;
+import Non.blocking.server.messages.MessageType;
+
+/**
+ * Runs the handshake crypto (RSA decryption of SECRET or X25519 of KEY_SHARE, and the CHECK_WELCOME MAC, see {@code Handshake}) with a few
+ * worker threads, out of the processor threads: a wave of new connections doesn't stop the delivery of messages.
+ * The result is applied by the socket's processor thread (see {@code MessageReader.completeHandshake}).
+ * At most maxInFlight handshakes are given to the workers at once (see {@code BoundedWorkerPool}), the sockets of the
+ * rest don't read meanwhile, so the clients are slowed down by TCP.
+ * Shared by all the {@code SocketProcessor}'s of the server.
+ * @author xsala
+ *
+ */
+public class HandshakeExecutor {
+
+	private final BoundedWorkerPool workers;
+
+	/**
+	 * Constructor. Every worker prepares its ciphers before the first handshake.
+	 * @param threads Number of worker threads. At least 1.
+	 * @param maxInFlight Maximum number of handshakes given to the workers at once. At least 1.
+	 */
+	public HandshakeExecutor(int threads, int maxInFlight) {
+		this.workers = new BoundedWorkerPool("handshake-worker", threads, maxInFlight, MessageUtilities::prepareCurrentThread);
+	}
+
+	/**
+	 * Prepares the handshake of a SECRET (or SECRET_GCM, or KEY_SHARE) bundle with a worker. The result, or the error, is given to
+	 * {@code MessageReader.completeHandshake} at the socket's processor thread.
+	 * The socket shouldn't read until then (see {@code Socket.pauseReading(int)}).
+	 * @param socket
+	 * @param messageType
+	 * @param encryptedBundle A copy, it can't be a buffer of the processor.
+	 */
+	public void submit(Socket socket, MessageType messageType, byte[] encryptedBundle) {
+		long socketId = socket.socketId;
+		byte[] serverRandom = socket.serverRandom;
+		SocketProcessor socketProcessor = socket.socketProcessor;
+
+		workers.submit(() -> {
+			Handshake handshake = null;
+			ServerException error = null;
+			try {
+				handshake = Handshake.prepare(messageType, encryptedBundle, socketId, serverRandom);
+			} catch (ServerException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				error = new ServerException(ServerException.Type.PRIVATE_KEY_PROBLEM);
+			}
+
+			Handshake result = handshake;
+			ServerException resultError = error;
+			socketProcessor.execute(() -> socket.messageReader.completeHandshake(result, resultError));
+		});
+	}
+
+	/**
+	 * @return Handshakes given to the workers and not finished.
+	 */
+	public int getInFlight() {
+		return workers.getInFlight();
+	}
+
+	/**
+	 * @return Handshakes waiting for a worker.
+	 */
+	public int getWaiting() {
+		return workers.getWaiting();
+	}
+
+	/**
+	 * Stops the workers. Waiting handshakes aren't done.
+	 */
+	public void shutdown() {
+		workers.shutdown();
+	}
+}
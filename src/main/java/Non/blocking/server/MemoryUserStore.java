@@ -0,0 +1,51 @@
+package Non.blocking.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@code UserStore} only in memory, the users are lost when the server stops. For tests and for servers without
+ * a users file.
+ * @author xsala
+ *
+ */
+public class MemoryUserStore implements UserStore {
+
+	private final ConcurrentHashMap<String, byte[]> users = new ConcurrentHashMap<String, byte[]>();
+
+	@Override
+	public byte[] getCredential(String userName) {
+		return users.get(userName);
+	}
+
+	@Override
+	public boolean addUser(String userName, byte[] credential) {
+		return users.putIfAbsent(userName, credential.clone()) == null;
+	}
+
+	@Override
+	public boolean setCredential(String userName, byte[] credential) {
+		return users.replace(userName, credential.clone()) != null;
+	}
+
+	@Override
+	public boolean removeUser(String userName) {
+		return users.remove(userName) != null;
+	}
+
+	@Override
+	public Set<String> getUserNames() {
+		return Collections.unmodifiableSet(users.keySet());
+	}
+
+	@Override
+	public int size() {
+		return users.size();
+	}
+
+	@Override
+	public void close() {
+	}
+
+}
@@ -1,19 +1,39 @@
 package Non.blocking.server;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
 
 public class RunServer {
 
+	/**Time for sending the messages waiting to be sent when the server stops*/
+	private static final Duration STOP_TIMEOUT = Duration.ofSeconds(10);
+
 	public static void main(String[] args) {
-		Server s = new Server(9999);
+		Server s = new Server(9999, Runtime.getRuntime().availableProcessors());
+		s.setKeyFile(Paths.get(args.length > 0 ? args[0] : "server.key"));
 
 		try {
+			//the users registered with NEW_USER survive a restart. A damaged file is only repaired with "repair" as third argument.
+			UserStore userStore = new FileUserStore(Paths.get(args.length > 1 ? args[1] : "users.log"),
+					args.length > 2 && args[2].equals("repair"));
+			if (userStore.size() == 0) Database.addTestUsers(userStore);
+			s.setUserStore(userStore);
+
 			s.start();
 
+			//SIGTERM (a restart) stops the server without losing the messages already received.
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					s.stop(STOP_TIMEOUT);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}, "server-stop"));
+
 			try {
 				Thread.sleep(5*60*1000); //AUTOFINISH!
-				s.socketAccepter.stop();
-				s.socketProcessor.stop();
+				s.stop(STOP_TIMEOUT);
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
@@ -1,22 +1,111 @@
 package Non.blocking.server;
 
+import Non.blocking.server.messages.KeyExchange;
+import Non.blocking.server.messages.MessageUtilities;
+import Non.blocking.server.messages.SessionTickets;
+import Non.blocking.server.messages.SlowConsumerPolicy;
+
 import java.io.IOException;
-import java.util.Queue;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents the server. It contains instances of SocketAccepter and SocketProcessor. It runs these instances with
- * a socket queue that communicates both.
+ * a socket queue for each SocketProcessor that communicates both.
  * @author xsala
  *
  */
 public class Server {
 
 	public SocketAccepter socketAccepter = null;
-	public SocketProcessor socketProcessor = null;
+	public SocketProcessor[] socketProcessors = null;
+	public HandshakeExecutor handshakeExecutor = null;
+	public AuthExecutor authExecutor = null;
+	public SessionTickets sessionTickets = null;
+	public SessionRegistry sessionRegistry = null;
 
 	private int tcpPort = 0;
 
+	/**Number of {@code SocketProcessor}'s, each one runs at its own thread.*/
+	private int processorCount = 1;
+
+	/**How {@code SocketAccepter} distributes the new sockets among the {@code SocketProcessor}'s*/
+	private SocketAccepter.Balancing balancing = SocketAccepter.Balancing.ROUND_ROBIN;
+
+	/**How the new connections are accepted*/
+	private SocketAccepter.Mode acceptMode = SocketAccepter.Mode.ACCEPTER_THREAD;
+
+	/**Maximum number of pending connections waiting to be accepted. 0 is the system default.*/
+	private int backlog = 1024;
+
+	/**Maximum number of connections accepted at once with {@code SocketAccepter.Mode.SELECTOR}*/
+	private int acceptBatchSize = 64;
+
+	/**Number of threads for the handshake crypto (see {@code HandshakeExecutor}). 0 to do it at the processor threads.*/
+	private int handshakeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	/**Maximum number of handshakes given to the handshake threads at once*/
+	private int maxHandshakesInFlight = 256;
+
+	/**Number of threads for the password hashes (see {@code AuthExecutor}). 0 to do them at the processor threads.*/
+	private int authThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	/**Maximum number of password verifications given to the auth threads at once*/
+	private int maxAuthsInFlight = 64;
+
+	/**PBKDF2 iterations of the new credentials (see {@code Database})*/
+	private int hashIterations = Database.DEFAULT_HASH_ITERATIONS;
+
+	/**File with the key pair of the server (see {@code MessageUtilities.loadKeyPair(Path)}). If null, a new key pair is created at each start.*/
+	private Path keyFile = null;
+
+	/**Public key sent at WELCOME, so how the clients send their secret key*/
+	private KeyExchange keyExchange = KeyExchange.RSA;
+
+	/**Lifetime of the session tickets, in milliseconds (see {@code SessionTickets})*/
+	private long ticketLifetime = 60 * 60 * 1000;
+
+	/**Maximum number of session tickets that can be redeemed at once. 0 to not issue tickets.*/
+	private int maxTickets = 100000;
+
+	/**Maximum number of messages waiting to be sent to a client (see {@code MessageWriter.setLimits})*/
+	private int maxQueuedMessages = 4096;
+
+	/**Maximum number of bytes waiting to be sent to a client*/
+	private long maxQueuedBytes = 4 * 1024 * 1024;
+
+	/**What to do when a client doesn't read and its outbound queue is full*/
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+
+	/**Over these bytes waiting to be sent to a client, the users sending it messages stop being read (backpressure)*/
+	private long highWatermark = 1024 * 1024;
+
+	/**Under these bytes waiting to be sent to a client, the paused senders are read again*/
+	private long lowWatermark = 256 * 1024;
+
+	/**Timeouts in milliseconds (see {@code SocketProcessor.setTimeouts}): to send the secret key, to log in and without reading*/
+	private long handshakeTimeout = 10 * 1000;
+	private long loginTimeout = 60 * 1000;
+	private long idleTimeout = 10 * 60 * 1000;
+
+	/**Milliseconds without chunks before a chunked transfer is dropped (see {@code SocketProcessor.setTransferTimeout})*/
+	private long transferTimeout = 60 * 1000;
+
+	/**Where the users are kept (see {@code Database}). If null, the default one: in memory, with three test users.*/
+	private UserStore userStore = null;
+
+	/**Time given to the threads to finish after the deadline of {@code stop(Duration)}, in milliseconds*/
+	private static final long STOP_GRACE_MILLIS = 1000;
+
+	private Thread accepterThread = null;
+	private Thread[] processorThreads = null;
+
+	private boolean stopped = false;
+
 
 
 	/**
@@ -29,30 +118,304 @@ public class Server {
 	}
 
 	/**
-	 * Initializes an {@code ArrayBlockingQueue<Socket>} and with this, initializes a {@code SocketAccepter} with {@code Server.tcpPort}
-	 * and {@SocketProcessor} with the {@code ArrayBlockingQueue<Socket>}, a {@code MessageBuffer} readBuffer and {@code MessageBuffer} writeBuffer,
-	 * the messageReaderFactory and the messageProcessorFactory.
-	 * @throws IOException
+	 * Constructor with several {@code SocketProcessor}'s.
+	 * @param tcpPort {@code Server.tcpPort} is the listener port of the server.
+	 * @param processorCount Number of {@code SocketProcessor}'s (threads processing sockets). At least 1.
+	 */
+	public Server (int tcpPort, int processorCount) {
+		this.tcpPort = tcpPort;
+		this.processorCount = Math.max(1, processorCount);
+	}
+
+	/**
+	 * Sets how the new sockets are distributed among the {@code SocketProcessor}'s. Has to be called before {@code start()}.
+	 * @param balancing
+	 */
+	public void setBalancing(SocketAccepter.Balancing balancing) {
+		this.balancing = balancing;
+	}
+
+	/**
+	 * Sets how the new connections are accepted. Has to be called before {@code start()}.
+	 * @param acceptMode
+	 */
+	public void setAcceptMode(SocketAccepter.Mode acceptMode) {
+		this.acceptMode = acceptMode;
+	}
+
+	/**
+	 * Sets the maximum number of pending connections waiting to be accepted. Has to be called before {@code start()}.
+	 * @param backlog 0 is the system default.
+	 */
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Sets the maximum number of connections accepted at once with {@code SocketAccepter.Mode.SELECTOR}. Has to be called before {@code start()}.
+	 * @param acceptBatchSize
+	 */
+	public void setAcceptBatchSize(int acceptBatchSize) {
+		this.acceptBatchSize = acceptBatchSize;
+	}
+
+	/**
+	 * Sets the number of threads for the handshake crypto. Has to be called before {@code start()}.
+	 * @param handshakeThreads 0 to do the handshakes at the processor threads.
+	 */
+	public void setHandshakeThreads(int handshakeThreads) {
+		this.handshakeThreads = handshakeThreads;
+	}
+
+	/**
+	 * Sets the maximum number of handshakes given to the handshake threads at once. The next ones wait, and their
+	 * sockets don't read meanwhile. Has to be called before {@code start()}.
+	 * @param maxHandshakesInFlight
+	 */
+	public void setMaxHandshakesInFlight(int maxHandshakesInFlight) {
+		this.maxHandshakesInFlight = maxHandshakesInFlight;
+	}
+
+	/**
+	 * Sets the number of threads for the password hashes of LOG_IN and NEW_USER. Has to be called before {@code start()}.
+	 * @param authThreads 0 to do them at the processor threads, which stop meanwhile. Not with a {@code FileUserStore}.
+	 */
+	public void setAuthThreads(int authThreads) {
+		this.authThreads = authThreads;
+	}
+
+	/**
+	 * Sets the maximum number of password verifications given to the auth threads at once. The next ones wait, and
+	 * their sockets don't read meanwhile. Has to be called before {@code start()}.
+	 * @param maxAuthsInFlight
+	 */
+	public void setMaxAuthsInFlight(int maxAuthsInFlight) {
+		this.maxAuthsInFlight = maxAuthsInFlight;
+	}
+
+	/**
+	 * Sets the PBKDF2 iterations of the new credentials. The existing ones keep theirs. Has to be called before {@code start()}.
+	 * @param hashIterations
+	 */
+	public void setHashIterations(int hashIterations) {
+		this.hashIterations = hashIterations;
+	}
+
+	/**
+	 * Sets the file with the key pair of the server. If it doesn't exist, it's created with a new key pair.
+	 * Has to be called before {@code start()}.
+	 * @param keyFile null to create a new key pair at each start, without saving it.
+	 */
+	public void setKeyFile(Path keyFile) {
+		this.keyFile = keyFile;
+	}
+
+	/**
+	 * Sets the public key sent at WELCOME: RSA (SECRET messages) or X25519 (KEY_SHARE messages). Has to be called before {@code start()}.
+	 * @param keyExchange
+	 */
+	public void setKeyExchange(KeyExchange keyExchange) {
+		this.keyExchange = keyExchange;
+	}
+
+	/**
+	 * Sets the lifetime of the session tickets. Has to be called before {@code start()}.
+	 * @param ticketLifetime In milliseconds.
+	 */
+	public void setTicketLifetime(long ticketLifetime) {
+		this.ticketLifetime = ticketLifetime;
+	}
+
+	/**
+	 * Sets the maximum number of session tickets that can be redeemed at once. When there are more, the oldest ones
+	 * can't be redeemed. Has to be called before {@code start()}.
+	 * @param maxTickets 0 to not issue tickets, so sessions can't be resumed.
+	 */
+	public void setMaxTickets(int maxTickets) {
+		this.maxTickets = maxTickets;
+	}
+
+	/**
+	 * Sets the limits of the outbound queue of each client. A message is always accepted if the queue is empty.
+	 * Has to be called before {@code start()}.
+	 * @param maxQueuedMessages
+	 * @param maxQueuedBytes
+	 */
+	public void setOutboundQueueLimits(int maxQueuedMessages, long maxQueuedBytes) {
+		this.maxQueuedMessages = maxQueuedMessages;
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	/**
+	 * Sets what to do with a new message for a client whose outbound queue is full. Has to be called before {@code start()}.
+	 * @param slowConsumerPolicy DISCONNECT by default.
+	 */
+	public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+
+	/**
+	 * Sets the watermarks for the backpressure: when the bytes waiting to be sent to a client go over highWatermark,
+	 * the users sending it messages stop being read, until they go under lowWatermark. With highWatermark well under
+	 * the outbound queue limits, a slow client doesn't lose messages. Has to be called before {@code start()}.
+	 * @param highWatermark
+	 * @param lowWatermark Lower than highWatermark.
+	 * @throws IllegalArgumentException if lowWatermark isn't lower than highWatermark.
+	 */
+	public void setBackpressureWatermarks(long highWatermark, long lowWatermark) {
+		if (lowWatermark >= highWatermark) throw new IllegalArgumentException("The low watermark has to be lower than the high one.");
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+	}
+
+	/**
+	 * Sets the timeouts of the clients, the connection is closed when one is over. Has to be called before {@code start()}.
+	 * @param handshakeTimeout Milliseconds to send the secret key since the connection, 0 for none. 10 seconds by default.
+	 * @param loginTimeout Milliseconds to log in since the connection, 0 for none. A minute by default.
+	 * @param idleTimeout Milliseconds without sending anything, 0 for none. 10 minutes by default.
+	 */
+	public void setTimeouts(long handshakeTimeout, long loginTimeout, long idleTimeout) {
+		this.handshakeTimeout = handshakeTimeout;
+		this.loginTimeout = loginTimeout;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Sets the timeout of the chunked transfers: a transfer without chunks for this time is dropped, and its next
+	 * chunks are answered with a NACK. Has to be called before {@code start()}.
+	 * @param transferTimeout Milliseconds, 0 for none. A minute by default.
+	 */
+	public void setTransferTimeout(long transferTimeout) {
+		this.transferTimeout = transferTimeout;
+	}
+
+	/**
+	 * Sets where the users are kept, for example a {@code FileUserStore} (it needs auth threads, see {@code setAuthThreads}).
+	 * It's closed by {@code stop(Duration)}.
+	 * Has to be called before {@code start()}.
+	 * @param userStore null for the default one: in memory, with three test users.
+	 */
+	public void setUserStore(UserStore userStore) {
+		this.userStore = userStore;
+	}
+
+	/**
+	 * Initializes an {@code ArrayBlockingQueue<Socket>} for each {@code SocketProcessor} and with these, initializes
+	 * the {@code SocketProcessor}'s and a {@code SocketAccepter} with {@code Server.tcpPort}.
+	 * The {@code ServerSocketChannel} is bound here, so a port problem throws the exception.
+	 * All the {@code SocketProcessor}'s share the {@code SessionRegistry}, the {@code HandshakeExecutor}, the
+	 * {@code AuthExecutor} and the {@code SessionTickets}.
+	 * The key pair is loaded (or created) first, and the user store set, so the first client doesn't wait for them.
+	 * @throws IOException also if the key file can't be read or written.
+	 * @throws IllegalStateException if the user store is a {@code FileUserStore} without auth threads.
 	 */
 	public void start() throws IOException {
+		//a registration waits for the fsync of its record, it would stop every socket of a processor thread.
+		if (userStore instanceof FileUserStore && authThreads <= 0)
+			throw new IllegalStateException("A FileUserStore needs auth threads, see setAuthThreads.");
+
+		if (keyFile != null) {
+			MessageUtilities.loadKeyPair(keyFile);
+		} else {
+			MessageUtilities.initKeyPair();
+		}
+		MessageUtilities.initKeyAgreementKeyPair();
+		MessageUtilities.setKeyExchange(keyExchange);
+		Database.setHashIterations(hashIterations);
+		//the default users are hashed here, not by the first client's thread.
+		Database.setUserStore(userStore != null ? userStore : Database.createDefaultStore());
+
+		/**Logged sockets of all the processors, so a message can be sent to a socket of another processor.*/
+		sessionRegistry = new SessionRegistry(1024);
+
+		if (handshakeThreads > 0) {
+			handshakeExecutor = new HandshakeExecutor(handshakeThreads, maxHandshakesInFlight);
+		}
+		if (authThreads > 0) {
+			authExecutor = new AuthExecutor(authThreads, maxAuthsInFlight);
+		}
+		if (maxTickets > 0) {
+			sessionTickets = new SessionTickets(ticketLifetime, maxTickets);
+		}
+
+		socketProcessors = new SocketProcessor[processorCount];
+		for (int i = 0; i < processorCount; i++) {
+			/**The queue of sockets. {@code SocketAccepter} will pot sockets here, {@code SocketProcessor} in another thread will process the sockets.
+			 * Being an {code ArrayBlockingQueue}: Once created, the capacity cannot be changed. Attempts to put an element into a full queue will result in the operation blocking; attempts to take an element from an empty queue will similarly block, BUT WE CAN USE poll() and will return the element or null, without blocking.*/
+			BlockingQueue<Socket> socketQueue = new ArrayBlockingQueue<Socket>(1024);
+			socketProcessors[i] = new SocketProcessor(socketQueue, sessionRegistry);
+			socketProcessors[i].setHandshakeExecutor(handshakeExecutor);
+			socketProcessors[i].setAuthExecutor(authExecutor);
+			socketProcessors[i].setSessionTickets(sessionTickets);
+			socketProcessors[i].setOutboundQueueLimits(maxQueuedMessages, maxQueuedBytes, slowConsumerPolicy);
+			socketProcessors[i].setBackpressureWatermarks(highWatermark, lowWatermark);
+			socketProcessors[i].setTimeouts(handshakeTimeout, loginTimeout, idleTimeout);
+			socketProcessors[i].setTransferTimeout(transferTimeout);
+		}
 
+		socketAccepter = new SocketAccepter(tcpPort, backlog, acceptBatchSize, socketProcessors, balancing);
+		socketAccepter.open(acceptMode);
 
-		/**The queue of sockets. {@code SocketAccepter} will pot sockets here, {@code SocketProcessor} in another thread will process the sockets.
-		 * Being an {code ArrayBlockingQueue}: Once created, the capacity cannot be changed. Attempts to put an element into a full queue will result in the operation blocking; attempts to take an element from an empty queue will similarly block, BUT WE CAN USE poll() and will return the element or null, without blocking.*/
-		Queue<Socket> socketQueue = new ArrayBlockingQueue<Socket>(1024);
+		if (acceptMode == SocketAccepter.Mode.ACCEPTER_THREAD) {
+			accepterThread = new Thread(this.socketAccepter, "socket-accepter");
+			accepterThread.start();
+		}
+		processorThreads = new Thread[processorCount];
+		for (int i = 0; i < processorCount; i++) {
+			processorThreads[i] = new Thread(socketProcessors[i], "socket-processor-" + i);
+			processorThreads[i].start();
+		}
+	}
 
-		socketAccepter = new SocketAccepter(tcpPort, socketQueue);
+	/**
+	 * Stops the server without losing the messages already received. Stops accepting connections (the port is
+	 * closed) and reading from the clients, then the messages forwarded between processors are delivered, BYE is sent
+	 * to the clients and the outbound queues are sent until they are empty or the timeout is over. Then the
+	 * connections and selectors are closed, the threads are waited for and the user store is closed.
+	 * It does nothing if the server isn't running.
+	 * @param timeout For sending the messages waiting to be sent.
+	 * @throws InterruptedException
+	 */
+	public synchronized void stop(Duration timeout) throws InterruptedException {
+		if (socketProcessors == null || stopped) return;
+		stopped = true;
+		long deadline = System.currentTimeMillis() + timeout.toMillis();
 
+		socketAccepter.close();
+		if (accepterThread != null) accepterThread.join(remaining(deadline));
 
-		socketProcessor = new SocketProcessor(socketQueue);
+		//Once no processor reads, the messages for other processors are already at their tasks.
+		CountDownLatch notReading = new CountDownLatch(socketProcessors.length);
+		for (SocketProcessor socketProcessor : socketProcessors) {
+			socketProcessor.stopReading(notReading::countDown);
+		}
+		notReading.await(remaining(deadline), TimeUnit.MILLISECONDS);
 
-		Thread accepterThread = new Thread(this.socketAccepter);
-		Thread processorThread = new Thread(this.socketProcessor);
+		for (SocketProcessor socketProcessor : socketProcessors) {
+			socketProcessor.drain(deadline);
+		}
+		for (Thread processorThread : processorThreads) {
+			processorThread.join(remaining(deadline) + STOP_GRACE_MILLIS);
+		}
 
+		if (handshakeExecutor != null) handshakeExecutor.shutdown();
+		if (authExecutor != null) authExecutor.shutdown();
 
-		//When to stop?//TODO
-		accepterThread.start();
-		processorThread.start();
+		if (userStore != null) {
+			try {
+				userStore.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @param deadline In milliseconds.
+	 * @return Milliseconds until the deadline, at least 1 (0 is forever for {@code Thread.join}).
+	 */
+	private static long remaining(long deadline) {
+		return Math.max(1, deadline - System.currentTimeMillis());
 	}
 
 }
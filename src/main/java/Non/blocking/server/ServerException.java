@@ -34,7 +34,13 @@ public class ServerException extends Exception {
         SECRET_KEY_PROBLEM("[ERROR]: Secret key problem."),
         PROBLEM_SERIALIZING_USERS ("[ERROR]: Problem serializing users."),
         CONNECTION_PROBLEM("[ERROR]: Connection problem."),
-        PRIVATE_KEY_PROBLEM("[ERROR]: Private key problem.");
+        MESSAGE_TOO_LONG("[ERROR]: Message too long."),
+        MALFORMED_MESSAGE("[ERROR]: Malformed message."),
+        REPLAYED_MESSAGE("[ERROR]: Message sequence already received."),
+        TOO_MANY_TRANSFERS("[ERROR]: Too many chunked transfers at once."),
+        TICKET_PROBLEM("[ERROR]: Session ticket not valid, expired or already used."),
+        PRIVATE_KEY_PROBLEM("[ERROR]: Private key problem."),
+        USER_STORE_PROBLEM("[ERROR]: Users can't be saved.");
 
 
 
@@ -0,0 +1,175 @@
+package Non.blocking.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The logged sockets of all the {@code SocketProcessor}'s, by user name. Shared by all the processor threads:
+ * lookups don't lock, and registering or removing a session only locks its bin of the map, so the processors don't
+ * wait for each other (there is no global lock).
+ * A session is registered by its socket's processor thread after the socket has been taken, so the owner of a session
+ * ({@code Socket.socketProcessor}) is published with it: a processor looking up a recipient knows at once if it
+ * has to use {@code SocketProcessor.execute(Runnable)}.
+ * It keeps the roster (the body of ALL_USERS), built again only when it's requested after a change, and sends
+ * PRESENCE messages to the subscribed sockets when a user logs in or out.
+ * @author xsala
+ *
+ */
+public class SessionRegistry {
+
+	private final ConcurrentHashMap<String, Socket> sessions;
+
+	/**Incremented after each change of sessions, so a roster built before it is out of date.*/
+	private final AtomicLong version = new AtomicLong();
+
+	/**The last built roster, see {@code getRoster()}*/
+	private volatile Roster roster = new Roster(-1, null);
+
+	/**Sockets that receive PRESENCE when a user logs in or out*/
+	private final Set<Socket> presenceSubscribers = ConcurrentHashMap.newKeySet();
+
+	/**A roster and the version of sessions it was built from. Immutable.*/
+	private static class Roster {
+		final long version;
+		final byte[] body;
+
+		Roster(long version, byte[] body) {
+			this.version = version;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * @param expectedSessions For the initial capacity.
+	 */
+	public SessionRegistry(int expectedSessions) {
+		this.sessions = new ConcurrentHashMap<String, Socket>(expectedSessions);
+	}
+
+	/**
+	 * Registers a session, atomically. Called by the socket's processor thread.
+	 * @param userName
+	 * @param socket Taken by a processor.
+	 * @return false if there is already a session with the userName.
+	 */
+	public boolean register(String userName, Socket socket) {
+		if (sessions.putIfAbsent(userName, socket) != null) return false;
+		version.incrementAndGet();
+		publishPresence(userName, true);
+		return true;
+	}
+
+	/**
+	 * Removes a session, if it's the socket's one. Called by the socket's processor thread.
+	 * @param userName
+	 * @param socket
+	 * @return false if the session of the userName isn't the socket's one.
+	 */
+	public boolean unregister(String userName, Socket socket) {
+		if (!sessions.remove(userName, socket)) return false;
+		version.incrementAndGet();
+		publishPresence(userName, false);
+		return true;
+	}
+
+	/**
+	 * @param userName
+	 * @return The socket of the session, or null if the user isn't logged. Only its processor thread can use it,
+	 * see {@code Socket.socketProcessor}.
+	 */
+	public Socket lookup(String userName) {
+		return sessions.get(userName);
+	}
+
+	/**
+	 * @param userName
+	 * @return The processor of the session, or null if the user isn't logged.
+	 */
+	public SocketProcessor getOwner(String userName) {
+		Socket socket = sessions.get(userName);
+		return socket == null ? null : socket.socketProcessor;
+	}
+
+	/**
+	 * @return Number of sessions.
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * @return The user names of the sessions. A view, not a copy: it can change while it's iterated.
+	 */
+	public Set<String> getUserNames() {
+		return Collections.unmodifiableSet(sessions.keySet());
+	}
+
+	/**
+	 * Gets the roster, the body of ALL_USERS: number of users (4 bytes) and, for each one, name length (2 bytes) and
+	 * UTF-8 name. It's only built again if a user has logged in or out since the last one.
+	 * @return It can't be modified, it's shared by all the requests.
+	 */
+	public byte[] getRoster() {
+		long current = version.get();
+		Roster cached = roster;
+		if (cached.version == current) return cached.body;
+
+		//sessions is read after version, so the roster is at least as new as current. Two threads can build it at
+		//once, the result is the same.
+		byte[] body = buildRoster();
+		if (roster.version < current) roster = new Roster(current, body);
+		return body;
+	}
+
+	private byte[] buildRoster() {
+		List<byte[]> names = new ArrayList<byte[]>(sessions.size());
+		int length = 4;
+		for (String userName : sessions.keySet()) {
+			byte[] name = userName.getBytes(StandardCharsets.UTF_8);
+			names.add(name);
+			length += 2 + name.length;
+		}
+
+		ByteBuffer body = ByteBuffer.allocate(length);
+		body.putInt(names.size());
+		for (byte[] name : names) {
+			body.putShort((short) name.length);
+			body.put(name);
+		}
+		return body.array();
+	}
+
+	/**
+	 * The socket will receive PRESENCE when a user logs in or out, until it's unsubscribed or closed.
+	 * @param socket A logged socket.
+	 */
+	public void subscribe(Socket socket) {
+		presenceSubscribers.add(socket);
+	}
+
+	/**
+	 * @param socket
+	 */
+	public void unsubscribe(Socket socket) {
+		presenceSubscribers.remove(socket);
+	}
+
+	/**
+	 * Sends PRESENCE to each subscribed socket, by its processor thread.
+	 * @param userName
+	 * @param joined true if the user has logged in, false if it has logged out.
+	 */
+	private void publishPresence(String userName, boolean joined) {
+		if (presenceSubscribers.isEmpty()) return;
+		for (Socket subscriber : presenceSubscribers) {
+			subscriber.socketProcessor.execute(() -> subscriber.sendPresence(userName, joined));
+		}
+	}
+}
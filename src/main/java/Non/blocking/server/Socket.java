@@ -3,14 +3,15 @@ package Non.blocking.server;
 import Non.blocking.server.messages.*;
 
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Map;
-import java.util.Set;
 
 /**
  * The class has a SocketChannel. A read method and write method.
@@ -26,6 +27,9 @@ public class Socket {
 	/**userName reference associated to the Socket. When the connection is logged this value will contain the userName*/
 	public String userName = null;
 
+	/**The {@code SocketProcessor} that processes this socket. Set when the socket is taken from the inbound queue.*/
+	public SocketProcessor socketProcessor = null;
+
 	/**Associated SocketChannel*/
 	public SocketChannel socketChannel = null;
 
@@ -35,21 +39,95 @@ public class Socket {
 	/**Associated MessageWriter*/
 	public MessageWriter messageWriter = new MessageWriter(this);
 
-	/**A map of all loggedSockets*/
-	public Map<String, Socket> loggedSockets = null;
+	/**Random of the connection, for the key of SECRET_GCM. See {@code MessageUtilities.newServerRandom()}*/
+	public final byte[] serverRandom = MessageUtilities.newServerRandom();
 
-	/**A set of all nonLoggedSockets*/
-	public Set<Socket> nonLoggedSockets = null;
+	/**The logged sockets of all the {@code SocketProcessor}'s*/
+	public SessionRegistry sessionRegistry = null;
 
 	private Cipher secretKeyCipherDecryptor = null;
 
 	private Cipher secretKeyCipherEncryptor = null;
 
+	/**Encryptor without padding, for plaintexts that are padded in their own buffer. See {@code encryptWithSecretKey(ByteBuffer, ByteBuffer)}*/
+	private Cipher secretKeyCipherEncryptorWithoutPadding = null;
+
+	/**Decryptor without padding, the padding is checked and removed by {@code decryptWithSecretKey(ByteBuffer, ByteBuffer)}*/
+	private Cipher secretKeyCipherDecryptorWithoutPadding = null;
+
+	/**AES/GCM key, if the client has chosen it (see {@code MessageType.SECRET_GCM}). Then, the frames are
+	 * encrypted and authenticated with AES/GCM, and the other ciphers and the MAC aren't used for them.
+	 * The GCM ciphers are initiated with the key and a new nonce for each frame, so they're the ciphers of the
+	 * processor thread (see {@code MessageUtilities.getAeadEncryptor()}), not of the socket.*/
+	private SecretKey aeadKey = null;
+
+	/**Chunked transfers being sent, created with the first one. See {@code getChunkedTransfers()}*/
+	private ChunkedTransfers chunkedTransfers = null;
+
+	/**The secret key of the session, for its session tickets (see {@code SessionTickets})*/
+	private byte[] secretKeyInBytes = null;
+
+	/**Sequence of the last frame sent with GCM, the nonce of each frame is made with its sequence.*/
+	private long outboundSequence = -1;
+
+	/**Sequence of the last frame received with GCM. The sequence of a received frame has to be bigger (no replays).*/
+	private long inboundSequence = -1;
+
+	/**Nonce for the GCM ciphers: direction (4 bytes) + sequence (8 bytes)*/
+	private final byte[] nonce = new byte[MessageUtilities.AEAD_NONCE_LENGTH];
+
+	/**Additional authenticated data of a GCM frame: the message type*/
+	private final byte[] aad = new byte[1];
+
 	/**The MAC algorithm for client-server communication*/
 	private Mac mac = null;
 
+	/**The calculated MAC of a received message, to compare it with the received one. See {@code checkMac}*/
+	private byte[] calculatedMac = null;
+
 	private int allowedErrors = 3; //just for some kind of errors, managed on read().
 
+	/**The socket doesn't read while a handshake is prepared by a worker, see {@code pauseReading(int)}*/
+	public static final int PAUSED_BY_HANDSHAKE = 1;
+
+	/**The socket doesn't read while some recipient of its messages is congested, see {@code MessageWriter.setWatermarks}*/
+	public static final int PAUSED_BY_BACKPRESSURE = 2;
+
+	/**The socket doesn't read while the server stops, see {@code SocketProcessor.stopReading(Runnable)}*/
+	public static final int PAUSED_BY_SHUTDOWN = 4;
+
+	/**The socket doesn't read while its LOG_IN (or NEW_USER) is verified by a worker, see {@code AuthExecutor}*/
+	public static final int PAUSED_BY_AUTH = 8;
+
+	/**Recipients of this socket's messages whose outbound queue is over the high watermark. Only used by the processor thread.*/
+	private int congestedRecipients = 0;
+
+	/**Reasons why the socket doesn't read (bits), see {@code pauseReading(int)}. 0 if it reads.*/
+	private int readingPauses = 0;
+
+	/**When the socket has been taken by its processor, in milliseconds. For the handshake and login timeouts.*/
+	long acceptTime = 0;
+
+	/**Last read, in milliseconds. For the idle timeout.*/
+	long lastReadTime = 0;
+
+	/**The processor's {@code TimerWheel}: deadline, slot (-1 if it isn't scheduled) and the sockets of the same slot.*/
+	long timerDeadline = 0;
+	int timerSlot = -1;
+	Socket timerPrevious = null;
+	Socket timerNext = null;
+
+	private boolean closed = false;
+
+	/**Pool used when the socket doesn't have a {@code SocketProcessor} (testing).*/
+	private BufferPool ownBufferPool = null;
+
+	/**Pool for the frames used when the socket doesn't have a {@code SocketProcessor} (testing).*/
+	private BufferPool ownFrameBufferPool = null;
+
+	/**Encoder used when the socket doesn't have a {@code SocketProcessor} (testing).*/
+	private FrameEncoder ownFrameEncoder = null;
+
 
 	public Socket(SocketChannel socketChannel) {
 		this.socketChannel = socketChannel;
@@ -62,31 +140,60 @@ public class Socket {
 			try {
 				messageReader.readMessage();
 			} catch (ServerException e) {
-				if (allowedErrors > 0 &&
-					(e.type == ServerException.Type.LOG_IN_PROBLEM ||
-					e.type == ServerException.Type.LOG_IN_NEEDED  ||
-					e.type == ServerException.Type.WRONG_DESTINATION)){
-
-					Message nackMessage = MessageUtilities.createNACK("noName", e.messageId, e.type.message);
-
-					try {
-						allowedErrors--;
-						messageWriter.enqueueMessage(nackMessage.getMessageInByteBuffer(this));
-					} catch (ServerException ex) {
-						ex.printStackTrace();
-					}
-
-				} else {
-
-					try {
-						socketChannel.close();
-					} catch (IOException ex) {
-						ex.printStackTrace();
-					}
-					e.printStackTrace();
-				}
+				handleError(e);
+			}
+
+	}
+
+	/**
+	 * Handles an error reading or processing a message. Some kind of errors are allowed a few times, a NACK is sent.
+	 * Otherwise, the connection is closed.
+	 * @param e
+	 * @return true if the socket continues, false if it has been closed.
+	 */
+	public boolean handleError(ServerException e) {
+		if (allowedErrors > 0 &&
+			(e.type == ServerException.Type.LOG_IN_PROBLEM ||
+			e.type == ServerException.Type.LOG_IN_NEEDED  ||
+			e.type == ServerException.Type.WRONG_DESTINATION ||
+			e.type == ServerException.Type.TOO_MANY_TRANSFERS)){
+
+			Message nackMessage = MessageUtilities.createNACK("noName", e.messageId, e.type.message);
+
+			try {
+				allowedErrors--;
+				messageWriter.enqueueMessage(nackMessage.getMessageInByteBuffer(this));
+			} catch (ServerException ex) {
+				ex.printStackTrace();
 			}
+			return true;
+
+		} else {
+
+			close();
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Closes the connection and releases the messages not sent, so the senders paused by this socket read again
+	 * (see {@code MessageWriter.setWatermarks}). The socket is removed from its processor (logged sockets, selector
+	 * and timeouts). Called when the client closes the connection, with errors and timeouts. Has to be called by the
+	 * processor thread, it does nothing the second time.
+	 */
+	public void close() {
+		if (closed) return;
+		closed = true;
 
+		try {
+			socketChannel.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+		messageWriter.clear();
+		messageReader.release();
+		if (socketProcessor != null) socketProcessor.socketClosed(this);
 	}
 
 	/**
@@ -96,16 +203,154 @@ public class Socket {
 		try {
 			messageWriter.write();
 		} catch (ServerException e) { //Connection problems.
+			close();
+			e.printStackTrace();
+		}
+	}
+
+
+
+	/**
+	 * Stops reading for a reason: the socket isn't selected for reading, and the received messages that are already
+	 * at the {@code MessageReader} aren't processed. It reads again when all the reasons are gone, see {@code resumeReading(int)}.
+	 * Has to be called by the processor thread.
+	 * @param reason A bit, as {@code PAUSED_BY_HANDSHAKE}.
+	 */
+	public void pauseReading(int reason) {
+		if (readingPauses == 0 && socketProcessor != null) {
+			socketProcessor.disableReadInterest(this);
+		}
+		readingPauses |= reason;
+	}
+
+	/**
+	 * Removes a reason for not reading. If there are no more reasons, the socket is selected for reading again and
+	 * the messages kept by the {@code MessageReader} are processed.
+	 * Has to be called by the processor thread.
+	 * @param reason
+	 */
+	public void resumeReading(int reason) {
+		if ((readingPauses & reason) == 0) return;
+
+		readingPauses &= ~reason;
+		if (readingPauses == 0 && socketChannel.isOpen()) {
+			if (socketProcessor != null) socketProcessor.enableReadInterest(this);
 			try {
-				socketChannel.close();
-			} catch (IOException ex) {
-				ex.printStackTrace();
+				messageReader.processBufferedMessages();
+			} catch (ServerException e) {
+				handleError(e);
 			}
-			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * A recipient of this socket's messages is over its high watermark, the socket stops reading until it's drained.
+	 * Has to be called by the processor thread.
+	 */
+	public void recipientCongested() {
+		if (congestedRecipients++ == 0) pauseReading(PAUSED_BY_BACKPRESSURE);
+	}
+
+	/**
+	 * A recipient of this socket's messages is under its low watermark (or closed). Has to be called by the processor thread.
+	 */
+	public void recipientDrained() {
+		if (--congestedRecipients == 0) resumeReading(PAUSED_BY_BACKPRESSURE);
+	}
+
+	/**
+	 * @return true if the socket doesn't read now, see {@code pauseReading(int)}.
+	 */
+	public boolean isReadingPaused() {
+		return readingPauses != 0;
+	}
+
+	/**
+	 * Gets the handshake executor of the socket's {@code SocketProcessor}.
+	 * @return null if the handshakes have to be done by the processor thread.
+	 */
+	public HandshakeExecutor getHandshakeExecutor() {
+		return socketProcessor == null ? null : socketProcessor.getHandshakeExecutor();
+	}
+
+	/**
+	 * Gets the auth executor of the socket's {@code SocketProcessor}.
+	 * @return null if the passwords have to be verified by the processor thread.
+	 */
+	public AuthExecutor getAuthExecutor() {
+		return socketProcessor == null ? null : socketProcessor.getAuthExecutor();
+	}
+
+	/**
+	 * Gets the chunked transfers being sent by this socket. Used by the processor thread.
+	 * @return
+	 */
+	public ChunkedTransfers getChunkedTransfers() {
+		if (chunkedTransfers == null) chunkedTransfers = new ChunkedTransfers(ChunkedTransfers.DEFAULT_MAX_TRANSFERS);
+		return chunkedTransfers;
+	}
+
+	/**
+	 * Makes sure the socket's processor looks at its chunked transfers when the transfer timeout of a new one is over
+	 * (see {@code SocketProcessor.setTransferTimeout}). Called by the processor thread when a transfer starts.
+	 */
+	public void scheduleTransferTimeout() {
+		if (socketProcessor != null) socketProcessor.scheduleTransferTimeout(this);
+	}
+
+	/**
+	 * @return true if there are chunked transfers not finished.
+	 */
+	boolean hasChunkedTransfers() {
+		return chunkedTransfers != null && chunkedTransfers.size() > 0;
+	}
+
+	/**
+	 * Gets the session tickets of the socket's {@code SocketProcessor}.
+	 * @return null if sessions can't be resumed.
+	 */
+	public SessionTickets getSessionTickets() {
+		return socketProcessor == null ? null : socketProcessor.getSessionTickets();
+	}
+
+	/**
+	 * Gets the buffer pool of the socket's {@code SocketProcessor}.
+	 * @return
+	 */
+	public BufferPool getBufferPool() {
+		if (socketProcessor != null) return socketProcessor.bufferPool;
+
+		if (ownBufferPool == null) {
+			ownBufferPool = new BufferPool(MessageReader.READ_BUFFER_SIZE, 4);
+		}
+		return ownBufferPool;
+	}
+
+	/**
+	 * Gets the pool of heap buffers for the outbound frames of the socket's {@code SocketProcessor}.
+	 * @return
+	 */
+	public BufferPool getFrameBufferPool() {
+		if (socketProcessor != null) return socketProcessor.frameBufferPool;
 
+		if (ownFrameBufferPool == null) {
+			ownFrameBufferPool = new BufferPool(FrameEncoder.MAX_POOLED_FRAME_LENGTH, 4, false);
+		}
+		return ownFrameBufferPool;
+	}
+
+	/**
+	 * Gets the frame encoder of the socket's {@code SocketProcessor}.
+	 * @return
+	 */
+	public FrameEncoder getFrameEncoder() {
+		if (socketProcessor != null) return socketProcessor.frameEncoder;
+
+		if (ownFrameEncoder == null) {
+			ownFrameEncoder = new FrameEncoder();
+		}
+		return ownFrameEncoder;
+	}
 
 	/**
 	 * Checks if the socket has messages to send.
@@ -115,25 +360,37 @@ public class Socket {
 		return !messageWriter.isEmpty();
 	}
 
-	/**Moves this Socket to the nonLoggedSockets and makes the userName null.*/
+	/**Removes the session of this Socket and makes the userName null.*/
 	public void unlogMe() {
-		loggedSockets.remove(userName);
-		nonLoggedSockets.add(this);
+		sessionRegistry.unsubscribe(this);
+		sessionRegistry.unregister(userName, this);
 		userName = null;
 	}
 
 	/**
-	 * Sets socket as a logged. Puts it to loggedSockets and removes from nonLogged.
+	 * Sends PRESENCE to this socket (see {@code SessionRegistry.subscribe}). Has to be called by the processor thread.
+	 * @param presentUserName The user that has logged in or out.
+	 * @param joined
+	 */
+	public void sendPresence(String presentUserName, boolean joined) {
+		if (!socketChannel.isOpen() || userName == null) return;
+		try {
+			messageWriter.enqueueMessage(MessageUtilities.createPresence(userName, presentUserName, joined).getMessageInByteBuffer(this));
+		} catch (ServerException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sets socket as a logged. Registers its session at {@code sessionRegistry}.
 	 * @param userName
 	 * @param logInMessageId
 	 * @throws ServerException if some other socket is already logged with the userName received as a parameter.
 	 */
 	public void logMe(String userName, long logInMessageId) throws ServerException {
-		if (loggedSockets.get(userName) == null){
+		if (sessionRegistry.register(userName, this)){ //atomic, sessionRegistry is shared by all processors.
 
 			this.userName = userName;
-			loggedSockets.put(userName, this);
-			nonLoggedSockets.remove(this);
 
 			messageWriter.enqueueMessage(MessageUtilities.createACK(userName,
 					logInMessageId).getMessageInByteBuffer(this));
@@ -156,11 +413,7 @@ public class Socket {
 		try {
 			messageWriter.enqueueMessage(MessageUtilities.createWelcome(socketId).getMessageInByteBuffer(this));
 		} catch (Exception e) {
-			try {
-				socketChannel.close();
-			} catch (IOException ex) {
-				ex.printStackTrace();
-			}
+			close();
 			e.printStackTrace();
 
 		}
@@ -180,6 +433,74 @@ public class Socket {
 		return mac.doFinal();
 	}
 
+	/**
+	 * Generates the MAC of a plaintext bundle (see {@code FrameEncoder}) into output, without copying the fields.
+	 * The MAC is calculated from the message type, origin, destination and body, as {@code generateMac(byte[][])}.
+	 * If mac object is null, the MAC is byte[0]=0.
+	 * @param messageType
+	 * @param bundle Array with the plaintext bundle: messageId, origin, destination and body with their lengths.
+	 * @param offset Position of the bundle (messageId) at the array.
+	 * @param output Array for the MAC, needs {@code getMacLength()} bytes.
+	 * @param outputOffset
+	 * @return the MAC length.
+	 * @throws ServerException if the bundle is malformed.
+	 */
+	public int generateMac(MessageType messageType, byte[] bundle, int offset, byte[] output, int outputOffset) throws ServerException {
+		if (mac == null) { //no MAC generator.
+			output[outputOffset] = 0;
+			return 1;
+		}
+
+		try {
+			int position = offset + 8; //after messageId
+			mac.update(messageType.byteValue);
+			for (int field = 0; field < 3; field++) { //origin, destination and body.
+				int length = MessageUtilities.byteArrayToInt(bundle, position);
+				mac.update(bundle, position + 4, length);
+				position += 4 + length;
+			}
+			mac.doFinal(output, outputOffset);
+		} catch (ShortBufferException | RuntimeException e) {
+			mac.reset();
+			throw new ServerException(ServerException.Type.MAC_NOT_EQUAL);
+		}
+		return mac.getMacLength();
+	}
+
+	/**
+	 * Checks the MAC of a received plaintext bundle. It's calculated over the fields at the array (see
+	 * {@code generateMac(MessageType, byte[], int, byte[], int)}) and compared in constant time with the received one.
+	 * @param messageType
+	 * @param bundle Array with the plaintext bundle.
+	 * @param offset Position of the bundle (messageId) at the array.
+	 * @param macOffset Position of the received MAC at the array.
+	 * @param macLength Length of the received MAC.
+	 * @return true if both MAC's are the same.
+	 * @throws ServerException if the bundle is malformed.
+	 */
+	public boolean checkMac(MessageType messageType, byte[] bundle, int offset, int macOffset, int macLength) throws ServerException {
+		int length = getMacLength();
+		if (calculatedMac == null || calculatedMac.length < length) {
+			calculatedMac = new byte[length];
+		}
+		generateMac(messageType, bundle, offset, calculatedMac, 0);
+
+		if (macLength != length) return false;
+		int difference = 0;
+		for (int i = 0; i < length; i++) {
+			difference |= calculatedMac[i] ^ bundle[macOffset + i];
+		}
+		return difference == 0;
+	}
+
+	/**
+	 * Gets the length of the MAC's of this socket.
+	 * @return 1 if mac object is null (see {@code generateMac(byte[][])}).
+	 */
+	public int getMacLength() {
+		return mac == null ? 1 : mac.getMacLength();
+	}
+
 	/**
 	 * Creates and initiates mac object from a given key.
 	 * @param keyForMac
@@ -196,15 +517,141 @@ public class Socket {
 
 
 	public void setSecretKeyCiphers(byte[] secretKeyInBytes) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+		setSecretKeyCiphers(secretKeyInBytes, false);
+	}
+
+	/**
+	 * Sets the secret key and creates its ciphers.
+	 * @param secretKeyInBytes
+	 * @param aead true to use AES/GCM for the frames (see {@code MessageType.SECRET_GCM}), false for AES/ECB and a MAC.
+	 * @throws NoSuchPaddingException
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 */
+	public void setSecretKeyCiphers(byte[] secretKeyInBytes, boolean aead) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
 		SecretKey secretKey = new SecretKeySpec(secretKeyInBytes, MessageUtilities.DEFAULT_SECRET_KEY_ALGORITHM);
+		this.secretKeyInBytes = secretKeyInBytes.clone();
+		if (aead) {
+			aeadKey = secretKey;
+			outboundSequence = -1;
+			inboundSequence = -1;
+			secretKeyCipherDecryptor = null;
+			secretKeyCipherEncryptor = null;
+			secretKeyCipherEncryptorWithoutPadding = null;
+			secretKeyCipherDecryptorWithoutPadding = null;
+			return;
+		}
+
+		aeadKey = null;
 		secretKeyCipherDecryptor = Cipher.getInstance(MessageUtilities.DEFAULT_SECRET_KEY_ALGORITHM);
 		secretKeyCipherDecryptor.init(Cipher.DECRYPT_MODE, secretKey);
 		secretKeyCipherEncryptor = Cipher.getInstance(MessageUtilities.DEFAULT_SECRET_KEY_ALGORITHM);
 		secretKeyCipherEncryptor.init(Cipher.ENCRYPT_MODE, secretKey);
+		secretKeyCipherEncryptorWithoutPadding = Cipher.getInstance(MessageUtilities.SECRET_KEY_ALGORITHM_WITHOUT_PADDING);
+		secretKeyCipherEncryptorWithoutPadding.init(Cipher.ENCRYPT_MODE, secretKey);
+		secretKeyCipherDecryptorWithoutPadding = Cipher.getInstance(MessageUtilities.SECRET_KEY_ALGORITHM_WITHOUT_PADDING);
+		secretKeyCipherDecryptorWithoutPadding.init(Cipher.DECRYPT_MODE, secretKey);
+	}
+
+	/**
+	 * @return The secret key of the session, or null. It shouldn't be modified.
+	 */
+	public byte[] getSecretKeyInBytes() {
+		return secretKeyInBytes;
 	}
 
 	public boolean hasSecretKey() {
-		return secretKeyCipherEncryptor != null;
+		return secretKeyCipherEncryptor != null || aeadKey != null;
+	}
+
+	/**
+	 * @return true if the frames are encrypted with AES/GCM (see {@code encryptAead} and {@code decryptAead}).
+	 */
+	public boolean usesAead() {
+		return aeadKey != null;
+	}
+
+	/**
+	 * Encrypts and authenticates the plaintext fields of a frame with AES/GCM, in one pass. Writes the sequence of the frame
+	 * (8 bytes, it makes the nonce) and the ciphertext with the tag into output. The message type is authenticated too.
+	 * @param messageType
+	 * @param fields
+	 * @param offset
+	 * @param length
+	 * @param output A heap buffer, needs {@code getEncryptedLength(length)} bytes remaining.
+	 * @return the number of bytes written into output.
+	 * @throws ServerException
+	 */
+	public int encryptAead(MessageType messageType, byte[] fields, int offset, int length, ByteBuffer output) throws ServerException {
+		if (!usesAead()) throw new ServerException(ServerException.Type.SECRET_KEY_NEEDED);
+
+		long sequence = ++outboundSequence;
+		output.putLong(sequence);
+		try {
+			Cipher aeadEncryptor = MessageUtilities.getAeadEncryptor();
+			aeadEncryptor.init(Cipher.ENCRYPT_MODE, aeadKey, nonce(MessageUtilities.AEAD_SERVER_TO_CLIENT, sequence));
+			aad[0] = messageType.byteValue;
+			aeadEncryptor.updateAAD(aad);
+			int written = aeadEncryptor.doFinal(fields, offset, length, output.array(), output.arrayOffset() + output.position());
+			output.position(output.position() + written);
+			return MessageUtilities.AEAD_SEQUENCE_LENGTH + written;
+		} catch (GeneralSecurityException e) {
+			throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+		}
+	}
+
+	/**
+	 * Decrypts and checks a frame encrypted with AES/GCM: the sequence (8 bytes) and the ciphertext with the tag.
+	 * The sequence has to be bigger than the sequence of the previous received frame.
+	 * A direct input is first copied to a heap buffer of the frame pool.
+	 * @param messageType
+	 * @param input
+	 * @param output A heap buffer, needs at least input.remaining() bytes remaining.
+	 * @return the sequence of the frame.
+	 * @throws ServerException if the frame is malformed, replayed or its tag doesn't match.
+	 */
+	public long decryptAead(MessageType messageType, ByteBuffer input, ByteBuffer output) throws ServerException {
+		if (!usesAead()) throw new ServerException(ServerException.Type.SECRET_KEY_NEEDED);
+		if (input.remaining() < MessageUtilities.AEAD_SEQUENCE_LENGTH + MessageUtilities.AEAD_TAG_LENGTH)
+			throw new ServerException(ServerException.Type.MALFORMED_MESSAGE);
+
+		long sequence = input.getLong();
+		if (sequence <= inboundSequence) throw new ServerException(ServerException.Type.REPLAYED_MESSAGE);
+
+		int length = input.remaining();
+		ByteBuffer ciphertext = input;
+		if (!input.hasArray()) {
+			ciphertext = length > getFrameBufferPool().getMaxCapacity() ? ByteBuffer.allocate(length) : getFrameBufferPool().lease(length);
+			ciphertext.put(input).flip();
+		}
+
+		try {
+			Cipher aeadDecryptor = MessageUtilities.getAeadDecryptor();
+			aeadDecryptor.init(Cipher.DECRYPT_MODE, aeadKey, nonce(MessageUtilities.AEAD_CLIENT_TO_SERVER, sequence));
+			aad[0] = messageType.byteValue;
+			aeadDecryptor.updateAAD(aad);
+			aeadDecryptor.doFinal(ciphertext, output);
+		} catch (AEADBadTagException e) {
+			throw new ServerException(ServerException.Type.MAC_NOT_EQUAL);
+		} catch (GeneralSecurityException e) {
+			throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+		} finally {
+			if (ciphertext != input) getFrameBufferPool().release(ciphertext);
+		}
+
+		inboundSequence = sequence;
+		return sequence;
+	}
+
+	/**
+	 * Makes the nonce of a GCM frame.
+	 * @param direction {@code MessageUtilities.AEAD_CLIENT_TO_SERVER} or {@code MessageUtilities.AEAD_SERVER_TO_CLIENT}, both directions use the same key.
+	 * @param sequence
+	 * @return
+	 */
+	private GCMParameterSpec nonce(int direction, long sequence) {
+		ByteBuffer.wrap(nonce).putInt(direction).putLong(sequence);
+		return new GCMParameterSpec(MessageUtilities.AEAD_TAG_LENGTH * 8, nonce);
 	}
 
 	public byte[] decryptWithSecretKey(byte[] bytes) throws ServerException {
@@ -215,6 +662,117 @@ public class Socket {
 		}
 	}
 
+	/**
+	 * Decrypts the remaining bytes of input into output. It's decrypted without padding, and the PKCS5 padding is checked and
+	 * removed here: the cipher doesn't allocate an array for the padded plaintext.
+	 * Ciphers only work without copies over arrays, so a direct input is first copied to a heap buffer of the frame pool.
+	 * @param input
+	 * @param output A heap buffer, needs at least input.remaining() bytes remaining.
+	 * @throws ServerException if the socket doesn't have secret key, or the ciphertext or its padding are wrong.
+	 */
+	public void decryptWithSecretKey(ByteBuffer input, ByteBuffer output) throws ServerException {
+		if (secretKeyCipherDecryptorWithoutPadding == null) throw new ServerException(ServerException.Type.SECRET_KEY_NEEDED);
+
+		int length = input.remaining();
+		if (length == 0 || length % MessageUtilities.SECRET_KEY_BLOCK_SIZE != 0)
+			throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+
+		ByteBuffer ciphertext = input;
+		if (!input.hasArray()) {
+			ciphertext = length > getFrameBufferPool().getMaxCapacity() ? ByteBuffer.allocate(length) : getFrameBufferPool().lease(length);
+			ciphertext.put(input).flip();
+		}
+
+		try {
+			secretKeyCipherDecryptorWithoutPadding.doFinal(ciphertext, output);
+		} catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+			throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+		} finally {
+			if (ciphertext != input) getFrameBufferPool().release(ciphertext);
+		}
+
+		int end = output.position();
+		int padding = output.get(end - 1) & 0xFF;
+		if (padding == 0 || padding > MessageUtilities.SECRET_KEY_BLOCK_SIZE)
+			throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+		for (int i = end - padding; i < end; i++) {
+			if ((output.get(i) & 0xFF) != padding) throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+		}
+		output.position(end - padding);
+	}
+
+	/**
+	 * Encrypts the remaining bytes of input into output.
+	 * If input has room for the padding after its limit (up to {@code MessageUtilities.SECRET_KEY_BLOCK_SIZE} bytes), the
+	 * PKCS5 padding is written there and it's encrypted without padding: the result is the same, but the cipher doesn't
+	 * copy the input to pad it. So, with heap buffers there are no copies neither allocations.
+	 * @param input
+	 * @param output Needs {@code getEncryptedLength(input.remaining())} bytes remaining.
+	 * @return the number of bytes written into output.
+	 * @throws ServerException
+	 */
+	public int encryptWithSecretKey(ByteBuffer input, ByteBuffer output) throws ServerException {
+		if (secretKeyCipherEncryptor == null) throw new ServerException(ServerException.Type.SECRET_KEY_NEEDED);
+		try {
+			int padding = MessageUtilities.SECRET_KEY_BLOCK_SIZE - input.remaining() % MessageUtilities.SECRET_KEY_BLOCK_SIZE;
+			if (input.capacity() - input.limit() >= padding) {
+				int limit = input.limit();
+				input.limit(limit + padding);
+				for (int i = limit; i < limit + padding; i++) {
+					input.put(i, (byte) padding);
+				}
+				return secretKeyCipherEncryptorWithoutPadding.doFinal(input, output);
+			}
+			return secretKeyCipherEncryptor.doFinal(input, output);
+		} catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+			throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+		}
+	}
+
+	/**
+	 * Encrypts a plaintext made of two parts, fields and the remaining bytes of tail, into output.
+	 * The PKCS5 padding is written into tail after its limit, and the cipher goes through the fields array without copying it,
+	 * so the fields can be shared by several sockets (see {@code FrameEncoder.seal}).
+	 * @param fields
+	 * @param offset
+	 * @param length Better a multiple of {@code MessageUtilities.SECRET_KEY_BLOCK_SIZE}: otherwise, the cipher keeps the partial block and copies it.
+	 * @param tail Needs room after its limit for {@code MessageUtilities.SECRET_KEY_BLOCK_SIZE} bytes.
+	 * @param output A heap buffer, needs {@code getEncryptedLength(length + tail.remaining())} bytes remaining.
+	 * @return the number of bytes written into output.
+	 * @throws ServerException
+	 */
+	public int encryptWithSecretKey(byte[] fields, int offset, int length, ByteBuffer tail, ByteBuffer output) throws ServerException {
+		if (secretKeyCipherEncryptor == null) throw new ServerException(ServerException.Type.SECRET_KEY_NEEDED);
+
+		int padding = MessageUtilities.SECRET_KEY_BLOCK_SIZE - (length + tail.remaining()) % MessageUtilities.SECRET_KEY_BLOCK_SIZE;
+		int limit = tail.limit();
+		tail.limit(limit + padding);
+		for (int i = limit; i < limit + padding; i++) {
+			tail.put(i, (byte) padding);
+		}
+
+		try {
+			int written = secretKeyCipherEncryptorWithoutPadding.update(fields, offset, length,
+					output.array(), output.arrayOffset() + output.position()); //the last partial block is kept by the cipher.
+			output.position(output.position() + written);
+			return written + secretKeyCipherEncryptorWithoutPadding.doFinal(tail, output);
+		} catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+			throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+		}
+	}
+
+	/**
+	 * Gets the length of the encryption of a plaintext. With GCM, the sequence and the tag are included.
+	 * @param plaintextLength
+	 * @return
+	 * @throws ServerException if the socket doesn't have secret key.
+	 */
+	public int getEncryptedLength(int plaintextLength) throws ServerException {
+		if (!hasSecretKey()) throw new ServerException(ServerException.Type.SECRET_KEY_NEEDED);
+		if (usesAead()) return MessageUtilities.AEAD_SEQUENCE_LENGTH + plaintextLength + MessageUtilities.AEAD_TAG_LENGTH;
+		return secretKeyCipherEncryptor.getOutputSize(plaintextLength);
+	}
+
 	public byte[] encryptWithSecretKey(byte[] bytes) throws ServerException {
 		try {
 			return secretKeyCipherEncryptor.doFinal(bytes);
@@ -4,25 +4,54 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
 
 /**
- * This class is Runnable, to run with the accepter thread (the thread that accepts new connexions).
- * {@code run()}: When a new connection comes through the ServerSocketChannel, a SocketChannel will be
- * created and added to the queue ({@code ArrayBlockingQueue}). This queue is shared with {@SocketProcessor}.
+ * Accepts new connexions and gives them to the {@SocketProcessor}'s, chosen according to {@code Balancing}.
+ * With {@code Mode.ACCEPTER_THREAD} it's Runnable, to run with the accepter thread: {@code run()} waits for new connections
+ * with a blocking {@code ServerSocketChannel.accept()} and puts them to the queue ({@code ArrayBlockingQueue}) of a {@code SocketProcessor}.
+ * With {@code Mode.SELECTOR} the {@code ServerSocketChannel} is non-blocking and registered with {@code SelectionKey.OP_ACCEPT}
+ * at the first {@code SocketProcessor}, which calls {@code acceptPendingConnections(SocketProcessor)} when there are new connections.
  * @author xsala
  *
  */
 public class SocketAccepter implements Runnable {
 
+	/**How the new sockets are distributed among the {@code SocketProcessor}'s*/
+	public enum Balancing {
+		/**One socket for each processor, in turn.*/
+		ROUND_ROBIN,
+		/**The socket goes to the processor with less sockets, see {@code SocketProcessor.getLoad()}.*/
+		LEAST_LOADED
+	}
+
+	/**How the new connections are accepted*/
+	public enum Mode {
+		/**A thread blocked at {@code accept()}, see {@code run()}.*/
+		ACCEPTER_THREAD,
+		/**The first {@code SocketProcessor} accepts when its selector says there are new connections.*/
+		SELECTOR
+	}
+
 	/**{@code ServerSocketChannel} port*/
 	private int tcpPort = 0;
 
+	/**Maximum number of pending connections at the {@code ServerSocketChannel}. 0 is the system default.*/
+	private int backlog = 0;
+
+	/**Maximum number of connections accepted each time the selector says there are new connections, at {@code Mode.SELECTOR}.
+	 * So a connection storm doesn't stop the processor from reading and writing.*/
+	private int acceptBatchSize = 1;
+
 	/**The {@ServerSocketChannel}. It wait for new connections creating a {@code SocketChannel}. The {@code SocketChannel}'s created with an incoming connection is put to a {@code Queue}*/
 	private ServerSocketChannel serverSocket = null;
 
-	/**A {@code Queue} with all the Socket of the incoming connections. This class {@code Non.blocking.server.Socket} contains the {@SocketChannel}'s of the incoming connections.*/
-	private Queue<Socket> socketQueue = null;
+	/**The {@code SocketProcessor}'s that take the sockets. Each one has its own queue, see {@code SocketProcessor.offerNewSocket(Socket)}.*/
+	private SocketProcessor[] socketProcessors = null;
+
+	private Balancing balancing = Balancing.ROUND_ROBIN;
+
+	/**Next processor for {@code Balancing.ROUND_ROBIN}*/
+	private int nextProcessor = 0;
 
 	/**If it is turn {@code true} the SocketAccepter will turn off*/
 	private volatile boolean hasToStop = false;
@@ -30,37 +59,133 @@ public class SocketAccepter implements Runnable {
 	/**
 	 * Constructor.
 	 * @param tcpPort The server port for waiting for incoming connections.
-	 * @param socketQueue Maybe {@code ArrayBlockingQueue}.
+	 * @param backlog Maximum number of pending connections. 0 is the system default.
+	 * @param acceptBatchSize Maximum number of connections accepted at once with {@code Mode.SELECTOR}.
+	 * @param socketProcessors The {@code SocketProcessor}'s that take the new sockets.
+	 * @param balancing How the new sockets are distributed among the socketProcessors.
 	 */
-	public SocketAccepter (int tcpPort, Queue<Socket> socketQueue) {
+	public SocketAccepter (int tcpPort, int backlog, int acceptBatchSize, SocketProcessor[] socketProcessors, Balancing balancing) {
 		this.tcpPort = tcpPort;
-		this.socketQueue = socketQueue;
+		this.backlog = backlog;
+		this.acceptBatchSize = Math.max(1, acceptBatchSize);
+		this.socketProcessors = socketProcessors;
+		this.balancing = balancing;
 	}
-	@Override
-	public void run() {
-		try {
-			serverSocket = ServerSocketChannel.open();
-			serverSocket.bind(new InetSocketAddress(tcpPort));
 
-		} catch (IOException e) {
-			e.printStackTrace();
-			return;
+	/**
+	 * Opens and binds the {@code ServerSocketChannel} with {@code backlog}.
+	 * @param mode With {@code Mode.SELECTOR} the channel is set to non-blocking and registered at the first {@code SocketProcessor}.
+	 * @throws IOException
+	 */
+	public void open(Mode mode) throws IOException {
+		serverSocket = ServerSocketChannel.open();
+		serverSocket.bind(new InetSocketAddress(tcpPort), backlog);
+
+		if (mode == Mode.SELECTOR) {
+			serverSocket.configureBlocking(false);
+			socketProcessors[0].registerAccepter(serverSocket, this);
 		}
+	}
 
-		while (!hasToStop) {
+	/**
+	 * Accepts with {@code Mode.ACCEPTER_THREAD}. {@code open(Mode)} has to be called before.
+	 */
+	@Override
+	public void run() {
+		while (!hasToStop && serverSocket.isOpen()) {
 			try {
 				SocketChannel socketChannel = this.serverSocket.accept(); //blocking mode, will wait until a new connection enters.
-				socketQueue.add(new Socket(socketChannel)); //It's an ArrayBlockingQueue, so, if the queue is full the thread will wait until the socket can be put.
+				Socket socket = new Socket(socketChannel);
+				SocketProcessor chosen = chooseProcessor();
+
+				if (!chosen.offerNewSocket(socket) && !offerToAnyProcessor(socket)) {
+					chosen.putNewSocket(socket); //all the queues are full, waits. The new connections wait at the backlog.
+				}
 			} catch (IOException e) {
+				if (!hasToStop) e.printStackTrace(); //closed by close() otherwise.
+			} catch (InterruptedException e) {
 				e.printStackTrace();
+				return;
+			}
+		}
+
+
+	}
+
+	/**
+	 * Accepts with {@code Mode.SELECTOR}. Called by the processor thread of {@code acceptingProcessor} when the
+	 * {@code ServerSocketChannel} is ready. Accepts until there are no more pending connections or {@code acceptBatchSize}
+	 * connections have been accepted, the rest will be accepted at the next cycle.
+	 * If the chosen processor's queue is full, the socket is taken by {@code acceptingProcessor}, so no connection is dropped.
+	 * @param acceptingProcessor The processor whose selector has the {@code ServerSocketChannel}.
+	 */
+	void acceptPendingConnections(SocketProcessor acceptingProcessor) {
+		for (int i = 0; i < acceptBatchSize && !hasToStop; i++) {
+			SocketChannel socketChannel;
+			try {
+				socketChannel = serverSocket.accept(); //non-blocking, null if there are no pending connections.
+			} catch (IOException e) {
+				if (!hasToStop) e.printStackTrace();
+				return;
+			}
+
+			if (socketChannel == null) return;
+
+			Socket socket = new Socket(socketChannel);
+			SocketProcessor chosen = chooseProcessor();
+			if (chosen == acceptingProcessor || !chosen.offerNewSocket(socket)) {
+				acceptingProcessor.takeSocket(socket);
 			}
 		}
+	}
 
+	/**
+	 * Tries to put the socket to the queue of any processor.
+	 * @param socket
+	 * @return false if all the queues are full.
+	 */
+	private boolean offerToAnyProcessor(Socket socket) {
+		for (SocketProcessor socketProcessor : socketProcessors) {
+			if (socketProcessor.offerNewSocket(socket)) return true;
+		}
+		return false;
+	}
 
+	/**
+	 * Chooses the {@code SocketProcessor} for a new socket according to {@code balancing}.
+	 * @return
+	 */
+	private SocketProcessor chooseProcessor() {
+		if (balancing == Balancing.LEAST_LOADED) {
+			SocketProcessor chosen = socketProcessors[0];
+			for (int i = 1; i < socketProcessors.length; i++) {
+				if (socketProcessors[i].getLoad() < chosen.getLoad()) {
+					chosen = socketProcessors[i];
+				}
+			}
+			return chosen;
+		}
+
+		SocketProcessor chosen = socketProcessors[nextProcessor];
+		nextProcessor = (nextProcessor + 1) % socketProcessors.length;
+		return chosen;
 	}
 
 	public void stop() {
 		hasToStop = true;
 	}
 
+	/**
+	 * Stops accepting and closes the {@code ServerSocketChannel}, so a blocked {@code accept()} returns and the port is free.
+	 * The pending connections are refused.
+	 */
+	public void close() {
+		hasToStop = true;
+		try {
+			if (serverSocket != null) serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 }
@@ -1,22 +1,33 @@
 package Non.blocking.server;
 
+import Non.blocking.server.messages.BufferPool;
+import Non.blocking.server.messages.ChunkedTransfers;
+import Non.blocking.server.messages.FrameEncoder;
+import Non.blocking.server.messages.MessageReader;
+import Non.blocking.server.messages.MessageUtilities;
+import Non.blocking.server.messages.SessionTickets;
+import Non.blocking.server.messages.SlowConsumerPolicy;
+
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class is Runnable, to run with the processor thread (the thread that processes the connections).
  * inboundSocketQueue is an ArrayBlockingQueue shared with {@code SocketAccepter}.
  * puts the {@code Socket} (contains {@code SocketChannel} to the queue.
- * (TODO)
+ * The thread blocks at {@code Selector.select()} until some channel is ready for reading or {@code wakeup()} is called.
+ * The server can run several instances, each one with its own thread, selector and sockets. A {@code Socket} is only
+ * accessed by the thread of its {@code SocketProcessor}, other threads have to use {@code execute(Runnable)}.
  * @author xsala
  *
  */
@@ -25,224 +36,643 @@ public class SocketProcessor implements Runnable {
 	private volatile boolean hasToStop = false;
 
 	/**The queue of {@code Socket}'s that is shared with {@code SocketAccepter}, see {@code Server.socketQueue}*/
-	private Queue<Socket> inboundSocketQueue = null;
+	private BlockingQueue<Socket> inboundSocketQueue = null;
+
+	/**The logged {@code Socket}'s of all the {@code SocketProcessor}'s, shared.*/
+	private SessionRegistry sessionRegistry = null;
+
+	/**Tasks sent from other threads (see {@code execute(Runnable)}), they will be run by the processor thread.*/
+	private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**Pool of direct buffers for the sockets of this processor. Only used by the processor thread.*/
+	public final BufferPool bufferPool = new BufferPool(MessageReader.READ_BUFFER_SIZE, 256);
+
+	/**Pool of heap buffers for the outbound frames of the sockets of this processor. Only used by the processor thread.*/
+	public final BufferPool frameBufferPool = new BufferPool(FrameEncoder.MAX_POOLED_FRAME_LENGTH, 256, false);
+
+	/**Encodes the outbound messages of the sockets of this processor. Only used by the processor thread.*/
+	public final FrameEncoder frameEncoder = new FrameEncoder();
+
+	/**Runs the handshake crypto of the sockets, shared by all the processors. If it's null, the handshakes are done by the processor thread.*/
+	private HandshakeExecutor handshakeExecutor = null;
+
+	/**Verifies the passwords of the sockets, shared by all the processors. If it's null, they are verified by the processor thread.*/
+	private AuthExecutor authExecutor = null;
+
+	/**Tickets for resuming sessions, shared by all the processors. See {@code SessionTickets}*/
+	private SessionTickets sessionTickets = null;
+
+	/**Limits of the outbound queue of each socket (see {@code MessageWriter.setLimits})*/
+	private int maxQueuedMessages = Integer.MAX_VALUE;
+	private long maxQueuedBytes = Long.MAX_VALUE;
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+
+	/**Watermarks of the outbound queue of each socket for pausing the senders (see {@code MessageWriter.setWatermarks})*/
+	private long highWatermark = Long.MAX_VALUE;
+	private long lowWatermark = Long.MAX_VALUE;
+
+	/**Timeouts of the sockets, in milliseconds, 0 for none: until the secret key is received, until the client is
+	 * logged (both since the connection is taken) and without reading from the client.*/
+	private long handshakeTimeout = 0;
+	private long loginTimeout = 0;
+	private long idleTimeout = 0;
 
-	/**A Map with all active logged {@code Socket}'s. <Socket.socketId, Socket>*/
-	private Map<String, Socket> loggedSockets = new HashMap<String, Socket>();
+	/**Milliseconds without chunks before a chunked transfer is dropped (see {@code ChunkedTransfers}), 0 for none*/
+	private long transferTimeout = 0;
 
-	/**A map with all active non-logged {@code Socket}'s*/
-	private Set<Socket> nonLoggedSockets = new HashSet<Socket>();
+	/**Precision of the timeouts*/
+	public static final long TIMER_TICK_MILLIS = 1000;
 
+	/**Deadlines of the sockets for the timeouts. Only used by the processor thread.*/
+	private final TimerWheel timerWheel = new TimerWheel(512, TIMER_TICK_MILLIS, System.currentTimeMillis());
 
-	/**{@code Selector} with {@code Socket.SocketChannel}'s with {@code SelectionKey.READ_OP}.*/
-	private Selector readSelector = null;
+	/**When the processor stops, in milliseconds, see {@code drain(long)}. 0 while it runs.*/
+	private volatile long drainDeadline = 0;
 
-	/**{@code Selector} with {@code Socket.SocketChannel}'s with {@code SelectionKey.WRITE_OP}.*/
-	private Selector writeSelector = null;
+	/**BYE has been sent to the sockets, at the first cycle of the draining. Only used by the processor thread.*/
+	private boolean byeSent = false;
 
-	private long nextSocketId = 0;
+	/**Number of sockets of this {@code SocketProcessor}. Only written by the processor thread.*/
+	private volatile int connectionCount = 0;
 
 
+	/**{@code Selector} with all the {@code Socket.SocketChannel}'s. The processor thread blocks on it until some channel
+	 * is ready or until {@code wakeup()} is called.*/
+	private Selector selector = null;
 
-	public SocketProcessor(Queue<Socket> inboundSocketQueue) throws IOException {
+	/**The thread running {@code run()}. Used by {@code wakeup()} to skip useless wakeups from the processor thread itself.*/
+	private volatile Thread processorThread = null;
+
+	/**Shared by all the {@code SocketProcessor}'s, so socketId's are unique at the server.*/
+	private static final AtomicLong nextSocketId = new AtomicLong();
+
+
+
+	/**
+	 * Constructor.
+	 * @param inboundSocketQueue The queue where {@code SocketAccepter} puts the new sockets for this processor.
+	 * @param sessionRegistry Shared by all the {@code SocketProcessor}'s of the server.
+	 * @throws IOException
+	 */
+	public SocketProcessor(BlockingQueue<Socket> inboundSocketQueue, SessionRegistry sessionRegistry) throws IOException {
 		this.inboundSocketQueue = inboundSocketQueue; //passed an ArrayBlockingQueue
-		this.readSelector = Selector.open(); //creates a selector for reading.
-		this.writeSelector = Selector.open(); //creates a selector for writing.
+		this.sessionRegistry = sessionRegistry;
+		this.selector = Selector.open(); //creates the selector for reading.
 	}
 
 
 
 	@Override
 	public void run() {
-		while (!hasToStop) {
+		processorThread = Thread.currentThread();
+		MessageUtilities.prepareCurrentThread();
+		while (!hasToStop && !isDrained()) {
 			try {
 				executeCycle();
 			} catch(IOException e) {
 				e.printStackTrace();
 			}
+		}
+		closeAll();
+	}
+
+
+	/**
+	 * Execute a cycle calling {@code takeNewSockets()}, waits for ready channels, calls {@code processSelectedKeys()}
+	 * and closes the sockets out of time. The closed sockets are removed when they are closed (see {@code socketClosed(Socket)}).
+	 * @throws IOException
+	 */
+	private void executeCycle() throws IOException {
+		takeNewSockets();
+		runTasks();
+		if (drainDeadline != 0 && !byeSent) {
+			sendByes(); //after the tasks: the messages forwarded before stopping reading go before BYE.
+		}
+
+		//blocks until some channel is ready for reading, ready for writing with messages to send, wakeup() is called
+		//or the next tick of the timeouts (or the drain deadline).
+		long now = System.currentTimeMillis();
+		long timeout = timerWheel.getTimeout(now);
+		if (drainDeadline != 0) {
+			long left = Math.max(1, drainDeadline - now);
+			timeout = timeout == 0 ? left : Math.min(timeout, left);
+		}
+		selector.select(timeout);
+
+		now = System.currentTimeMillis();
+		processSelectedKeys(now);
+		expireTimeouts(now);
+	}
+
+	/**
+	 * Tries to put a new socket to the inbound queue and wakes up the processor. Called by {@code SocketAccepter}.
+	 * @param socket
+	 * @return false if the inbound queue is full, the socket hasn't been put.
+	 */
+	public boolean offerNewSocket(Socket socket) {
+		if (!inboundSocketQueue.offer(socket)) return false;
+		wakeup();
+		return true;
+	}
+
+	/**
+	 * Puts a new socket to the inbound queue, waiting if the queue is full, and wakes up the processor.
+	 * @param socket
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public void putNewSocket(Socket socket) throws InterruptedException {
+		inboundSocketQueue.put(socket);
+		wakeup();
+	}
+
+	/**
+	 * Registers the {@code ServerSocketChannel} of the accepter with {@code SelectionKey.OP_ACCEPT}, so this processor
+	 * accepts the new connections (see {@code SocketAccepter.Mode.SELECTOR}). Has to be called before the processor starts.
+	 * @param serverSocket A non-blocking and bound {@code ServerSocketChannel}.
+	 * @param socketAccepter The accepter, attached to the key.
+	 * @throws IOException
+	 */
+	public void registerAccepter(ServerSocketChannel serverSocket, SocketAccepter socketAccepter) throws IOException {
+		serverSocket.register(selector, SelectionKey.OP_ACCEPT, socketAccepter);
+	}
 
+	/**
+	 * Runs the task at the processor thread. If it's called from the processor thread, the task runs now.
+	 * Otherwise, it's enqueued and the processor is woken up.
+	 * Used when a {@code Socket} of this processor has to be accessed from another processor.
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		if (isProcessorThread()) {
+			task.run();
+		} else {
+			tasks.add(task);
+			wakeup();
+		}
+	}
+
+	/**
+	 * Checks if it's called from the processor thread. Then, {@code execute(Runnable)} runs the task now.
+	 * @return
+	 */
+	public boolean isProcessorThread() {
+		return Thread.currentThread() == processorThread;
+	}
+
+	/**
+	 * Runs the tasks enqueued by {@code execute(Runnable)}.
+	 */
+	private void runTasks() {
+		Runnable task = tasks.poll();
+		while (task != null) {
 			try {
-				Thread.sleep(1000); //Give me some rest time, says the thread.
-			} catch (InterruptedException e) {
+				task.run();
+			} catch (RuntimeException e) {
 				e.printStackTrace();
 			}
+			task = tasks.poll();
 		}
+	}
 
+	/**
+	 * The load of this processor: its sockets plus the sockets waiting at the inbound queue.
+	 * @return
+	 */
+	public int getLoad() {
+		return connectionCount + inboundSocketQueue.size();
 	}
 
+	/**
+	 * Wakes up the processor thread if it is blocked at {@code select()}. Has to be called when a new {@code Socket} is
+	 * put to the inbound queue, when a task is enqueued or when the interest set of a key is changed from another thread.
+	 * Does nothing if it's called from the processor thread, it will select again with the new interest set.
+	 */
+	public void wakeup() {
+		if (Thread.currentThread() != processorThread) {
+			selector.wakeup();
+		}
+	}
 
 	/**
-	 * Execute a cycle calling {@code takeNewSockets()}, {@code readFromSockets} and {@code writeToSockets}
-	 * @throws IOException
+	 * Adds {@code SelectionKey.OP_WRITE} to the socket's key. Called by {@code MessageWriter} when it stops being empty.
+	 * @param socket
 	 */
-	private void executeCycle() throws IOException {
-		deleteNonConnecteds();// <--Should be changed. Non connected clients are not detected with socketChannel.isConnected()
-		takeNewSockets();
-		readFromSockets();
-		writeToSockets();
+	public void enableWriteInterest(Socket socket) {
+		SelectionKey key = socket.socketChannel.keyFor(selector);
+		if (key != null && key.isValid()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			wakeup();
+		}
 	}
 
 	/**
-	 * Deletes non connected sockets from {@code loggedSockets} and {@code nonLoggedSockets}.
-	 * Doesn't detect if client is closed. Only detects if it's closed by server.
+	 * Adds {@code SelectionKey.OP_READ} to the socket's key. See {@code Socket.resumeReading(int)}.
+	 * @param socket
 	 */
-	private void deleteNonConnecteds() {
+	public void enableReadInterest(Socket socket) {
+		SelectionKey key = socket.socketChannel.keyFor(selector);
+		if (key != null && key.isValid()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			wakeup();
+		}
+	}
 
-		Iterator<Socket> iterator = loggedSockets.values().iterator();
-		while (iterator.hasNext()) {
-			Socket s = iterator.next();
-			if (!s.socketChannel.isConnected()){
-				removeKeys(s);
-				iterator.remove();
-			}
-			//readSelector.selectedKeys()
+	/**
+	 * Removes {@code SelectionKey.OP_READ} from the socket's key. See {@code Socket.pauseReading(int)}.
+	 * @param socket
+	 */
+	public void disableReadInterest(Socket socket) {
+		SelectionKey key = socket.socketChannel.keyFor(selector);
+		if (key != null && key.isValid()) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Removes {@code SelectionKey.OP_WRITE} from the socket's key. Called by {@code MessageWriter} when it has sent all its messages.
+	 * @param socket
+	 */
+	public void disableWriteInterest(Socket socket) {
+		SelectionKey key = socket.socketChannel.keyFor(selector);
+		if (key != null && key.isValid()) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	}
 
+	/**
+	 * Deletes a closed socket of this processor from {@code sessionRegistry}, the selector and the timeouts.
+	 * Called by {@code Socket.close()}, so only the closed sockets are looked at.
+	 * @param s
+	 */
+	void socketClosed(Socket s) {
+		if (s.userName != null) {
+			sessionRegistry.unsubscribe(s);
+			sessionRegistry.unregister(s.userName, s);
 		}
+		removeKeys(s);
+		timerWheel.cancel(s);
+		connectionCount--;
+	}
 
-		iterator = nonLoggedSockets.iterator();
-		while (iterator.hasNext()) {
-			Socket s = iterator.next();
-			if (!s.socketChannel.isConnected()) {
-				removeKeys(s);
-				iterator.remove();
+	/**
+	 * Closes the sockets whose deadline has passed (see {@code getDeadline(Socket)}), and drops their idle chunked
+	 * transfers. The deadline of a socket is only calculated again when it expires, so reading doesn't touch the timer
+	 * wheel: an active socket is rescheduled.
+	 * @param now
+	 */
+	private void expireTimeouts(long now) {
+		List<Socket> expired = timerWheel.expire(now);
+		for (int i = 0; i < expired.size(); i++) {
+			Socket s = expired.get(i);
+			long deadline = getDeadline(s);
+			if (s.isReadingPaused()) {
+				deadline = Math.max(deadline, now + TIMER_TICK_MILLIS); //it doesn't read because of the server.
+			}
+			if (deadline <= now) {
+				s.close();
+				continue;
+			}
+			if (transferTimeout > 0 && s.hasChunkedTransfers()) {
+				ChunkedTransfers chunkedTransfers = s.getChunkedTransfers();
+				chunkedTransfers.expire(now, transferTimeout);
+				deadline = Math.min(deadline, getTransferDeadline(chunkedTransfers));
 			}
+			if (deadline != Long.MAX_VALUE) timerWheel.schedule(s, deadline);
 		}
 	}
 
+	/**
+	 * @param s
+	 * @return When the socket is out of time: handshake timeout without secret key, login timeout without being logged,
+	 * otherwise idle timeout. Long.MAX_VALUE for none.
+	 */
+	private long getDeadline(Socket s) {
+		if (!s.hasSecretKey() && handshakeTimeout > 0) return s.acceptTime + handshakeTimeout;
+		if (s.userName == null && loginTimeout > 0) return s.acceptTime + loginTimeout;
+		return idleTimeout > 0 ? s.lastReadTime + idleTimeout : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @param chunkedTransfers
+	 * @return When the longest idle transfer is out of time.
+	 */
+	private long getTransferDeadline(ChunkedTransfers chunkedTransfers) {
+		long oldest = chunkedTransfers.getOldestChunkTime();
+		return oldest == Long.MAX_VALUE ? Long.MAX_VALUE : oldest + transferTimeout;
+	}
+
+	/**
+	 * Schedules the socket for the transfer timeout of a transfer just started, if it isn't scheduled before.
+	 * Only called by the processor thread (see {@code Socket.scheduleTransferTimeout()}).
+	 * @param s
+	 */
+	void scheduleTransferTimeout(Socket s) {
+		if (transferTimeout <= 0 || s.socketChannel == null || !s.socketChannel.isOpen()) return;
+		long deadline = System.currentTimeMillis() + transferTimeout;
+		if (s.timerSlot < 0 || s.timerDeadline > deadline) timerWheel.schedule(s, deadline);
+	}
+
+	/**
+	 * Sets the timeout of the chunked transfers. Has to be called before the processor starts.
+	 * @param transferTimeout Milliseconds without chunks before a transfer is dropped, 0 for none.
+	 */
+	public void setTransferTimeout(long transferTimeout) {
+		this.transferTimeout = transferTimeout;
+	}
+
+	/**
+	 * Sets the timeouts of the sockets. Has to be called before the processor starts.
+	 * @param handshakeTimeout Milliseconds to receive the secret key since the connection, 0 for none.
+	 * @param loginTimeout Milliseconds to be logged since the connection, 0 for none.
+	 * @param idleTimeout Milliseconds without reading from a client, 0 for none.
+	 */
+	public void setTimeouts(long handshakeTimeout, long loginTimeout, long idleTimeout) {
+		this.handshakeTimeout = handshakeTimeout;
+		this.loginTimeout = loginTimeout;
+		this.idleTimeout = idleTimeout;
+	}
+
 
 	private void removeKeys (Socket s ){
-		SelectionKey sk = s.socketChannel.keyFor(readSelector);
+		SelectionKey sk = s.socketChannel.keyFor(selector);
 		if (sk!=null){
 			sk.cancel();
 		}
-		sk = s.socketChannel.keyFor(writeSelector);
-		if (sk != null) {
-			sk.cancel();
-		}
 	}
 
 
 	/**
-	 * Takes all new sockets if exists, from {@code this.inboundSocketQueue}.
-	 * Sets to non-blocking mode and puts into {@code this.nonLoggedSockets}.
-	 * Sets nonLogged an loggedSockets to the new socket.
-	 * Registers the new socket's SocketChannel to the readSelector and writeSelector.
-	 * @throws IOException
+	 * Takes all new sockets if exists, from {@code this.inboundSocketQueue} and calls {@code takeSocket(Socket)}.
 	 */
-	private void takeNewSockets() throws IOException {
+	private void takeNewSockets() {
 		Socket newSocket = this.inboundSocketQueue.poll(); //it doesn't block. Return null or retrieves and removes the head of the queue.
 
 
 		//Loop while we have new sockets.
 		while (newSocket != null) {
 
+			takeSocket(newSocket);
+
+			//This will get another socket from inboundSocketQueue contains more, and will repeat while loop.
+			//If there is no more sockets, will return null and exists from loop.
+			newSocket = this.inboundSocketQueue.poll();
+
+		}
+	}
 
+	/**
+	 * Sets the socket to non-blocking mode and sets the sessionRegistry to the new socket.
+	 * Registers the new socket's SocketChannel to the selector and sends the welcome message.
+	 * Has to be called by the processor thread. If the socket can't be registered, it's closed.
+	 * @param newSocket
+	 */
+	void takeSocket(Socket newSocket) {
+		SelectionKey key;
+		try {
 			//turns the SocketChannel to non-blocking.
 			newSocket.socketChannel.configureBlocking(false);
 
-			newSocket.socketId = nextSocketId++;
-
-			//puts the new socket into the nonLoggedSocketsSet.
-			this.nonLoggedSockets.add(newSocket);
+			//associates the new socket with the selector. OP_WRITE will be added when the socket has messages to send.
+			key = newSocket.socketChannel.register(this.selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			e.printStackTrace();
+			try {
+				newSocket.socketChannel.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+			return;
+		}
 
-			//sets logged and nonLoggedSockets at newSocket
-			newSocket.nonLoggedSockets = nonLoggedSockets;
-			newSocket.loggedSockets = loggedSockets;
+		newSocket.socketId = nextSocketId.getAndIncrement();
 
-			newSocket.sendWelcome();
+		newSocket.socketProcessor = this;
 
-			//associates the new socket with the readSelector.
-			SelectionKey key = newSocket.socketChannel.register(this.readSelector, SelectionKey.OP_READ);
+		newSocket.messageWriter.setLimits(maxQueuedMessages, maxQueuedBytes, slowConsumerPolicy);
+		newSocket.messageWriter.setWatermarks(highWatermark, lowWatermark);
 
-			//For socket recuperation at this.readFromSocket().
-			key.attach(newSocket);
+		//the socket's processor is set before the socket can be registered, so it's published with its session.
+		newSocket.sessionRegistry = sessionRegistry;
 
-			//associates the new socket with the readSelector.
-			key = newSocket.socketChannel.register(this.writeSelector, SelectionKey.OP_WRITE);
+		//For socket recuperation at this.processSelectedKeys().
+		key.attach(newSocket);
 
-			//For socket recuperation at this.readFromSocket().
-			key.attach(newSocket);
+		connectionCount++;
 
-			//This will get another socket from inboundSocketQueue contains more, and will repeat while loop.
-			//If there is no more sockets, will return null and exists from loop.
-			newSocket = this.inboundSocketQueue.poll();
+		newSocket.acceptTime = System.currentTimeMillis();
+		newSocket.lastReadTime = newSocket.acceptTime;
+		long deadline = getDeadline(newSocket);
+		if (deadline != Long.MAX_VALUE) timerWheel.schedule(newSocket, deadline);
 
-		}
+		newSocket.sendWelcome();
 	}
 
-	private void writeToSockets() throws IOException {
-		int writeReady = this.writeSelector.selectNow();
-
-		if (writeReady > 0) {
+	/**
+	 * Gets all the keys selected at the last {@code select()}.
+	 * For each ready for read socket calls {@code Socket.read()} and for each ready for write socket calls {@code Socket.write()}.
+	 * Only sockets with messages to send have {@code SelectionKey.OP_WRITE} in their interest set.
+	 * @param now Time of the reads, for the idle timeout.
+	 */
+	private void processSelectedKeys(long now) {
+		//gets all the SelectionKey associated with the channels ready for reading or writing.
+		Set<SelectionKey> selectedKeys = this.selector.selectedKeys();
 
-			Set<SelectionKey> selectedKeys = this.writeSelector.selectedKeys();
+		if (!selectedKeys.isEmpty()) {
 			Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
 
-			while (keyIterator.hasNext()) {
+			while(keyIterator.hasNext()) {
+
 				SelectionKey key = keyIterator.next();
 
-				writeToSocket(key);
+				if (key.isValid() && key.isAcceptable()) {
+					((SocketAccepter) key.attachment()).acceptPendingConnections(this);
+					keyIterator.remove();
+					continue;
+				}
+
+				//getting the object associated with the key.
+				Socket socket = (Socket) key.attachment();
+
+				if (key.isValid() && key.isReadable()) {
+					socket.lastReadTime = now;
+					socket.read();
+				}
 
+				//key could be cancelled while reading.
+				if (key.isValid() && key.isWritable()) {
+					socket.write();
+				}
+
+				//We've processed the SocketChannel, thus we have to remove it from the Set<SelectionKey>
 				keyIterator.remove();
 			}
-		selectedKeys.clear();
 		}
 	}
 
 	/**
-	 * Gets all the sockets ready for read.
-	 * For each ready for read socket calls {@code readFromSocket()}
-	 * @throws IOException
+	 * Sets the executor for the handshake crypto. Has to be called before the processor starts.
+	 * @param handshakeExecutor null to do the handshakes at the processor thread.
 	 */
-	private void readFromSockets() throws IOException {
-		//gets the number of sockets ready for reading.
-		int readReady = this.readSelector.selectNow();
-
-		if (readReady > 0) {
-			//gets all the SelectionKey associated with the channels ready for reading.
-			Set<SelectionKey> selectedKeys = this.readSelector.selectedKeys();
-			Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+	public void setHandshakeExecutor(HandshakeExecutor handshakeExecutor) {
+		this.handshakeExecutor = handshakeExecutor;
+	}
 
-			while(keyIterator.hasNext()) {
+	/**
+	 * @return The executor for the handshake crypto, or null.
+	 */
+	public HandshakeExecutor getHandshakeExecutor() {
+		return handshakeExecutor;
+	}
 
-				SelectionKey key = keyIterator.next();
+	/**
+	 * Sets the executor for the password verifications. Has to be called before the processor starts.
+	 * @param authExecutor null to verify the passwords at the processor thread.
+	 */
+	public void setAuthExecutor(AuthExecutor authExecutor) {
+		this.authExecutor = authExecutor;
+	}
 
-				//calling readFromSocket reads the SocketChannel.
-				readFromSocket(key);
+	/**
+	 * @return The executor for the password verifications, or null.
+	 */
+	public AuthExecutor getAuthExecutor() {
+		return authExecutor;
+	}
 
-				//We've read the SocketChannel, thus we have to remove it from the Set<SelectionKey>
-				keyIterator.remove();
-			}
+	/**
+	 * Sets the session tickets for RESUME messages. Has to be called before the processor starts.
+	 * @param sessionTickets null if sessions can't be resumed.
+	 */
+	public void setSessionTickets(SessionTickets sessionTickets) {
+		this.sessionTickets = sessionTickets;
+	}
 
-			selectedKeys.clear(); //now we don't have selectedKeys//?if we have removed..?
-		}
+	/**
+	 * @return The session tickets, or null.
+	 */
+	public SessionTickets getSessionTickets() {
+		return sessionTickets;
 	}
 
 	/**
-	 * Reads the ChannelSocket associated with the key at the parameter.
-	 * @param key Contains the {@code Socket} to read.
-	 * @throws IOException
+	 * Sets the limits of the outbound queue of each socket. Has to be called before the processor starts.
+	 * @param maxQueuedMessages
+	 * @param maxQueuedBytes
+	 * @param slowConsumerPolicy What to do when a queue is full.
 	 */
-	private void readFromSocket(SelectionKey key ) throws IOException{
+	public void setOutboundQueueLimits(int maxQueuedMessages, long maxQueuedBytes, SlowConsumerPolicy slowConsumerPolicy) {
+		this.maxQueuedMessages = maxQueuedMessages;
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
 
+	/**
+	 * Sets the watermarks of the outbound queue of each socket for the backpressure. Has to be called before the processor starts.
+	 * @param highWatermark
+	 * @param lowWatermark
+	 */
+	public void setBackpressureWatermarks(long highWatermark, long lowWatermark) {
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+	}
 
-		//getting the object associated with the key.
-		Socket socket = (Socket) key.attachment();
+	/**
+	 * First step for stopping without losing messages (see {@code Server.stop(Duration)}): the sockets stop reading,
+	 * so no more messages are forwarded from this processor. The sockets taken later aren't read either.
+	 * @param whenStopped Run by the processor thread when the sockets don't read.
+	 */
+	public void stopReading(Runnable whenStopped) {
+		execute(() -> {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Socket) {
+					((Socket) key.attachment()).pauseReading(Socket.PAUSED_BY_SHUTDOWN);
+				}
+			}
+			whenStopped.run();
+		});
+	}
 
-		socket.read();
+	/**
+	 * Second step for stopping without losing messages, when no processor reads: runs the tasks (the messages
+	 * forwarded by other processors), sends BYE to the clients and sends the messages waiting to be sent. When all of
+	 * them are sent or the deadline is over, closes the sockets and the selector, and the processor thread finishes.
+	 * @param deadline In milliseconds.
+	 */
+	public void drain(long deadline) {
+		drainDeadline = Math.max(1, deadline);
+		wakeup();
+	}
 
+	/**
+	 * Sends BYE to the sockets with a secret key, the other ones can't decrypt it.
+	 */
+	private void sendByes() {
+		byeSent = true;
+		for (SelectionKey key : selector.keys()) {
+			if (!(key.attachment() instanceof Socket)) continue;
+			Socket socket = (Socket) key.attachment();
+			socket.pauseReading(Socket.PAUSED_BY_SHUTDOWN); //taken after stopReading.
+			if (key.isValid() && socket.hasSecretKey()) {
+				try {
+					socket.messageWriter.enqueueMessage(MessageUtilities.createBye(
+							socket.userName != null ? socket.userName : "client").getMessageInByteBuffer(socket));
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+		}
 	}
 
+	/**
+	 * @return true if the processor is draining (see {@code drain(long)}) and it has sent all the messages, or the
+	 * deadline is over.
+	 */
+	private boolean isDrained() {
+		if (drainDeadline == 0 || !byeSent) return false;
+		if (System.currentTimeMillis() >= drainDeadline) return true;
+		if (!tasks.isEmpty()) return false;
+
+		for (SelectionKey key : selector.keys()) {
+			if (key.isValid() && key.attachment() instanceof Socket && ((Socket) key.attachment()).hasMessagesToSend()) {
+				return false;
+			}
+		}
+		return true;
+	}
 
-	private void writeToSocket(SelectionKey key) {
+	/**
+	 * Closes all the sockets (also the ones not taken yet) and the selector. Called by the processor thread when it finishes.
+	 */
+	private void closeAll() {
+		for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+			if (key.attachment() instanceof Socket) {
+				((Socket) key.attachment()).close();
+			}
+		}
 
-		Socket socket = (Socket) key.attachment();
+		Socket notTaken;
+		while ((notTaken = inboundSocketQueue.poll()) != null) {
+			try {
+				notTaken.socketChannel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 
-		socket.write();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
+	/**
+	 * Stops the processor thread at once, without draining (see {@code drain(long)}). It's woken up if it's blocked
+	 * at {@code select()}.
+	 */
 	public void stop() {
 		hasToStop = true;
+		wakeup();
 	}
 
 
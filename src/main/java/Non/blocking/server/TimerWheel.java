@@ -0,0 +1,125 @@
+package Non.blocking.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timer wheel with the deadlines of the sockets of a {@code SocketProcessor} (handshake, login and idle timeouts).
+ * A socket is at the slot of its deadline tick, in a doubly linked list through the socket's fields, so scheduling and
+ * cancelling are O(1) and each tick only looks at one slot, not at all the sockets. A slot keeps the sockets of all the
+ * rounds of the wheel, a socket whose deadline is some rounds later stays there.
+ * Only used by the processor thread.
+ * @author xsala
+ *
+ */
+class TimerWheel {
+
+	/**Sockets of each slot, the first one of a linked list (see {@code Socket.timerNext})*/
+	private final Socket[] slots;
+
+	private final long tickMillis;
+
+	/**Last tick whose slot has been expired*/
+	private long currentTick;
+
+	/**Number of scheduled sockets*/
+	private int size = 0;
+
+	/**Result of {@code expire(long)}, reused*/
+	private final List<Socket> expired = new ArrayList<Socket>();
+
+	/**
+	 * Constructor.
+	 * @param slotCount A power of two.
+	 * @param tickMillis Precision of the deadlines, in milliseconds.
+	 * @param now Current time, in milliseconds.
+	 */
+	TimerWheel(int slotCount, long tickMillis, long now) {
+		if (Integer.bitCount(slotCount) != 1) throw new IllegalArgumentException("The slot count has to be a power of two.");
+		this.slots = new Socket[slotCount];
+		this.tickMillis = tickMillis;
+		this.currentTick = now / tickMillis;
+	}
+
+	/**
+	 * Schedules a socket, or reschedules it if it was scheduled.
+	 * @param socket
+	 * @param deadline In milliseconds. The socket expires at the first tick after it.
+	 */
+	void schedule(Socket socket, long deadline) {
+		cancel(socket);
+
+		long tick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1);
+		int slot = (int) (tick & (slots.length - 1));
+
+		socket.timerDeadline = deadline;
+		socket.timerSlot = slot;
+		socket.timerPrevious = null;
+		socket.timerNext = slots[slot];
+		if (slots[slot] != null) slots[slot].timerPrevious = socket;
+		slots[slot] = socket;
+		size++;
+	}
+
+	/**
+	 * Removes a socket from the wheel. Does nothing if it isn't scheduled.
+	 * @param socket
+	 */
+	void cancel(Socket socket) {
+		if (socket.timerSlot < 0) return;
+
+		if (socket.timerPrevious != null) {
+			socket.timerPrevious.timerNext = socket.timerNext;
+		} else {
+			slots[socket.timerSlot] = socket.timerNext;
+		}
+		if (socket.timerNext != null) socket.timerNext.timerPrevious = socket.timerPrevious;
+
+		socket.timerPrevious = null;
+		socket.timerNext = null;
+		socket.timerSlot = -1;
+		size--;
+	}
+
+	/**
+	 * Removes the sockets whose deadline has passed. Only the slots of the ticks since the last call are looked at.
+	 * @param now In milliseconds.
+	 * @return The expired sockets, not scheduled anymore. The list is reused by the next call.
+	 */
+	List<Socket> expire(long now) {
+		expired.clear();
+		long nowTick = now / tickMillis;
+		//after a whole round without expiring, each slot is looked at once.
+		long firstTick = Math.max(currentTick + 1, nowTick - slots.length + 1);
+
+		for (long tick = firstTick; tick <= nowTick && size > 0; tick++) {
+			Socket socket = slots[(int) (tick & (slots.length - 1))];
+			while (socket != null) {
+				Socket next = socket.timerNext;
+				if (socket.timerDeadline <= now) {
+					cancel(socket);
+					expired.add(socket);
+				}
+				socket = next;
+			}
+		}
+		currentTick = Math.max(currentTick, nowTick);
+		return expired;
+	}
+
+	/**
+	 * @param now In milliseconds.
+	 * @return Milliseconds until the next tick (at least 1), or 0 if there is nothing scheduled (select without timeout).
+	 */
+	long getTimeout(long now) {
+		if (size == 0) return 0;
+		return Math.max(1, (currentTick + 1) * tickMillis - now);
+	}
+
+	/**
+	 * @return Number of scheduled sockets.
+	 */
+	int size() {
+		return size;
+	}
+}
@@ -0,0 +1,57 @@
+package Non.blocking.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Where the users and their credentials are kept (see {@code Database}). A credential is opaque for the store, it's
+ * kept and given back as it is.
+ * Implementations are used by several threads at once, and the lookups shouldn't wait for the writes.
+ * @author xsala
+ *
+ */
+public interface UserStore extends Closeable {
+
+	/**
+	 * @param userName
+	 * @return The credential of the user, or null if it doesn't exist. It can't be modified.
+	 */
+	byte[] getCredential(String userName);
+
+	/**
+	 * Adds a user, atomically. When it returns, the user is kept (a persistent store has written it to disk).
+	 * @param userName
+	 * @param credential
+	 * @return false if the user already exists.
+	 * @throws IOException if it can't be kept.
+	 */
+	boolean addUser(String userName, byte[] credential) throws IOException;
+
+	/**
+	 * Changes the credential of a user.
+	 * @param userName
+	 * @param credential
+	 * @return false if the user doesn't exist.
+	 * @throws IOException if it can't be kept.
+	 */
+	boolean setCredential(String userName, byte[] credential) throws IOException;
+
+	/**
+	 * @param userName
+	 * @return false if the user doesn't exist.
+	 * @throws IOException if it can't be kept.
+	 */
+	boolean removeUser(String userName) throws IOException;
+
+	/**
+	 * @return The user names. It can't be modified.
+	 */
+	Set<String> getUserNames();
+
+	/**
+	 * @return Number of users.
+	 */
+	int size();
+
+}
@@ -0,0 +1,110 @@
+package Non.blocking.server.messages;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of direct or heap {@code ByteBuffer}'s, by size classes (powers of two, from {@code MIN_CAPACITY} to {@code maxCapacity}).
+ * A leased buffer has the capacity of its size class and the limit at the requested length.
+ * Direct buffers are better for channel reads, heap buffers for ciphers and MAC's (they work directly with the array).
+ * Not thread safe: each {@code SocketProcessor} has its own pools, used only by its thread.
+ */
+public class BufferPool {
+
+    /**Capacity of the smallest size class*/
+    public static final int MIN_CAPACITY = 256;
+
+    /**Capacity of the biggest size class*/
+    private final int maxCapacity;
+
+    /**Maximum number of free buffers kept for each size class. The rest are left to the garbage collector.*/
+    private final int maxFreeBuffersPerClass;
+
+    /**Free buffers, one deque for each size class*/
+    private final ArrayDeque<ByteBuffer>[] freeBuffers;
+
+    /**true for direct buffers, false for heap buffers*/
+    private final boolean direct;
+
+    /**
+     * Constructor of a pool of direct buffers.
+     * @param maxCapacity The biggest buffer that can be leased. Rounded up to a power of two.
+     * @param maxFreeBuffersPerClass Maximum number of free buffers kept for each size class.
+     */
+    public BufferPool(int maxCapacity, int maxFreeBuffersPerClass) {
+        this(maxCapacity, maxFreeBuffersPerClass, true);
+    }
+
+    /**
+     * Constructor.
+     * @param maxCapacity The biggest buffer that can be leased. Rounded up to a power of two.
+     * @param maxFreeBuffersPerClass Maximum number of free buffers kept for each size class.
+     * @param direct true for direct buffers, false for heap buffers.
+     */
+    public BufferPool(int maxCapacity, int maxFreeBuffersPerClass, boolean direct) {
+        this.direct = direct;
+        this.maxCapacity = capacityOfClass(sizeClass(maxCapacity));
+        this.maxFreeBuffersPerClass = maxFreeBuffersPerClass;
+        @SuppressWarnings({"unchecked", "rawtypes"}) //no generic array creation.
+        ArrayDeque<ByteBuffer>[] freeBuffers = new ArrayDeque[sizeClass(this.maxCapacity) + 1];
+        this.freeBuffers = freeBuffers;
+        for (int i = 0; i < freeBuffers.length; i++) {
+            freeBuffers[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    /**
+     * Leases a direct buffer with position 0 and limit {@code length}. It has to be returned with {@code release(ByteBuffer)}.
+     * @param length
+     * @return
+     * @throws IllegalArgumentException if length is bigger than the pool maximum capacity.
+     */
+    public ByteBuffer lease(int length) {
+        if (length > maxCapacity) throw new IllegalArgumentException("Buffer of " + length + " bytes, maximum is " + maxCapacity);
+
+        int sizeClass = sizeClass(length);
+        ByteBuffer buffer = freeBuffers[sizeClass].poll();
+        if (buffer == null) {
+            buffer = direct ? ByteBuffer.allocateDirect(capacityOfClass(sizeClass)) : ByteBuffer.allocate(capacityOfClass(sizeClass));
+        }
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    /**
+     * Returns a leased buffer to the pool. The buffer can't be used after being released.
+     * Buffers that can't come from this pool (direct or heap as this pool, with a capacity that is a size class) are ignored.
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct || buffer.isReadOnly() || buffer.capacity() > maxCapacity) return;
+
+        int sizeClass = sizeClass(buffer.capacity());
+        if (capacityOfClass(sizeClass) != buffer.capacity()) return;
+
+        if (freeBuffers[sizeClass].size() < maxFreeBuffersPerClass) {
+            freeBuffers[sizeClass].push(buffer);
+        }
+    }
+
+    /**
+     * @return The biggest buffer that can be leased.
+     */
+    public int getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    /**
+     * The size class for a length. Class 0 has {@code MIN_CAPACITY}, each class doubles the previous one.
+     * @param length
+     * @return
+     */
+    private static int sizeClass(int length) {
+        if (length <= MIN_CAPACITY) return 0;
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - Integer.numberOfTrailingZeros(MIN_CAPACITY);
+    }
+
+    private static int capacityOfClass(int sizeClass) {
+        return MIN_CAPACITY << sizeClass;
+    }
+}
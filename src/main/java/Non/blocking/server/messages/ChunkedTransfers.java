@@ -0,0 +1,172 @@
+package Non.blocking.server.messages;
+
+import Non.blocking.server.ServerException;
+
+/**
+ * The chunked transfers being sent by a socket (see {@code MessageType.CHUNK}). A large payload is sent as a
+ * sequence of CHUNK messages, each one decrypted, checked and forwarded to the destination as soon as it arrives, so
+ * the server never keeps a whole payload. Only the progress of each transfer is kept, for at most maxTransfers
+ * transfers at once. A transfer without chunks for a while can be dropped (see {@code expire(long, long)}), so a
+ * client can't keep the places taken.
+ * Used by the socket's processor thread.
+ */
+public class ChunkedTransfers {
+
+    /**transferId (8 bytes) + chunk index (4 bytes) + flags (1 byte), at the beginning of the body of a CHUNK*/
+    public static final int CHUNK_HEADER_LENGTH = 8 + 4 + 1;
+
+    /**Flag of the last chunk of a transfer*/
+    public static final byte LAST_CHUNK = 1;
+
+    /**Maximum number of transfers of a socket at once*/
+    public static final int DEFAULT_MAX_TRANSFERS = 8;
+
+    /**Maximum data of a chunk*/
+    public static final int MAX_CHUNK_DATA_LENGTH = MessageType.CHUNK.maxLength - CHUNK_HEADER_LENGTH;
+
+    private final long[] transferIds;
+
+    /**Index of the next chunk of each transfer*/
+    private final int[] nextIndexes;
+
+    /**Destination of each transfer, all its chunks have to go to the same one*/
+    private final String[] destinations;
+
+    /**When the last chunk of each transfer arrived, in milliseconds*/
+    private final long[] lastChunkTimes;
+
+    private int count = 0;
+
+    /**
+     * Constructor.
+     * @param maxTransfers Maximum number of transfers at once.
+     */
+    public ChunkedTransfers(int maxTransfers) {
+        transferIds = new long[maxTransfers];
+        nextIndexes = new int[maxTransfers];
+        destinations = new String[maxTransfers];
+        lastChunkTimes = new long[maxTransfers];
+    }
+
+    /**
+     * Checks a chunk and takes it into account. The first chunk (index 0) starts a transfer, and the last one ends it.
+     * @param message A CHUNK message.
+     * @param now In milliseconds.
+     * @return false if the chunk belongs to an unknown transfer (aborted, refused or expired), then it has to be dropped.
+     * @throws ServerException MALFORMED_MESSAGE if the chunk isn't the next one of its transfer, TOO_MANY_TRANSFERS
+     * if it starts a transfer and there are already maxTransfers.
+     */
+    public boolean next(Message message, long now) throws ServerException {
+        if (message.getBodyLength() < CHUNK_HEADER_LENGTH) throw new ServerException(ServerException.Type.MALFORMED_MESSAGE);
+
+        long transferId = getTransferId(message);
+        int index = getIndex(message);
+        boolean last = isLast(message);
+        int i = indexOf(transferId);
+
+        if (index == 0) {
+            if (i >= 0) throw new ServerException(ServerException.Type.MALFORMED_MESSAGE);
+            if (last) return true; //only one chunk.
+            if (count == transferIds.length) throw new ServerException(ServerException.Type.TOO_MANY_TRANSFERS, message.messageId);
+            transferIds[count] = transferId;
+            nextIndexes[count] = 1;
+            destinations[count] = message.getDestination();
+            lastChunkTimes[count] = now;
+            count++;
+            return true;
+        }
+
+        if (i < 0) return false;
+        if (index != nextIndexes[i] || !destinations[i].equals(message.getDestination()))
+            throw new ServerException(ServerException.Type.MALFORMED_MESSAGE);
+
+        if (last) {
+            remove(i);
+        } else {
+            nextIndexes[i]++;
+            lastChunkTimes[i] = now;
+        }
+        return true;
+    }
+
+    /**
+     * Aborts a transfer, its next chunks will be dropped.
+     * @param transferId
+     */
+    public void abort(long transferId) {
+        int i = indexOf(transferId);
+        if (i >= 0) remove(i);
+    }
+
+    /**
+     * Drops the transfers without chunks for idleTimeout milliseconds, their next chunks will be dropped.
+     * @param now In milliseconds.
+     * @param idleTimeout In milliseconds.
+     * @return Number of dropped transfers.
+     */
+    public int expire(long now, long idleTimeout) {
+        int expired = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            if (lastChunkTimes[i] + idleTimeout <= now) {
+                remove(i);
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return When the last chunk of the longest idle transfer arrived, in milliseconds. Long.MAX_VALUE if there
+     * aren't transfers.
+     */
+    public long getOldestChunkTime() {
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            oldest = Math.min(oldest, lastChunkTimes[i]);
+        }
+        return oldest;
+    }
+
+    /**
+     * @return Number of transfers not finished.
+     */
+    public int size() {
+        return count;
+    }
+
+    public static long getTransferId(Message message) {
+        long transferId = 0;
+        for (int i = 0; i < 8; i++) {
+            transferId = (transferId << 8) | (message.getBodyByte(i) & 0xFF);
+        }
+        return transferId;
+    }
+
+    public static int getIndex(Message message) {
+        int index = 0;
+        for (int i = 8; i < 12; i++) {
+            index = (index << 8) | (message.getBodyByte(i) & 0xFF);
+        }
+        return index;
+    }
+
+    public static boolean isLast(Message message) {
+        return (message.getBodyByte(12) & LAST_CHUNK) != 0;
+    }
+
+    private int indexOf(long transferId) {
+        for (int i = 0; i < count; i++) {
+            if (transferIds[i] == transferId) return i;
+        }
+        return -1;
+    }
+
+    private void remove(int i) {
+        count--;
+        transferIds[i] = transferIds[count];
+        nextIndexes[i] = nextIndexes[count];
+        destinations[i] = destinations[count];
+        lastChunkTimes[i] = lastChunkTimes[count];
+        destinations[count] = null;
+    }
+}
@@ -0,0 +1,192 @@
+package Non.blocking.server.messages;
+
+import Non.blocking.server.ServerException;
+import Non.blocking.server.Socket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a {@code Message} into a frame ready to be sent: type, length and bundle.
+ * The plaintext fields (messageId, origin, destination and body) are written once, and sealed for each recipient by
+ * {@code seal}: the MAC is calculated over the fields and they're encrypted directly into the frame, without copying them.
+ * Only the MAC and the padding are written into a small scratch buffer.
+ * A received message (a view, see {@code Message}) is sealed from its own bundle, so a forwarded message isn't serialized again.
+ * The frame is a heap buffer leased from the socket's frame pool, returned to the pool by {@code MessageWriter} when it has been sent.
+ * Not thread safe: each {@code SocketProcessor} has its own encoder, used only by its thread.
+ */
+public class FrameEncoder {
+
+    /**Longer frames aren't pooled*/
+    public static final int MAX_POOLED_FRAME_LENGTH = 64 * 1024;
+
+    /**Scratch buffer for the plaintext fields. It grows if needed, up to {@code MAX_POOLED_FRAME_LENGTH} it's kept.*/
+    private ByteBuffer plaintext = ByteBuffer.allocate(4 * 1024);
+
+    /**Scratch buffer for the MAC length, the MAC and the padding*/
+    private ByteBuffer tail = ByteBuffer.allocate(64);
+
+    /**
+     * Gets a {@code ByteBuffer} ready to be sent (in write mode, see {@code MessageWriter.enqueueMessage(ByteBuffer)}).
+     * If messageType == WELCOME, it won't be encrypted neither MAC be included.
+     * Otherwise, it will be encrypted with SecretKey and generate a MAC.
+     * @param message
+     * @param socket It's necessary because each socket have its own mac and private key.
+     * @return
+     * @throws ServerException
+     */
+    public ByteBuffer encode(Message message, Socket socket) throws ServerException {
+        if (message.isView() && message.messageType != MessageType.WELCOME) { //already serialized.
+            return seal(message.messageType, message.getBundleArray(), message.getBundleOffset(), message.getBundleLength(), socket);
+        }
+
+        if (message.messageType == MessageType.WELCOME) return encodePlain(message, socket);
+
+        int originLength = message.getOriginLength();
+        int destinationLength = message.getDestinationLength();
+        int fieldsLength = 8 + 4 + originLength + 4 + destinationLength + 4 + message.getBodyLength();
+
+        ByteBuffer fields = plaintext(fieldsLength);
+        putFields(fields, message, originLength, destinationLength);
+        return seal(message.messageType, fields.array(), fields.arrayOffset(), fields.position(), socket);
+    }
+
+    /**
+     * Encodes a message without MAC neither encryption, the fields written directly into the frame: WELCOME, and the
+     * CHECK_WELCOME answering SECRET_GCM (see {@code Handshake.serverRandom}).
+     * @param message
+     * @param socket
+     * @return
+     */
+    public ByteBuffer encodePlain(Message message, Socket socket) {
+        int originLength = message.getOriginLength();
+        int destinationLength = message.getDestinationLength();
+        int fieldsLength = 8 + 4 + originLength + 4 + destinationLength + 4 + message.getBodyLength();
+
+        ByteBuffer frame = leaseFrame(socket, MessageReader.HEADER_LENGTH + fieldsLength);
+        frame.put(message.messageType.byteValue);
+        frame.putInt(fieldsLength);
+        putFields(frame, message, originLength, destinationLength);
+        return frame;
+    }
+
+    /**
+     * Encodes an ACK from the server, without a {@code Message} neither a body array (see {@code MessageUtilities.createACK}).
+     * @param socket
+     * @param destination
+     * @param referredMessageId
+     * @return
+     * @throws ServerException
+     */
+    public ByteBuffer encodeACK(Socket socket, String destination, long referredMessageId) throws ServerException {
+        int originLength = MessageUtilities.utf8Length(MessageUtilities.SERVER_NAME);
+        int destinationLength = MessageUtilities.utf8Length(destination);
+        ByteBuffer fields = plaintext(8 + 4 + originLength + 4 + destinationLength + 4 + 8);
+        fields.putLong(MessageUtilities.newMessageId());
+        fields.putInt(originLength);
+        MessageUtilities.putUtf8(MessageUtilities.SERVER_NAME, fields);
+        fields.putInt(destinationLength);
+        MessageUtilities.putUtf8(destination, fields);
+        fields.putInt(8);
+        fields.putLong(referredMessageId);
+        return seal(MessageType.ACK, fields.array(), fields.arrayOffset(), fields.position(), socket);
+    }
+
+    /**
+     * Seals the plaintext fields for a socket: generates the MAC and encrypts fields, MAC length and MAC into a frame.
+     * If the socket uses AES/GCM, the fields are encrypted and authenticated in one pass (see {@code Socket.encryptAead}).
+     * The fields aren't modified, so the same fields can be sealed for several sockets.
+     * @param messageType
+     * @param fields Array with messageId, origin, destination and body, each one preceded by its length.
+     * @param offset Position of the fields at the array.
+     * @param length Length of the fields.
+     * @param socket
+     * @return the frame, in write mode.
+     * @throws ServerException if the socket doesn't have secret key or the fields are malformed.
+     */
+    public ByteBuffer seal(MessageType messageType, byte[] fields, int offset, int length, Socket socket) throws ServerException {
+        if (socket.usesAead()) { //one pass for encryption and integrity, without MAC.
+            ByteBuffer frame = leaseFrame(socket, MessageReader.HEADER_LENGTH + socket.getEncryptedLength(length));
+            frame.put(messageType.byteValue);
+            frame.putInt(0); //the length, when it's known.
+            int encryptedLength = socket.encryptAead(messageType, fields, offset, length, frame);
+            frame.putInt(1, encryptedLength);
+            return frame;
+        }
+
+        int macLength = socket.getMacLength();
+        //the last partial block of the fields goes to the tail, so the cipher doesn't keep (and copy) a partial block.
+        int wholeBlocksLength = length - length % MessageUtilities.SECRET_KEY_BLOCK_SIZE;
+        ByteBuffer tail = tail(length - wholeBlocksLength + 4 + macLength + MessageUtilities.SECRET_KEY_BLOCK_SIZE); //room for the padding, added when it's encrypted.
+        tail.put(fields, offset + wholeBlocksLength, length - wholeBlocksLength);
+        tail.putInt(macLength);
+        socket.generateMac(messageType, fields, offset, tail.array(), tail.arrayOffset() + tail.position());
+        tail.position(tail.position() + macLength);
+        tail.flip();
+
+        ByteBuffer frame = leaseFrame(socket, MessageReader.HEADER_LENGTH + socket.getEncryptedLength(length + 4 + macLength));
+        frame.put(messageType.byteValue);
+        frame.putInt(0); //the length, when it's known.
+        int encryptedLength = socket.encryptWithSecretKey(fields, offset, wholeBlocksLength, tail, frame);
+        frame.putInt(1, encryptedLength);
+        return frame;
+    }
+
+    /**
+     * Puts messageId, origin, destination and body, each one preceded by its length.
+     * @param bb
+     * @param message
+     * @param originLength
+     * @param destinationLength
+     */
+    private static void putFields(ByteBuffer bb, Message message, int originLength, int destinationLength) {
+        bb.putLong(message.messageId);
+        bb.putInt(originLength);
+        message.putOrigin(bb);
+        bb.putInt(destinationLength);
+        message.putDestination(bb);
+        bb.putInt(message.getBodyLength());
+        message.putBody(bb); //a received message puts the body from its bundle, without copying it to a byte[].
+    }
+
+    /**
+     * Gets the scratch tail buffer, cleared and with capacity for length bytes.
+     * @param length
+     * @return
+     */
+    private ByteBuffer tail(int length) {
+        if (tail.capacity() < length) {
+            tail = ByteBuffer.allocate(length);
+        }
+        tail.clear();
+        return tail;
+    }
+
+    /**
+     * Gets the scratch plaintext buffer, cleared and with capacity for length bytes.
+     * @param length
+     * @return
+     */
+    private ByteBuffer plaintext(int length) {
+        if (plaintext.capacity() >= length) {
+            plaintext.clear();
+            return plaintext;
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        if (length <= MAX_POOLED_FRAME_LENGTH) {
+            plaintext = bb;
+        }
+        return bb;
+    }
+
+    /**
+     * Leases a frame from the socket's frame pool, or allocates it if it's too long for the pool.
+     * @param socket
+     * @param length
+     * @return
+     */
+    private static ByteBuffer leaseFrame(Socket socket, int length) {
+        if (length > MAX_POOLED_FRAME_LENGTH) return ByteBuffer.allocate(length);
+        return socket.getFrameBufferPool().lease(length);
+    }
+}
@@ -0,0 +1,197 @@
+package Non.blocking.server.messages;
+
+import Non.blocking.server.ServerException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The crypto of a SECRET (or SECRET_GCM, KEY_SHARE or RESUME) message: the secret key received from the client, the key for the MAC and
+ * the body of the CHECK_WELCOME response. It doesn't use the {@code Socket}, so it can be prepared by a handshake worker
+ * (see {@code HandshakeExecutor}) and applied later by the socket's processor thread ({@code MessageProcessor.applyHandshake}).
+ */
+public class Handshake {
+
+    /**Frame mode of a KEY_SHARE: AES/ECB and MAC, as SECRET*/
+    public static final byte KEY_SHARE_MODE_SECRET = 0;
+
+    /**Frame mode of a KEY_SHARE: AES/GCM, as SECRET_GCM*/
+    public static final byte KEY_SHARE_MODE_SECRET_GCM = 1;
+
+    /**Label of the key derivation of RESUME*/
+    private static final byte[] RESUME_LABEL = "resume".getBytes(StandardCharsets.US_ASCII);
+
+    /**SECRET or SECRET_GCM. The frame mode for KEY_SHARE and RESUME.*/
+    public final MessageType messageType;
+
+    /**Origin of the SECRET message, destination of CHECK_WELCOME*/
+    public final String origin;
+
+    public final byte[] secretKey;
+
+    /**socketId + {@code MessageUtilities.SHARED_SECRET_KEY_COMPLEMENT} + random int from client*/
+    public final byte[] keyForMac;
+
+    /**MAC of publicKey + secretKey + keyForMac. After the server random, if there is one.*/
+    public final byte[] checkWelcomeBody;
+
+    /**Only for a SECRET_GCM message, null otherwise: the client needs it for the key, so CHECK_WELCOME is sent
+     * without encryption (see {@code FrameEncoder.encodePlain}), with the server random at the beginning of the body.*/
+    public final byte[] serverRandom;
+
+    private Handshake(MessageType messageType, String origin, byte[] secretKey, byte[] keyForMac, byte[] checkWelcomeBody, byte[] serverRandom) {
+        this.messageType = messageType;
+        this.origin = origin;
+        this.secretKey = secretKey;
+        this.keyForMac = keyForMac;
+        this.checkWelcomeBody = checkWelcomeBody;
+        this.serverRandom = serverRandom;
+    }
+
+    /**
+     * Decrypts a SECRET bundle with the private key (a KEY_SHARE bundle isn't encrypted) and prepares the handshake.
+     * @param messageType SECRET, SECRET_GCM or KEY_SHARE.
+     * @param bundle
+     * @param socketId
+     * @param serverRandom Of the connection, only for SECRET_GCM.
+     * @return
+     * @throws ServerException
+     */
+    public static Handshake prepare(MessageType messageType, byte[] bundle, long socketId, byte[] serverRandom) throws ServerException {
+        if (messageType == MessageType.KEY_SHARE) return prepare(Message.rebuildMessage(messageType, bundle), socketId, serverRandom);
+        return prepare(Message.rebuildMessage(messageType, MessageUtilities.decryptWithPrivateKey(bundle)), socketId, serverRandom);
+    }
+
+    /**
+     * Prepares the handshake of a SECRET message. The body contains a random int from client and the secret key.
+     * With SECRET_GCM, the secret key of the session is HKDF (salt: socketId + server random, info:
+     * {@code MessageUtilities.SECRET_GCM_INFO}) of the client's key, of the same length: a SECRET_GCM replayed at
+     * another connection doesn't give the same key, so the GCM nonces (made with sequences that start at each
+     * connection) are never used again with a key. The server random is sent to the client with CHECK_WELCOME.
+     * Or of a KEY_SHARE message, see {@code keyShare}.
+     * @param message
+     * @param socketId
+     * @param serverRandom Of the connection, only for SECRET_GCM.
+     * @return
+     * @throws ServerException if the secret key isn't a valid AES key.
+     */
+    public static Handshake prepare(Message message, long socketId, byte[] serverRandom) throws ServerException {
+        if (message.messageType == MessageType.KEY_SHARE) return keyShare(message, socketId);
+
+        byte[] body = message.getBody();
+        int secretKeyLength = body.length - 4;
+        if (secretKeyLength != 16 && secretKeyLength != 24 && secretKeyLength != 32)
+            throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+
+        ByteBuffer bb = ByteBuffer.wrap(body);
+        int clientRandomInt = bb.getInt();
+        byte[] secretKey = Arrays.copyOfRange(body, 4, body.length);
+
+        if (message.messageType != MessageType.SECRET_GCM) {
+            return create(message.messageType, message.getOrigin(), secretKey, clientRandomInt, socketId, null);
+        }
+
+        byte[] clientKey = secretKey;
+        byte[] salt = MessageUtilities.byteArraysToByteArray(new byte[][]{MessageUtilities.longToByteArray(socketId), serverRandom});
+        secretKey = MessageUtilities.hkdfSha256(salt, clientKey, MessageUtilities.SECRET_GCM_INFO, clientKey.length);
+        Arrays.fill(clientKey, (byte) 0);
+
+        return create(message.messageType, message.getOrigin(), secretKey, clientRandomInt, socketId, serverRandom);
+    }
+
+    /**
+     * Prepares the handshake of a RESUME message. The body contains a random int from client and a session ticket.
+     * The secret key of the new session is HmacSHA256(ticket's secret key, "resume" + socketId + random int),
+     * truncated to the length of the ticket's secret key, so two connections never share a key (and GCM nonces).
+     * Only symmetric crypto.
+     * @param message
+     * @param socketId
+     * @param sessionTickets
+     * @return
+     * @throws ServerException if the ticket isn't valid, has expired or has already been redeemed.
+     */
+    public static Handshake resume(Message message, long socketId, SessionTickets sessionTickets) throws ServerException {
+        byte[] body = message.getBody();
+        if (body.length <= 4) throw new ServerException(ServerException.Type.TICKET_PROBLEM);
+
+        int clientRandomInt = MessageUtilities.byteArrayToInt(body, 0);
+        SessionTickets.Ticket ticket = sessionTickets.redeem(Arrays.copyOfRange(body, 4, body.length));
+
+        byte[] derivedKey = MessageUtilities.hmacSha256(ticket.secretKey, new byte[][]{
+                RESUME_LABEL, MessageUtilities.longToByteArray(socketId), MessageUtilities.intToByteArray(clientRandomInt)});
+        byte[] secretKey = Arrays.copyOf(derivedKey, ticket.secretKey.length);
+        Arrays.fill(derivedKey, (byte) 0);
+        Arrays.fill(ticket.secretKey, (byte) 0);
+
+        return create(ticket.aead ? MessageType.SECRET_GCM : MessageType.SECRET, message.getOrigin(), secretKey, clientRandomInt, socketId, null);
+    }
+
+    /**
+     * Prepares the handshake of a KEY_SHARE message. The body contains the frame mode (0 as SECRET, 1 as SECRET_GCM) and
+     * the X.509 encoding of the client's X25519 public key. The secret key and the key for MAC are the output of
+     * HKDF (salt: socketId, info: {@code MessageUtilities.KEY_SHARE_INFO}) of the X25519 shared secret: 32 bytes each.
+     * @param message
+     * @param socketId
+     * @return
+     * @throws ServerException if the client's key isn't a valid X25519 public key.
+     */
+    private static Handshake keyShare(Message message, long socketId) throws ServerException {
+        byte[] body = message.getBody();
+        if (body.length < 2 || (body[0] != KEY_SHARE_MODE_SECRET && body[0] != KEY_SHARE_MODE_SECRET_GCM))
+            throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+
+        byte[] sharedSecret = MessageUtilities.agreeWithKeyAgreementKey(Arrays.copyOfRange(body, 1, body.length));
+        byte[] keys = MessageUtilities.hkdfSha256(MessageUtilities.longToByteArray(socketId), sharedSecret,
+                MessageUtilities.KEY_SHARE_INFO, 2 * MessageUtilities.KEY_SHARE_SECRET_KEY_LENGTH);
+        Arrays.fill(sharedSecret, (byte) 0);
+
+        byte[] secretKey = Arrays.copyOf(keys, MessageUtilities.KEY_SHARE_SECRET_KEY_LENGTH);
+        byte[] keyForMac = Arrays.copyOfRange(keys, MessageUtilities.KEY_SHARE_SECRET_KEY_LENGTH, keys.length);
+        Arrays.fill(keys, (byte) 0);
+
+        return create(body[0] == KEY_SHARE_MODE_SECRET_GCM ? MessageType.SECRET_GCM : MessageType.SECRET,
+                message.getOrigin(), secretKey, keyForMac, null);
+    }
+
+    /**
+     * Calculates the key for the MAC and the body of CHECK_WELCOME, as the client does.
+     * @param messageType SECRET or SECRET_GCM.
+     * @param origin
+     * @param secretKey
+     * @param clientRandomInt
+     * @param socketId
+     * @param serverRandom null if the client doesn't need it.
+     * @return
+     * @throws ServerException
+     */
+    private static Handshake create(MessageType messageType, String origin, byte[] secretKey, int clientRandomInt, long socketId, byte[] serverRandom) throws ServerException {
+        byte[] keyForMac = MessageUtilities.byteArraysToByteArray(new byte[][]{
+                MessageUtilities.longToByteArray(socketId),
+                MessageUtilities.intToByteArray(MessageUtilities.SHARED_SECRET_KEY_COMPLEMENT),
+                MessageUtilities.intToByteArray(clientRandomInt)});
+
+        return create(messageType, origin, secretKey, keyForMac, serverRandom);
+    }
+
+    /**
+     * Calculates the body of CHECK_WELCOME: MAC of the public key of WELCOME + secretKey + keyForMac, after the
+     * server random if there is one. The MAC is calculated with the derived secret key, so it checks the server random too.
+     * @param messageType SECRET or SECRET_GCM.
+     * @param origin
+     * @param secretKey
+     * @param keyForMac
+     * @param serverRandom null if the client doesn't need it.
+     * @return
+     * @throws ServerException
+     */
+    private static Handshake create(MessageType messageType, String origin, byte[] secretKey, byte[] keyForMac, byte[] serverRandom) throws ServerException {
+        byte[] checkWelcomeBody = MessageUtilities.hmacSha256(keyForMac,
+                new byte[][]{MessageUtilities.getWelcomePublicKey(), secretKey, keyForMac});
+        if (serverRandom != null) {
+            checkWelcomeBody = MessageUtilities.byteArraysToByteArray(new byte[][]{serverRandom, checkWelcomeBody});
+        }
+
+        return new Handshake(messageType, origin, secretKey, keyForMac, checkWelcomeBody, serverRandom);
+    }
+}
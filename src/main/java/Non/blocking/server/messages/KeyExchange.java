@@ -0,0 +1,15 @@
+package Non.blocking.server.messages;
+
+
+/**
+ * How the client sends its secret key. The server announces it with the public key of the WELCOME message, the client
+ * knows it by the algorithm of the key.
+ */
+public enum KeyExchange {
+	//RSA public key (2048 bits) at WELCOME. The client sends its secret key encrypted with it, with SECRET or SECRET_GCM.
+	RSA,
+	//X25519 public key at WELCOME. The client sends KEY_SHARE with its own X25519 public key, and both sides derive
+	//the secret key and the key for MAC from the shared secret with HKDF. Faster, and a shorter WELCOME.
+	X25519
+
+}
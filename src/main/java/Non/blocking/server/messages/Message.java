@@ -2,29 +2,57 @@ package Non.blocking.server.messages;
 
 import Non.blocking.server.ServerException;
 import Non.blocking.server.Socket;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 /**
  * Represents a message.
+ * A received message (see {@code rebuildMessage} and {@code rebuildAndCheckMessage}) is a view over its plaintext bundle:
+ * it only keeps the offsets and lengths of origin, destination and body. Origin and destination are decoded when they're
+ * asked for, and the body is copied to a {@code byte[]} only if {@code getBody()} is called.
+ * The bundle usually is a pooled buffer, so a view is valid while it's processed (see {@code MessageReader}).
+ * Use {@code detach()} to keep it longer.
  */
 public class Message {
 
     /**Message type*/
     public MessageType messageType;
 
-    /**Message sender*/
-    public String origin;
-
-    /**Message destination, another user or {@code MessageUtilities.SERVER_NAME}*/
-    public String destination;
-
     /**An id number for each message, usually got from {@code MessageUtilities.newMessageId()}*/
     public long messageId;
 
-    /**The message body*/
-    public byte[] body;
+    /**Message sender. If it's a view, decoded from data by {@code getOrigin()}*/
+    private String origin;
+
+    /**Message destination, another user or {@code MessageUtilities.SERVER_NAME}. If it's a view, decoded from data by {@code getDestination()}*/
+    private String destination;
+
+    /**The message body. If it's a view, copied from data by {@code getBody()}*/
+    private byte[] body;
+
+    /**Array with the plaintext bundle if it's a view. Otherwise null.*/
+    private byte[] data = null;
+
+    /**Position of the bundle (messageId) at data*/
+    private int dataOffset;
+
+    /**Bytes of the bundle at data, from messageId to the end of the body (MAC not included)*/
+    private int dataLength;
+
+    /**End of the received bundle at data, after the MAC*/
+    private int dataEnd;
+
+    /**true if data is a copy made by {@code detach()}, not a pooled buffer*/
+    private boolean detached = false;
+
+    private int originOffset;
+    private int originLength = -1;
+    private int destinationOffset;
+    private int destinationLength = -1;
+    private int bodyOffset;
+    private int bodyLength;
 
 
     /**
@@ -41,6 +69,7 @@ public class Message {
         this.destination = destination;
         this.messageId = messageId;
         this.body = body;
+        this.bodyLength = body.length;
     }
 
     /**
@@ -56,151 +85,318 @@ public class Message {
     }
 
     /**
-     * Use this to recreate a received message (Except messageType == SECRET).
-     * @param messageTypeAndLength
-     * @param bundle
-     * @throws Exception if source MAC and calculated MAC isn't the same.
+     * A view over a plaintext bundle. Offsets and lengths are set by {@code parse}.
+     * @param messageType
+     * @param data
      */
-    /*public Message(byte[] messageTypeAndLength, byte[] bundle) {
-        this(MessageType.getTypeByByte(messageTypeAndLength[0]), bundle);
-    }*/
+    private Message(MessageType messageType, byte[] data) {
+        this.messageType = messageType;
+        this.data = data;
+    }
 
     /**
      * Use this to recreate a received message without MAC check (messageType == SECRET)
      * Constructor from {@code MessageType} and [@code byte[]} for bundle, without MAC check.
+     * The message is a view over bundle.
      * @param messageType
      * @param bundle
+     * @throws ServerException if the bundle is malformed.
      */
-    public static Message rebuildMessage (MessageType messageType, byte[] bundle )  {
-
-        ByteBuffer bb = ByteBuffer.allocate(bundle.length);
-        bb.put(bundle);
-        bb.flip();
-
-        Long messageId = bb.getLong();
-
-        byte[] originInBytes = new byte[bb.getInt()];
-        bb.get(originInBytes);
-
-        byte[] destinationInBytes = new byte[bb.getInt()];
-        bb.get(destinationInBytes);
-
-        byte[] body = new byte[bb.getInt()];
-        bb.get(body);
-        return new Message(messageType,
-                new String (originInBytes, StandardCharsets.UTF_8),
-                new String (destinationInBytes, StandardCharsets.UTF_8),
-                messageId,
-                body);
+    public static Message rebuildMessage (MessageType messageType, byte[] bundle ) throws ServerException {
+        return rebuildMessage(messageType, ByteBuffer.wrap(bundle));
+    }
 
+    /**
+     * Use this to recreate a received message without MAC check (messageType == SECRET), from the remaining bytes of a buffer.
+     * With a heap buffer, the message is a view over its array. A direct buffer is copied first.
+     * @param messageType
+     * @param bb
+     * @throws ServerException if the bundle is malformed.
+     */
+    public static Message rebuildMessage (MessageType messageType, ByteBuffer bb) throws ServerException {
+        return parse(messageType, bb);
     }
 
     /**
      * Constructor from {@code MessageType} and [@code byte[]} for bundle, with MAC check.
+     * The message is a view over bundle.
      * @param messageType
      * @param bundle
      * @param socket
-     * @throws Exception
+     * @throws ServerException
      */
     public static Message rebuildAndCheckMessage (MessageType messageType, byte[] bundle, Socket socket ) throws ServerException {
+        return rebuildAndCheckMessage(messageType, ByteBuffer.wrap(bundle), socket);
+    }
 
-        ByteBuffer bb = ByteBuffer.allocate(bundle.length);
-        bb.put(bundle);
-        bb.flip();
+    /**
+     * Recreates a received message from the remaining bytes of a buffer, with MAC check.
+     * The MAC is calculated and compared over the fields at the buffer, nothing is copied.
+     * With a heap buffer, the message is a view over its array. A direct buffer is copied first.
+     * @param messageType
+     * @param bb
+     * @param socket
+     * @throws ServerException if the bundle is malformed or the MAC doesn't match.
+     */
+    public static Message rebuildAndCheckMessage (MessageType messageType, ByteBuffer bb, Socket socket ) throws ServerException {
 
-        long messageId = bb.getLong();
+        Message message = parse(messageType, bb);
+        int macOffset = message.dataOffset + message.dataLength;
+        bb = ByteBuffer.wrap(message.data, macOffset, message.dataEnd - macOffset); //the MAC, also if bb has been copied.
 
-        byte[] originInBytes = new byte[bb.getInt()];
-        bb.get(originInBytes);
+        int macLength = getFieldLength(bb);
+        if (!socket.checkMac(messageType, message.data, message.dataOffset, bb.position(), macLength))
+            throw new ServerException (ServerException.Type.MAC_NOT_EQUAL);
 
-        byte[] destinationInBytes = new byte[bb.getInt()];
-        bb.get(destinationInBytes);
+        return message;
+    }
 
-        byte[] body = new byte[bb.getInt()];
-        bb.get(body);
+    /**
+     * Reads the messageId and the offsets and lengths of origin, destination and body.
+     * Every length is checked against the remaining bytes before it's used.
+     * @param messageType
+     * @param bb Its remaining bytes are the bundle.
+     * @return a view over the array of bb (or a copy, if bb is direct).
+     * @throws ServerException if the bundle is malformed.
+     */
+    private static Message parse(MessageType messageType, ByteBuffer bb) throws ServerException {
+        if (!bb.hasArray()) {
+            byte[] copy = new byte[bb.remaining()];
+            bb.get(copy);
+            bb = ByteBuffer.wrap(copy);
+        }
 
-        byte[] srcMac = new byte[bb.getInt()];
-        bb.get(srcMac);
+        Message message = new Message(messageType, bb.array());
+        message.dataOffset = bb.arrayOffset() + bb.position();
+        message.dataEnd = bb.arrayOffset() + bb.limit();
 
-        byte[] calculatedMac = socket.generateMac(new byte[][]{new byte[]{messageType.byteValue}, originInBytes, destinationInBytes, body});
-        if (Arrays.compare(srcMac, calculatedMac) != 0)
-            throw new ServerException (ServerException.Type.MAC_NOT_EQUAL);
+        try {
+            message.messageId = bb.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new ServerException(ServerException.Type.MALFORMED_MESSAGE);
+        }
 
-        return new Message (messageType,
-                new String (originInBytes, StandardCharsets.UTF_8),
-                new String (destinationInBytes, StandardCharsets.UTF_8),
-                messageId,
-                body);
+        message.originLength = getFieldLength(bb);
+        message.originOffset = skipField(bb, message.originLength);
 
-    }
+        message.destinationLength = getFieldLength(bb);
+        message.destinationOffset = skipField(bb, message.destinationLength);
 
+        message.bodyLength = getFieldLength(bb);
+        message.bodyOffset = skipField(bb, message.bodyLength);
 
+        message.dataLength = bb.arrayOffset() + bb.position() - message.dataOffset;
+        return message;
+    }
 
+    /**
+     * Reads the length of a field, that has to fit at the remaining bytes.
+     * @param bb
+     * @return
+     * @throws ServerException if the length is negative or too big.
+     */
+    private static int getFieldLength(ByteBuffer bb) throws ServerException {
+        if (bb.remaining() < 4) throw new ServerException(ServerException.Type.MALFORMED_MESSAGE);
+        int length = bb.getInt();
+        if (length < 0 || length > bb.remaining()) throw new ServerException(ServerException.Type.MALFORMED_MESSAGE);
+        return length;
+    }
 
+    /**
+     * Moves the position after a field.
+     * @param bb
+     * @param length
+     * @return the offset of the field at the array.
+     */
+    private static int skipField(ByteBuffer bb, int length) {
+        int offset = bb.arrayOffset() + bb.position();
+        bb.position(bb.position() + length);
+        return offset;
+    }
 
+    /**
+     * Gets a message that doesn't depend on the bundle buffer, to keep it after processing (for example, to be sent by other processor).
+     * The bundle (without MAC) is copied once into a new array, and the copy is a view over it.
+     * A detached message isn't modified when it's encoded, so it can be shared by several processors.
+     * @return this, if it isn't a view or it's already detached.
+     */
+    public Message detach() {
+        if (data == null || detached) return this;
+
+        Message copy = new Message(messageType, Arrays.copyOfRange(data, dataOffset, dataOffset + dataLength));
+        copy.messageId = messageId;
+        copy.dataOffset = 0;
+        copy.dataLength = dataLength;
+        copy.dataEnd = dataLength;
+        copy.detached = true;
+        copy.originOffset = originOffset - dataOffset;
+        copy.originLength = originLength;
+        copy.destinationOffset = destinationOffset - dataOffset;
+        copy.destinationLength = destinationLength;
+        copy.bodyOffset = bodyOffset - dataOffset;
+        copy.bodyLength = bodyLength;
+        copy.origin = origin;
+        copy.destination = destination;
+        return copy;
+    }
 
     /**
-     * Gets a {@code byte[]} ready to be sent (generates and includes MAC).
-     * If messageType == WELCOME, it won't be encrypted. Otherwise, it will be encrypted with SecretKey.
-     * @return
+     * @return true if it's a view over a received bundle (see {@code Message}).
      */
-    public byte[] getMessageInBytes(Socket socket) throws ServerException {
-        return getMessageInByteBuffer(socket).array();
+    boolean isView() {
+        return data != null;
     }
 
+    /**
+     * @return Array with the bundle, if it's a view. Otherwise null.
+     */
+    byte[] getBundleArray() {
+        return data;
+    }
 
     /**
-     * Gets a {@code ByteBuffer} ready to be sent (generates and includes MAC).
-     * If messageType == WELCOME, it won't be encrypted neither MAC be included.
-     * Otherwise, it will be encrypted with SecretKey and generate a MAC.
-     * @param socket It's necessary because each socket have its own mac and private key.
-     * @return
+     * @return Position of the bundle (messageId) at {@code getBundleArray()}.
      */
-    public ByteBuffer getMessageInByteBuffer (Socket socket) throws ServerException {
-        byte[] originInBytes = origin.getBytes(StandardCharsets.UTF_8);
+    int getBundleOffset() {
+        return dataOffset;
+    }
 
-        byte[] destinationInBytes = destination.getBytes(StandardCharsets.UTF_8);
+    /**
+     * @return Length of the bundle at {@code getBundleArray()}, from messageId to the end of the body.
+     */
+    int getBundleLength() {
+        return dataLength;
+    }
 
-        byte[] mac = null;
-        if (messageType != MessageType.WELCOME) {
-            mac = socket.generateMac(new byte[][]{new byte[]{messageType.byteValue}, originInBytes, destinationInBytes, body});
+    /**
+     * @return Message sender.
+     */
+    public String getOrigin() {
+        if (origin == null && data != null) {
+            origin = new String(data, originOffset, originLength, StandardCharsets.UTF_8);
         }
+        return origin;
+    }
 
-        ByteBuffer bb = ByteBuffer.allocate( 8 + 4 + originInBytes.length +
-                4 + destinationInBytes.length + 4 + body.length + 4 + (mac==null? 0 : mac.length));
+    /**
+     * @return Message destination, another user or {@code MessageUtilities.SERVER_NAME}.
+     */
+    public String getDestination() {
+        if (destination == null && data != null) {
+            destination = new String(data, destinationOffset, destinationLength, StandardCharsets.UTF_8);
+        }
+        return destination;
+    }
 
-        bb.putLong(messageId);
-        bb.putInt(originInBytes.length);
-        bb.put(originInBytes);
-        bb.putInt(destinationInBytes.length);
-        bb.put(destinationInBytes);
-        bb.putInt(body.length);
-        bb.put(body);
+    /**
+     * Gets the message body. If it's a view, the body is copied (once). To encode it, use {@code putBody(ByteBuffer)}.
+     * @return
+     */
+    public byte[] getBody() {
+        if (body == null && data != null) {
+            body = Arrays.copyOfRange(data, bodyOffset, bodyOffset + bodyLength);
+        }
+        return body;
+    }
 
-        if (mac != null) {
-            bb.putInt(mac.length);
-            bb.put(mac);
+    /**
+     * @return Origin length in bytes (UTF-8).
+     */
+    public int getOriginLength() {
+        if (originLength < 0) {
+            originLength = MessageUtilities.utf8Length(origin);
+        }
+        return originLength;
+    }
 
+    /**
+     * @return Destination length in bytes (UTF-8).
+     */
+    public int getDestinationLength() {
+        if (destinationLength < 0) {
+            destinationLength = MessageUtilities.utf8Length(destination);
         }
+        return destinationLength;
+    }
 
-        byte[] bundle;
-        if (messageType != MessageType.WELCOME) {
-            bundle = socket.encryptWithSecretKey(bb.array());
+    /**
+     * @return Body length in bytes.
+     */
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Gets a byte of the body, without copying the body of a view.
+     * @param index From 0 to {@code getBodyLength() - 1}.
+     * @return
+     */
+    public byte getBodyByte(int index) {
+        if (index < 0 || index >= bodyLength) throw new IndexOutOfBoundsException(index);
+        return data != null ? data[bodyOffset + index] : body[index];
+    }
+
+    /**
+     * Puts the origin (UTF-8) into bb. A view puts its bytes, without decoding them.
+     * @param bb
+     */
+    public void putOrigin(ByteBuffer bb) {
+        if (data != null) {
+            bb.put(data, originOffset, originLength);
         } else {
-            bundle = bb.array();
+            MessageUtilities.putUtf8(origin, bb);
         }
+    }
 
-        bb = ByteBuffer.allocate (5+bundle.length);
-        bb.put(messageType.byteValue);
-        bb.putInt(bundle.length);
-        bb.put(bundle);
-
-        return bb;
+    /**
+     * Puts the destination (UTF-8) into bb. A view puts its bytes, without decoding them.
+     * @param bb
+     */
+    public void putDestination(ByteBuffer bb) {
+        if (data != null) {
+            bb.put(data, destinationOffset, destinationLength);
+        } else {
+            MessageUtilities.putUtf8(destination, bb);
+        }
     }
 
+    /**
+     * Puts the body into bb. A view puts the bytes of its bundle, without a {@code byte[]} for the body.
+     * @param bb
+     */
+    public void putBody(ByteBuffer bb) {
+        if (data != null) {
+            bb.put(data, bodyOffset, bodyLength);
+        } else {
+            bb.put(body);
+        }
+    }
 
 
+    /**
+     * Gets a {@code byte[]} ready to be sent (generates and includes MAC).
+     * If messageType == WELCOME, it won't be encrypted. Otherwise, it will be encrypted with SecretKey.
+     * @return
+     */
+    public byte[] getMessageInBytes(Socket socket) throws ServerException {
+        ByteBuffer bb = getMessageInByteBuffer(socket);
+        bb.flip();
+        byte[] bytes = new byte[bb.remaining()];
+        bb.get(bytes);
+        return bytes;
+    }
 
 
+    /**
+     * Gets a {@code ByteBuffer} ready to be sent (generates and includes MAC), in write mode.
+     * If messageType == WELCOME, it won't be encrypted neither MAC be included.
+     * Otherwise, it will be encrypted with SecretKey and generate a MAC.
+     * It's encoded by the socket's {@code FrameEncoder}, the buffer comes from the socket's frame pool.
+     * @param socket It's necessary because each socket have its own mac and private key.
+     * @return
+     */
+    public ByteBuffer getMessageInByteBuffer (Socket socket) throws ServerException {
+        return socket.getFrameEncoder().encode(this, socket);
+    }
 
 }
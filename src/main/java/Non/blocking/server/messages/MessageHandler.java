@@ -0,0 +1,16 @@
+package Non.blocking.server.messages;
+
+import Non.blocking.server.ServerException;
+import Non.blocking.server.Socket;
+
+/**
+ * Processes the received messages of a type. Registered with {@code MessageProcessor.registerHandler}.
+ * Called by the socket's processor thread. The message can be a view over a buffer of the processor (see
+ * {@code Message.detach()}), so it can't be kept after returning without detaching it.
+ */
+@FunctionalInterface
+public interface MessageHandler {
+
+    void process(Message message, Socket socket) throws ServerException;
+
+}
@@ -1,17 +1,15 @@
 package Non.blocking.server.messages;
 
+import Non.blocking.server.AuthExecutor;
 import Non.blocking.server.Database;
 import Non.blocking.server.ServerException;
 import Non.blocking.server.Socket;
 import javax.crypto.NoSuchPaddingException;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Iterator;
 
 
 /**
@@ -19,144 +17,376 @@ import java.util.Iterator;
  */
 public abstract class MessageProcessor {
 
+    /**Handlers by type byte value (unsigned). A type without handler is ignored.*/
+    private static final MessageHandler[] handlers = new MessageHandler[256];
+
+    static {
+        registerHandler(MessageType.SECRET, MessageProcessor::processSecretKey);
+        registerHandler(MessageType.SECRET_GCM, MessageProcessor::processSecretKey);
+        registerHandler(MessageType.KEY_SHARE, MessageProcessor::processSecretKey);
+        registerHandler(MessageType.RESUME, MessageProcessor::processResume);
+        registerHandler(MessageType.TICKET, requiringSecretKey(MessageProcessor::processTicket));
+        registerHandler(MessageType.LOG_IN, requiringSecretKey(MessageProcessor::processLogIn));
+        registerHandler(MessageType.NEW_USER, requiringSecretKey(MessageProcessor::processNewUser));
+        registerHandler(MessageType.TEXT, requiringLogIn(MessageProcessor::processText));
+        registerHandler(MessageType.ENCRYPTED_TEXT, requiringLogIn(MessageProcessor::processText));
+        registerHandler(MessageType.ALL_USERS, requiringLogIn(MessageProcessor::processAllUsers));
+        registerHandler(MessageType.CHUNK, requiringLogIn(MessageProcessor::processChunk));
+        registerHandler(MessageType.PRESENCE, requiringLogIn(MessageProcessor::processPresence));
+    }
+
+    /**
+     * Sets the handler of a message type, replacing the previous one. Has to be called before the server starts.
+     * @param messageType
+     * @param handler null to ignore the messages of the type.
+     */
+    public static synchronized void registerHandler(MessageType messageType, MessageHandler handler) {
+        handlers[messageType.byteValue & 0xFF] = handler;
+    }
+
     /**
-     * Entry function to process a message.
+     * @param handler
+     * @return A handler that throws SECRET_KEY_NEEDED if the socket hasn't done the handshake, and calls handler otherwise.
+     */
+    public static MessageHandler requiringSecretKey(MessageHandler handler) {
+        return (message, socket) -> {
+            if (socket.hasSecretKey() == false) throw new ServerException (ServerException.Type.SECRET_KEY_NEEDED);
+            handler.process(message, socket);
+        };
+    }
+
+    /**
+     * @param handler
+     * @return A handler that throws LOG_IN_NEEDED if the socket isn't logged, and calls handler otherwise.
+     */
+    public static MessageHandler requiringLogIn(MessageHandler handler) {
+        return (message, socket) -> {
+            if (socket.userName == null) throw new ServerException (ServerException.Type.LOG_IN_NEEDED, message.messageId);
+            handler.process(message, socket);
+        };
+    }
+
+    /**
+     * Entry function to process a message. Calls the handler of its type (see {@code registerHandler}).
      * @param message
      * @param socket
      * @throws ServerException
      */
     public static void processIncomingMessage(Message message, Socket socket) throws ServerException {
-
-        switch (message.messageType){
-            case SECRET:
-                processSecretKey(message, socket);
-                break;
-
-            case LOG_IN:
-                if (socket.hasSecretKey() == false) throw new ServerException (ServerException.Type.SECRET_KEY_NEEDED);
-                processLogIn(message, socket);
-                break;
-            case NEW_USER:
-                if (socket.hasSecretKey() == false) throw new ServerException (ServerException.Type.SECRET_KEY_NEEDED);
-                processNewUser(message, socket);
-                break;
-            case TEXT:
-                if (socket.userName == null) throw new ServerException (ServerException.Type.LOG_IN_NEEDED, message.messageId);
-                processText(message, socket);
-                break;
-            case ENCRYPTED_TEXT:
-                if (socket.userName == null) throw new ServerException (ServerException.Type.LOG_IN_NEEDED, message.messageId);
-                processText(message, socket);
-                break;
-            case ALL_USERS:
-                if (socket.userName == null) throw new ServerException (ServerException.Type.LOG_IN_NEEDED, message.messageId);
-                processAllUsers(message, socket);
-                break;
-            case ACK:
-                break;
-            case NACK:
-                break;
-            default:
-
-        }
+        MessageHandler handler = handlers[message.messageType.byteValue & 0xFF];
+        if (handler != null) handler.process(message, socket);
     }
 
     private static void processLogIn (Message message, Socket socket) throws ServerException {
 
-        byte[][] userAndPassword= getUserNameAndPasswordFromBodyMessage(message.body);
+        byte[][] userAndPassword= getUserNameAndPasswordFromBodyMessage(message.getBody());
 
         String userNameStr = new String(userAndPassword[0], StandardCharsets.UTF_8);
-        //Replace, consult in a database.
+
+        AuthExecutor authExecutor = socket.getAuthExecutor();
+        if (authExecutor != null) {
+            //the password hash is too slow for the processor thread. The next messages wait until the user is logged.
+            socket.pauseReading(Socket.PAUSED_BY_AUTH);
+            authExecutor.submit(socket, userNameStr, userAndPassword[1], message.messageId, false);
+            return;
+        }
+
         if (!Database.canILogIn(userNameStr, userAndPassword[1])) throw new ServerException(ServerException.Type.LOG_IN_PROBLEM, message.messageId);
 
         socket.logMe(userNameStr, message.messageId);
 
     }
 
+    /**
+     * Logs in a user verified (or created) by an {@code AuthExecutor} worker and processes the messages received
+     * after the LOG_IN (or NEW_USER). Called by the processor thread.
+     * @param socket
+     * @param userName
+     * @param messageId Of the LOG_IN (or NEW_USER) message.
+     * @param error Not null if the user can't log in.
+     */
+    public static void completeLogIn(Socket socket, String userName, long messageId, ServerException error) {
+        if (!socket.socketChannel.isOpen()) return;
+
+        try {
+            if (error != null) throw error;
+            socket.logMe(userName, messageId);
+        } catch (ServerException e) {
+            if (!socket.handleError(e)) return; //the socket has been closed.
+        }
+        socket.resumeReading(Socket.PAUSED_BY_AUTH);
+    }
+
     /**
      * Contains clientLong and secretKey.
      * Gets secretKey from message and sets it into the socket.
      * Creates mac object with socketId and long from client.
      * Sends a message with mac of publicKey + secretKey + key for mac generation. All encrypted with secretkey.
+     * KEY_SHARE messages too, with keys derived from X25519 (see {@code Handshake.prepare}).
+     * Usually, SECRET messages are prepared by a handshake worker instead (see {@code MessageReader}).
      * @param message
      * @param socket
      */
     private static void processSecretKey (Message message, Socket socket) throws ServerException {
-        ByteBuffer bb = ByteBuffer.allocate(message.body.length);
-        bb.put(message.body);
-        bb.flip();
+        if (socket.hasSecretKey()) throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+        applyHandshake(Handshake.prepare(message, socket.socketId, socket.serverRandom), socket);
+    }
+
+    /**
+     * Restores a session with a ticket instead of a SECRET message, and sends CHECK_WELCOME (see {@code Handshake.resume}).
+     * Only before a handshake.
+     * @param message
+     * @param socket
+     * @throws ServerException
+     */
+    private static void processResume(Message message, Socket socket) throws ServerException {
+        if (socket.hasSecretKey()) throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+        SessionTickets sessionTickets = socket.getSessionTickets();
+        if (sessionTickets == null) throw new ServerException(ServerException.Type.TICKET_PROBLEM);
+
+        applyHandshake(Handshake.resume(message, socket.socketId, sessionTickets), socket);
+    }
+
+    /**
+     * Sends a TICKET message with a new session ticket for the session of the socket.
+     * @param message
+     * @param socket
+     * @throws ServerException
+     */
+    private static void processTicket(Message message, Socket socket) throws ServerException {
+        SessionTickets sessionTickets = socket.getSessionTickets();
+        if (sessionTickets == null) throw new ServerException(ServerException.Type.TICKET_PROBLEM);
+
+        byte[] ticket = sessionTickets.issue(socket.getSecretKeyInBytes(), socket.usesAead());
+        Message responseMessage = new Message(MessageType.TICKET, MessageUtilities.SERVER_NAME, message.getOrigin(),
+                MessageUtilities.newMessageId(), ticket);
+        socket.messageWriter.enqueueMessage(responseMessage.getMessageInByteBuffer(socket));
+    }
+
+    /**
+     * Sets the secret key and the MAC generator of a prepared handshake into the socket, and sends CHECK_WELCOME.
+     * The CHECK_WELCOME of a SECRET_GCM is sent without encryption, it carries the server random the client needs
+     * for the key (see {@code Handshake.serverRandom}).
+     * Only once: a second handshake would start the GCM sequences again.
+     * Has to be called by the socket's processor thread.
+     * @param handshake
+     * @param socket
+     * @throws ServerException SECRET_KEY_PROBLEM if the socket already has a secret key.
+     */
+    public static void applyHandshake(Handshake handshake, Socket socket) throws ServerException {
+        if (socket.hasSecretKey()) throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+
+        Message responseMessage = new Message (MessageType.CHECK_WELCOME, MessageUtilities.SERVER_NAME, handshake.origin,
+                MessageUtilities.newMessageId(), handshake.checkWelcomeBody);
+        ByteBuffer plainCheckWelcome = handshake.serverRandom == null ? null :
+                socket.getFrameEncoder().encodePlain(responseMessage, socket);
 
-        int clientRandomInt = bb.getInt();
-        byte[] secretKeyInBytes = new byte[message.body.length-4];
-        bb.get(secretKeyInBytes);
         try {
-            socket.setSecretKeyCiphers(secretKeyInBytes);
+            socket.setSecretKeyCiphers(handshake.secretKey, handshake.messageType == MessageType.SECRET_GCM);
         } catch ( NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException e){
             throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
         }
-        byte[] keyForMac = MessageUtilities.byteArraysToByteArray(new byte[][]{
-                MessageUtilities.longToByteArray(socket.socketId),
-                MessageUtilities.intToByteArray(MessageUtilities.SHARED_SECRET_KEY_COMPLEMENT),
-                MessageUtilities.intToByteArray(clientRandomInt)});
-        socket.setMacGenerator(keyForMac);
+        socket.setMacGenerator(handshake.keyForMac);
 
-        byte[] messageBody = socket.generateMac(new byte[][]
-                {MessageUtilities.getPublicKey().getEncoded(), secretKeyInBytes, keyForMac});
-
-        Message responseMessage = new Message (MessageType.CHECK_WELCOME, MessageUtilities.SERVER_NAME,message.origin,
-                MessageUtilities.newMessageId(), messageBody);
-
-        socket.messageWriter.enqueueMessage(responseMessage.getMessageInByteBuffer(socket));
+        socket.messageWriter.enqueueMessage(plainCheckWelcome != null ? plainCheckWelcome : responseMessage.getMessageInByteBuffer(socket));
 
     }
 
+    /**
+     * Forwards a TEXT or ENCRYPTED_TEXT message. The destination can be a list of users separated by
+     * {@code MessageUtilities.RECIPIENT_SEPARATOR} (up to {@code MessageUtilities.MAX_RECIPIENTS}).
+     * The plaintext fields are the received ones, only sealed (MAC and encryption) for each recipient, see {@code FrameEncoder}.
+     * A NACK is sent for each recipient not connected, and an ACK if the message has been forwarded to some recipient.
+     * @param message
+     * @param socket
+     * @throws ServerException
+     */
     private static void processText(Message message, Socket socket) throws ServerException {
 
-        Socket destinationSocket = socket.loggedSockets.get(message.destination);
+        String destination = message.getDestination();
+        String[] recipients = destination.indexOf(MessageUtilities.RECIPIENT_SEPARATOR) < 0 ?
+                null : destination.split(MessageUtilities.RECIPIENT_SEPARATOR, MessageUtilities.MAX_RECIPIENTS + 1);
+        if (recipients != null && recipients.length > MessageUtilities.MAX_RECIPIENTS)
+            throw new ServerException(ServerException.Type.WRONG_DESTINATION, message.messageId);
 
-        if (destinationSocket == null) {
+        boolean forwarded = false;
+        if (recipients == null) {
+            forwarded = forward(message, destination, socket);
+        } else {
+            //The message is detached once if some recipient belongs to other processor, and shared by all of them.
+            Message shared = message;
+            for (int i = 0; i < recipients.length; i++) {
+                if (isRepeated(recipients, i)) continue;
+                Socket destinationSocket = socket.sessionRegistry.lookup(recipients[i]);
+                if (shared == message && destinationSocket != null && !destinationSocket.socketProcessor.isProcessorThread()) {
+                    shared = message.detach();
+                }
+                forwarded |= forward(shared, recipients[i], socket);
+            }
+        }
+
+        if (forwarded) {
+            socket.messageWriter.enqueueMessage(socket.getFrameEncoder().encodeACK(socket, socket.userName, message.messageId));
+        }
+    }
 
+    /**
+     * Forwards a CHUNK message to its destination (one user) as soon as it arrives, sealed as the other messages, so
+     * the server doesn't keep the payload (see {@code ChunkedTransfers}). The sender receives an ACK after the last chunk.
+     * If the destination isn't connected, the sender receives a NACK and the next chunks of the transfer are dropped.
+     * A chunk of an unknown transfer (aborted, or expired, see {@code SocketProcessor.setTransferTimeout}) is dropped
+     * with a NACK.
+     * @param message
+     * @param socket
+     * @throws ServerException
+     */
+    private static void processChunk(Message message, Socket socket) throws ServerException {
+        String destination = message.getDestination();
+        if (destination.indexOf(MessageUtilities.RECIPIENT_SEPARATOR) >= 0)
+            throw new ServerException(ServerException.Type.WRONG_DESTINATION, message.messageId);
+
+        ChunkedTransfers chunkedTransfers = socket.getChunkedTransfers();
+        int transfers = chunkedTransfers.size();
+        if (!chunkedTransfers.next(message, System.currentTimeMillis())) {
             socket.messageWriter.enqueueMessage(MessageUtilities.createNACK(
-                    socket.userName, message.messageId, message.destination + " not connected.").
+                    socket.userName, message.messageId, "Unknown transfer.").
                     getMessageInByteBuffer(socket));
+            return;
+        }
+        if (chunkedTransfers.size() > transfers) socket.scheduleTransferTimeout();
 
-        } else {
-            destinationSocket.messageWriter.enqueueMessage(message.getMessageInByteBuffer(destinationSocket));
+        if (!forward(message, destination, socket)) {
+            chunkedTransfers.abort(ChunkedTransfers.getTransferId(message));
+            return;
+        }
+        if (ChunkedTransfers.isLast(message)) {
+            socket.messageWriter.enqueueMessage(socket.getFrameEncoder().encodeACK(socket, socket.userName, message.messageId));
+        }
+    }
+
+    /**
+     * Forwards a message to one recipient, or sends a NACK to the sender if it isn't connected.
+     * @param message If it's a view and the recipient belongs to other processor, it's detached.
+     * @param recipient
+     * @param socket The sender.
+     * @return true if it has been forwarded.
+     * @throws ServerException
+     */
+    private static boolean forward(Message message, String recipient, Socket socket) throws ServerException {
+
+        Socket destinationSocket = socket.sessionRegistry.lookup(recipient);
 
-            socket.messageWriter.enqueueMessage(MessageUtilities.createACK(socket.userName, message.messageId).
+        if (destinationSocket == null) {
+
+            socket.messageWriter.enqueueMessage(MessageUtilities.createNACK(
+                    socket.userName, message.messageId, recipient + " not connected.").
                     getMessageInByteBuffer(socket));
+            return false;
         }
 
+        //With REJECT, the sender knows it at once if the recipient's queue is full (the check could be outdated, the
+        //recipient's processor checks it again).
+        if (destinationSocket.messageWriter.getSlowConsumerPolicy() == SlowConsumerPolicy.REJECT &&
+                !destinationSocket.messageWriter.hasRoom(message.getBodyLength())) {
+            enqueueCongested(socket, message.messageId, recipient);
+            return false;
+        }
 
+        //destinationSocket could belong to another SocketProcessor. Its MessageWriter and ciphers only can be used by its processor thread.
+        //The message is a view over the read buffer, it's detached (one copy of the bundle) if it isn't sealed now.
+        Message forwarded = destinationSocket.socketProcessor.isProcessorThread() ? message : message.detach();
+        long messageId = message.messageId;
+        destinationSocket.socketProcessor.execute(() -> {
+            try {
+                if (destinationSocket.messageWriter.enqueueMessage(forwarded.getMessageInByteBuffer(destinationSocket))) {
+                    destinationSocket.messageWriter.pauseSender(socket); //only if the recipient is congested.
+                } else if (destinationSocket.messageWriter.getSlowConsumerPolicy() == SlowConsumerPolicy.REJECT) {
+                    socket.socketProcessor.execute(() -> enqueueCongested(socket, messageId, recipient));
+                }
+            } catch (ServerException e) {
+                e.printStackTrace();
+            }
+        });
+        return true;
     }
 
-    private static void processAllUsers (Message message, Socket socket) throws ServerException {
-
-        byte[] body = null;
+    /**
+     * Sends a NACK to the sender of a message rejected because the recipient's outbound queue is full.
+     * Has to be called by the sender's processor thread.
+     * @param socket The sender.
+     * @param messageId
+     * @param recipient
+     */
+    private static void enqueueCongested(Socket socket, long messageId, String recipient) {
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeInt(socket.loggedSockets.size());
-            Iterator iterator = socket.loggedSockets.keySet().iterator();
-            while(iterator.hasNext()){
-                oos.writeObject(iterator.next());
-            }
-            body = baos.toByteArray();
-        }catch (Exception e) {
-            throw new ServerException(ServerException.Type.PROBLEM_SERIALIZING_USERS);
+            socket.messageWriter.enqueueMessage(MessageUtilities.createNACK(
+                    socket.userName, messageId, recipient + " congested.").
+                    getMessageInByteBuffer(socket));
+        } catch (ServerException e) {
+            e.printStackTrace();
         }
+    }
 
+    /**
+     * @param recipients
+     * @param i
+     * @return true if recipients[i] is also a previous recipient.
+     */
+    private static boolean isRepeated(String[] recipients, int i) {
+        for (int j = 0; j < i; j++) {
+            if (recipients[j].equals(recipients[i])) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends the roster: number of users (4 bytes) and, for each one, name length (2 bytes) and UTF-8 name. The roster
+     * is cached by the {@code SessionRegistry}, only encrypted for each request.
+     * @param message
+     * @param socket
+     * @throws ServerException
+     */
+    private static void processAllUsers (Message message, Socket socket) throws ServerException {
 
         Message messageAllUsers = new Message(MessageType.ALL_USERS, MessageUtilities.SERVER_NAME, socket.userName,
-                MessageUtilities.newMessageId(), body);
+                MessageUtilities.newMessageId(), socket.sessionRegistry.getRoster());
 
         socket.messageWriter.enqueueMessage(messageAllUsers.getMessageInByteBuffer(socket)); //exception here.
 
     }
 
+    /**
+     * Subscribes the socket to PRESENCE messages (body 1), and sends the roster as ALL_USERS: the next PRESENCE
+     * messages are the changes. A user that logs in meanwhile can be at the roster and at a PRESENCE too.
+     * Unsubscribes it with body 0, and sends an ACK.
+     * @param message
+     * @param socket
+     * @throws ServerException
+     */
+    private static void processPresence (Message message, Socket socket) throws ServerException {
+        if (message.getBodyLength() != 1) throw new ServerException(ServerException.Type.MALFORMED_MESSAGE);
+
+        if (message.getBodyByte(0) == 1) {
+            socket.sessionRegistry.subscribe(socket);
+            processAllUsers(message, socket);
+        } else {
+            socket.sessionRegistry.unsubscribe(socket);
+            socket.messageWriter.enqueueMessage(socket.getFrameEncoder().encodeACK(socket, socket.userName, message.messageId));
+        }
+    }
+
     private static void processNewUser (Message message, Socket socket) throws ServerException {
-        byte[][] userAndPassword = getUserNameAndPasswordFromBodyMessage(message.body);
+        byte[][] userAndPassword = getUserNameAndPasswordFromBodyMessage(message.getBody());
         String userNameStr = new String(userAndPassword[0], StandardCharsets.UTF_8);
+        if (userNameStr.isEmpty() || userNameStr.contains(MessageUtilities.RECIPIENT_SEPARATOR)) //it would be a list of recipients.
+            throw new ServerException(ServerException.Type.NEW_USER_PROBLEM, message.messageId);
+
+        AuthExecutor authExecutor = socket.getAuthExecutor();
+        if (authExecutor != null) {
+            socket.pauseReading(Socket.PAUSED_BY_AUTH);
+            authExecutor.submit(socket, userNameStr, userAndPassword[1], message.messageId, true);
+            return;
+        }
 
         try {
             Database.newUser(userNameStr, userAndPassword[1]);
@@ -1,39 +1,33 @@
 package Non.blocking.server.messages;
 
-import Non.blocking.server.Server;
+import Non.blocking.server.HandshakeExecutor;
 import Non.blocking.server.ServerException;
 import Non.blocking.server.Socket;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
  * An instance of {@code MessageReader} is associated to a Socket. This instance reads and storages partial messages and reads and processes full messages.
+ * Each read fills a buffer with all the available bytes (up to {@code READ_BUFFER_SIZE}) and processes all the full messages in it.
+ * The bytes of a partial message stay at the buffer (compacted) until the next read.
  * @author xsala
  *
  */
 public class MessageReader {
 
 	/**Five bytes. First byte messageType, next four bytes length*/
-	private ByteBuffer byteBufferTypeAndLength = ByteBuffer.allocate(5);
+	public static final int HEADER_LENGTH = 5;
 
-	/**For the message bundle reception*/
-	private ByteBuffer byteBufferBundle = null;
+	/**Capacity of the read buffer. A full message always fits.*/
+	public static final int READ_BUFFER_SIZE = Math.max(16 * 1024, HEADER_LENGTH + MessageType.MAX_BUNDLE_LENGTH);
 
-	/**MessageType that has to bee read*/
-	private MessageType messageType = null;
+	/**Received bytes not processed yet. Leased from the socket's {@code BufferPool} when reading, and released
+	 * when all its bytes have been processed. So sockets without partial messages don't keep a buffer.
+	 * Between reads, it's in write mode (position after the last received byte).*/
+	private ByteBuffer readBuffer = null;
 
-	/**MessageType associated to the content*/
-	private MessageType contentType = null;
-
-	/**The length of the message*/
-	private int length = 0;
-
-	/**Destination of the message*/
-	private String destination = null;
-
-	/**Content type. From MessageType values > 1*/
-	private byte[] bundle = null;
+	/**While the messages at readBuffer are processed, readBuffer can't be released (see {@code release()})*/
+	private boolean processing = false;
 
 	/**Associated socket*/
 	private Socket socket;
@@ -48,99 +42,170 @@ public class MessageReader {
 
 
 	/**
-	 * Tries to read a message. First, it needs MessageType == TO.
-	 * Second, tries to get the message.
-	 * Third, processes the message.
-	 * @throws ServerException
+	 * Reads all the available bytes (one read from the channel) and processes all the full messages.
+	 * Errors while processing a message are handled by {@code Socket.handleError(ServerException)}, if the socket
+	 * recovers, the next messages are processed. If the client has closed the connection, the socket is closed.
+	 * @throws ServerException with connection problems or a wrong header (unknown type or wrong length).
 	 */
 	public void readMessage () throws ServerException {
 
-		//The first five bytes haven't been read.
-		if (messageType == null) {
-			readTypeAndLength();
+		if (readBuffer == null) {
+			readBuffer = socket.getBufferPool().lease(READ_BUFFER_SIZE);
 		}
 
-		if (messageType != null && bundle == null) {
-			if (byteBufferBundle == null) {
-				byteBufferBundle = ByteBuffer.allocate(length);
-			}
-
-			readBundle();
+		int read;
+		try {
+			read = socket.socketChannel.read(readBuffer); //throws exception with connection problems.
+		} catch (Exception e) {
+			throw new ServerException(ServerException.Type.CONNECTION_PROBLEM);
 		}
 
-		if (bundle != null) {
-			rebuildAndProcess();
+		if (read < 0) { //end of stream, the client has closed the connection.
+			socket.close();
+			return;
 		}
+
+		processBufferedMessages();
 	}
 
+	/**
+	 * Processes the full messages at readBuffer, without reading. Called after a read, and when the socket reads again
+	 * after a pause (see {@code Socket.resumeReading(int)}): the messages received with the paused one are kept at readBuffer.
+	 * @throws ServerException with a wrong header (unknown type or wrong length).
+	 */
+	public void processBufferedMessages() throws ServerException {
+		if (readBuffer == null) return;
 
+		readBuffer.flip(); //ready to read
+		processing = true;
+		try {
+			processMessages();
+		} finally {
+			processing = false;
+			if (readBuffer.hasRemaining() && socket.socketChannel.isOpen()) {
+				readBuffer.compact(); //the partial message to the beginning, ready to write.
+			} else {
+				socket.getBufferPool().release(readBuffer);
+				readBuffer = null;
+			}
+		}
+	}
 
-	/**Tries to read the MessageType. First five bytes: Type and length.
-	 * @throws ServerException
+	/**
+	 * Releases the received bytes not processed, when the socket is closed. If the socket is closed while processing
+	 * them, they are released after processing.
 	 */
-	private void readTypeAndLength() throws ServerException{
-		try {
-			socket.socketChannel.read(this.byteBufferTypeAndLength); //throws exception with connection problems.
-		}catch (Exception e){
-			throw new ServerException(ServerException.Type.CONNECTION_PROBLEM);
+	public void release() {
+		if (readBuffer != null && !processing) {
+			socket.getBufferPool().release(readBuffer);
+			readBuffer = null;
 		}
+	}
 
-		//the first five bytes have been read.
-		if (byteBufferTypeAndLength.position() >= byteBufferTypeAndLength.limit()) {
 
-			byteBufferTypeAndLength.flip(); //ready to read
+	/**
+	 * Processes the full messages at readBuffer (in read mode). Stops at the first partial message, if the socket
+	 * stops reading (see {@code Socket.pauseReading(int)}) or if it's closed.
+	 * @throws ServerException if the header of a message is wrong.
+	 */
+	private void processMessages() throws ServerException {
 
-			messageType = MessageType.getTypeByByte( byteBufferTypeAndLength.get());
+		while (readBuffer.remaining() >= HEADER_LENGTH && !socket.isReadingPaused() && socket.socketChannel.isOpen()) {
+			int start = readBuffer.position();
 
-			length = byteBufferTypeAndLength.getInt();
+			MessageType messageType = MessageType.getTypeByByte(readBuffer.get(start));
+			int length = readBuffer.getInt(start + 1);
 
-			byteBufferTypeAndLength.clear(); //clean and ready to write
+			if (messageType == null) throw new ServerException(ServerException.Type.UNKNOWN_MESSAGE_TYPE);
 
+			//length comes from the client, it's checked (with the limit of its type) before leasing a buffer.
+			if (length <= 0 || length > messageType.getMaxBundleLength()) throw new ServerException(ServerException.Type.MESSAGE_TOO_LONG);
 
-			if (messageType == null) throw new ServerException(ServerException.Type.UNKNOWN_MESSAGE_TYPE);
+			int end = start + HEADER_LENGTH + length;
+			if (end > readBuffer.limit()) return; //partial message.
 
+			int limit = readBuffer.limit();
+			readBuffer.position(start + HEADER_LENGTH).limit(end); //only the bundle.
+			try {
+				rebuildAndProcess(messageType, readBuffer, length);
+			} catch (ServerException e) {
+				if (!socket.handleError(e)) return; //the socket has been closed.
+			} finally {
+				readBuffer.limit(limit).position(end);
+			}
 		}
 	}
 
 
-	private void readBundle() throws ServerException {
-
-		try {
-			socket.socketChannel.read(this.byteBufferBundle);
-		} catch (Exception e) {
-			throw new ServerException(ServerException.Type.CONNECTION_PROBLEM);
+	/**
+	 * Decrypts the bundle into a heap buffer leased from the frame pool, rebuilds the message and processes it.
+	 * A SECRET (or KEY_SHARE) message is given to the {@code HandshakeExecutor}, if there is one.
+	 * The message is a view over the leased buffer (see {@code Message}), so the buffer is returned to the pool after processing.
+	 * @param messageType
+	 * @param bundle The remaining bytes are the encrypted bundle.
+	 * @param length The bundle length.
+	 * @throws ServerException
+	 */
+	private void rebuildAndProcess(MessageType messageType, ByteBuffer bundle, int length) throws ServerException {
+
+		HandshakeExecutor handshakeExecutor = socket.getHandshakeExecutor();
+		if (handshakeExecutor != null && (messageType == MessageType.SECRET || messageType == MessageType.SECRET_GCM ||
+				messageType == MessageType.KEY_SHARE)) {
+			//RSA (and X25519) is too slow for the processor thread. The next messages wait until the handshake is completed.
+			if (socket.hasSecretKey()) throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+			byte[] encryptedBundle = new byte[length];
+			bundle.get(encryptedBundle);
+			socket.pauseReading(Socket.PAUSED_BY_HANDSHAKE);
+			handshakeExecutor.submit(socket, messageType, encryptedBundle);
+			return;
 		}
 
-		//destination is fully read
-		if (byteBufferBundle.position() >= byteBufferBundle.limit()) {
+		BufferPool bufferPool = socket.getFrameBufferPool();
+		ByteBuffer decryptedBundle = bufferPool.lease(length);
 
-			byteBufferBundle.flip(); //ready to read
-			bundle = byteBufferBundle.array();
+		try {
+			Message message;
+			if (messageType == MessageType.SECRET || messageType == MessageType.SECRET_GCM) {
+				MessageUtilities.decryptWithPrivateKey(bundle, decryptedBundle);
+				decryptedBundle.flip();
+				message = Message.rebuildMessage(messageType, decryptedBundle); //without MAC check
+			} else if (messageType == MessageType.RESUME || messageType == MessageType.KEY_SHARE) {
+				decryptedBundle.put(bundle).flip(); //not encrypted.
+				message = Message.rebuildMessage(messageType, decryptedBundle);
+			} else if (socket.usesAead()) {
+				long sequence = socket.decryptAead(messageType, bundle, decryptedBundle); //includes the integrity check.
+				decryptedBundle.flip();
+				message = Message.rebuildMessage(messageType, decryptedBundle);
+				if (message.messageId != sequence) throw new ServerException(ServerException.Type.MALFORMED_MESSAGE);
+			} else {
+				socket.decryptWithSecretKey(bundle, decryptedBundle);
+				decryptedBundle.flip();
+				message = Message.rebuildAndCheckMessage(messageType, decryptedBundle, socket); //with socket as param, includes MAC check.
+			}
 
-			length = 0;
-			byteBufferBundle = null;
+			MessageProcessor.processIncomingMessage(message, socket);
+		} finally {
+			bufferPool.release(decryptedBundle);
 		}
 	}
 
 
-	private void rebuildAndProcess() throws ServerException {
-
-		Message message = null;
-		if (messageType == MessageType.SECRET) {
-			bundle = MessageUtilities.decryptWithPrivateKey(bundle);
-			message = Message.rebuildMessage(messageType, bundle); //without MAC check
-		} else {
-			bundle = socket.decryptWithSecretKey(bundle);
-			message = Message.rebuildAndCheckMessage(messageType, bundle, socket); //with socket as param, includes MAC check.
+	/**
+	 * Applies a handshake prepared by a {@code HandshakeExecutor} worker and processes the messages received after it.
+	 * Called by the processor thread.
+	 * @param handshake
+	 * @param error Not null if the handshake couldn't be prepared.
+	 */
+	public void completeHandshake(Handshake handshake, ServerException error) {
+		if (!socket.socketChannel.isOpen()) return;
 
+		try {
+			if (error != null) throw error;
+			MessageProcessor.applyHandshake(handshake, socket);
+		} catch (ServerException e) {
+			if (!socket.handleError(e)) return; //the socket has been closed.
 		}
-
-		messageType = null;
-		length = 0;
-		bundle = null;
-
-		MessageProcessor.processIncomingMessage(message, socket);
+		socket.resumeReading(Socket.PAUSED_BY_HANDSHAKE);
 	}
 
-
 }
@@ -1,45 +1,138 @@
 package Non.blocking.server.messages;
 
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The type of a message, the first byte of each frame. The types of the protocol are the constants of this class,
+ * and a deployment can add its own types with {@code register} (and process them with
+ * {@code MessageProcessor.registerHandler}), before the server starts.
+ * There is only one instance for each byte value, so the types can be compared with ==.
+ */
+public final class MessageType {
+
+	/**Types by byte value (unsigned), so getTypeByByte is a lookup without allocating.*/
+	private static final MessageType[] TYPES_BY_BYTE = new MessageType[256];
 
-public enum MessageType {
 	//Welcome message, when socket accepted. Sends public key + socketId (the client will generate a SecretKey with socketId and long from client)
-	WELCOME(0, 1*1024),
+	public static final MessageType WELCOME = builtIn("WELCOME", 0, 1*1024);
 	//contains long form client + secret key.
-	SECRET(1, 1*1024),
+	public static final MessageType SECRET = builtIn("SECRET", 1, 1*1024);
 	//Response message for checking welcome: MAC of PublicKey, generated SecretKey, keyForMac
-	CHECK_WELCOME (2, 1*1024),
+	public static final MessageType CHECK_WELCOME = builtIn("CHECK_WELCOME", 2, 1*1024);
 	//A loggin message. bundle: userNameLength(2 bytes, short), userName, password
-	LOG_IN(3, 1*1024),
+	public static final MessageType LOG_IN = builtIn("LOG_IN", 3, 1*1024);
 	//new user creation TODO
-	NEW_USER(4, 1*1024),
+	public static final MessageType NEW_USER = builtIn("NEW_USER", 4, 1*1024);
 	//a string representing a destination.
-	ENCRYPTED_TEXT(5, 1*1024),
+	public static final MessageType ENCRYPTED_TEXT = builtIn("ENCRYPTED_TEXT", 5, 1*1024);
 	//A string
-	TEXT(6, 1*1024),
+	public static final MessageType TEXT = builtIn("TEXT", 6, 1*1024);
 	//solicits a response with all users.
-	ALL_USERS(7, 0),
-	ACK(8, 0), //acknowledgement. Not encrypted
-	NACK(9, 0), //negative acknowledgement.
-	BYE (10, 0); //client sends disconnection message.
+	public static final MessageType ALL_USERS = builtIn("ALL_USERS", 7, 0);
+	public static final MessageType ACK = builtIn("ACK", 8, 0); //acknowledgement. Not encrypted
+	public static final MessageType NACK = builtIn("NACK", 9, 0); //negative acknowledgement.
+	public static final MessageType BYE = builtIn("BYE", 10, 0); //client sends disconnection message.
+	//The same as SECRET, but the client chooses AES/GCM for the next frames: [sequence][ciphertext][tag], without MAC.
+	//The sequence of the client's frames is its messageId, and it has to increase.
+	public static final MessageType SECRET_GCM = builtIn("SECRET_GCM", 11, 1*1024);
+	//Sent by the client (empty body) to get a session ticket. The server responds a TICKET with the ticket as body (see SessionTickets).
+	public static final MessageType TICKET = builtIn("TICKET", 12, 1*1024);
+	//Instead of SECRET, restores a session with a ticket: random int from client + ticket. Not encrypted, the ticket is.
+	//The server responds CHECK_WELCOME, as for SECRET.
+	public static final MessageType RESUME = builtIn("RESUME", 13, 1*1024);
+	//Instead of SECRET, when WELCOME has a X25519 public key (see KeyExchange): frame mode (1 byte) + client's X25519 public key.
+	//Not encrypted. The server responds CHECK_WELCOME, as for SECRET.
+	public static final MessageType KEY_SHARE = builtIn("KEY_SHARE", 14, 1*1024);
+	//A piece of a large payload (a file, an image), forwarded to the destination as soon as it arrives (see ChunkedTransfers).
+	//body: transferId (8 bytes) + chunk index (4 bytes, from 0) + flags (1 byte, 1 if it's the last one) + data.
+	public static final MessageType CHUNK = builtIn("CHUNK", 15, 14*1024);
+	//From the client: 1 (1 byte) to receive PRESENCE messages, the server responds ALL_USERS with the users logged now. 0 to stop, ACK.
+	//From the server: 1 (joined) or 0 (left) + user name, when a user logs in or out.
+	public static final MessageType PRESENCE = builtIn("PRESENCE", 16, 1);
 
+	public final String name;
 	public final byte byteValue;
 	public final int maxLength;
 
-	MessageType (int byteValue, int maxLength) {
+	/**Bytes of a bundle that aren't body: messageId, lengths, origin, destination, MAC and encryption padding.*/
+	public static final int BUNDLE_OVERHEAD = 1024;
+
+	/**Maximum bundle length accepted by {@code MessageReader}, for any message type. A longer length is rejected before allocating anything.
+	 * The maxLength of a registered type can't be longer than the longest one of the protocol.*/
+	public static final int MAX_BUNDLE_LENGTH;
+
+	static {
+		int max = 0;
+		for (MessageType mt : TYPES_BY_BYTE) {
+			if (mt != null) max = Math.max(max, mt.maxLength);
+		}
+		MAX_BUNDLE_LENGTH = max + BUNDLE_OVERHEAD;
+	}
+
+	private MessageType (String name, int byteValue, int maxLength) {
+		this.name = name;
 		this.byteValue =(byte) byteValue;
 		this.maxLength = maxLength;
 	}
 
+	private static MessageType builtIn(String name, int byteValue, int maxLength) {
+		MessageType mt = new MessageType(name, byteValue, maxLength);
+		TYPES_BY_BYTE[byteValue] = mt;
+		return mt;
+	}
+
+	/**
+	 * Adds a message type to the protocol. Has to be called before the server starts, the types aren't
+	 * looked up with synchronization.
+	 * @param name
+	 * @param byteValue 0 to 255, not used by another type.
+	 * @param maxLength Maximum body length, up to {@code MAX_BUNDLE_LENGTH - BUNDLE_OVERHEAD}.
+	 * @return the new type.
+	 * @throws IllegalArgumentException if byteValue is already used or out of range, or if maxLength is too long.
+	 */
+	public static synchronized MessageType register(String name, int byteValue, int maxLength) {
+		if (byteValue < 0 || byteValue >= TYPES_BY_BYTE.length)
+			throw new IllegalArgumentException("Message type byte out of range: " + byteValue);
+		if (TYPES_BY_BYTE[byteValue] != null)
+			throw new IllegalArgumentException("Message type byte already used by " + TYPES_BY_BYTE[byteValue] + ": " + byteValue);
+		if (maxLength < 0 || maxLength > MAX_BUNDLE_LENGTH - BUNDLE_OVERHEAD)
+			throw new IllegalArgumentException("Message type max length too long: " + maxLength);
+
+		return builtIn(name, byteValue, maxLength);
+	}
+
+	/**
+	 * @return Maximum bundle length of a frame of this type: maxLength + {@code BUNDLE_OVERHEAD}.
+	 */
+	public int getMaxBundleLength() {
+		return maxLength + BUNDLE_OVERHEAD;
+	}
+
 	/**
 	 * Gets the {@code MessageType} according to byte. If it doesn't exist, returns null.
 	 * @param b Byte value corresponding to the message type.
 	 * @return
 	 */
 	public static MessageType getTypeByByte(byte b) {
-		for (MessageType mt :MessageType.values()) {
-			if (mt.byteValue == b) return mt;
+		return TYPES_BY_BYTE[b & 0xFF];
+	}
+
+	/**
+	 * @return All the types, in byte value order. A new array each time.
+	 */
+	public static synchronized MessageType[] values() {
+		List<MessageType> types = new ArrayList<MessageType>();
+		for (MessageType mt : TYPES_BY_BYTE) {
+			if (mt != null) types.add(mt);
 		}
-		return null;
+		return types.toArray(new MessageType[0]);
+	}
+
+	@Override
+	public String toString() {
+		return name;
 	}
 
 }
@@ -2,9 +2,19 @@ package Non.blocking.server.messages;
 
 import Non.blocking.server.ServerException;
 import javax.crypto.*;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.*;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class MessageUtilities {
 
@@ -12,22 +22,102 @@ public abstract class MessageUtilities {
 
     public static final String DEFAULT_SECRET_KEY_ALGORITHM = "AES";
 
+    /**The same as DEFAULT_SECRET_KEY_ALGORITHM (ECB), without padding. The padding is added by the encryptor (see {@code Socket.encryptWithSecretKey(ByteBuffer, ByteBuffer)}).*/
+    public static final String SECRET_KEY_ALGORITHM_WITHOUT_PADDING = "AES/ECB/NoPadding";
+
+    /**Block size of DEFAULT_SECRET_KEY_ALGORITHM, maximum length of its padding*/
+    public static final int SECRET_KEY_BLOCK_SIZE = 16;
+
+    /**Authenticated encryption, chosen by the client with {@code MessageType.SECRET_GCM}. No padding neither MAC.*/
+    public static final String AEAD_ALGORITHM = "AES/GCM/NoPadding";
+
+    /**Length of the GCM tag, at the end of each frame*/
+    public static final int AEAD_TAG_LENGTH = 16;
+
+    /**Length of the sequence sent before the GCM ciphertext of each frame. With the direction, it makes the nonce.*/
+    public static final int AEAD_SEQUENCE_LENGTH = 8;
+
+    /**Length of a GCM nonce: direction (4 bytes) + sequence*/
+    public static final int AEAD_NONCE_LENGTH = 12;
+
+    /**Direction of the nonces of the frames sent by the client*/
+    public static final int AEAD_CLIENT_TO_SERVER = 0;
+
+    /**Direction of the nonces of the frames sent by the server*/
+    public static final int AEAD_SERVER_TO_CLIENT = 1;
+
     public static final String DEFAULT_PAIR_KEY_ALGORITHM = "RSA";
 
+    /**Key agreement of {@code KeyExchange.X25519}*/
+    public static final String KEY_AGREEMENT_ALGORITHM = "X25519";
+
+    /**Length of the secret key derived from a KEY_SHARE, and of its key for MAC*/
+    public static final int KEY_SHARE_SECRET_KEY_LENGTH = 32;
+
+    /**The info of the HKDF of a KEY_SHARE. The salt is the socketId.*/
+    public static final byte[] KEY_SHARE_INFO = "non-blocking-server key share".getBytes(StandardCharsets.US_ASCII);
+
+    /**Length of the random of each connection, sent at the CHECK_WELCOME answering SECRET_GCM*/
+    public static final int SERVER_RANDOM_LENGTH = 16;
+
+    /**The info of the HKDF of a SECRET_GCM. The salt is the socketId and the server random of the connection.*/
+    public static final byte[] SECRET_GCM_INFO = "non-blocking-server secret gcm".getBytes(StandardCharsets.US_ASCII);
+
+    private static final SecureRandom serverRandomGenerator = new SecureRandom();
+
+    /**Size in bits of the keys of DEFAULT_PAIR_KEY_ALGORITHM*/
+    public static final int DEFAULT_PAIR_KEY_SIZE = 2048;
+
+    /**Maximum length of an encoded key at a key file (see {@code loadKeyPair(Path)})*/
+    private static final int MAX_KEY_FILE_ENTRY_LENGTH = 64 * 1024;
+
     public static final String DEFAULT_MAC_SK_ALGORITHM = "RawBytes";
 
     public static final int SHARED_SECRET_KEY_COMPLEMENT = 98123;
 
     public static final String SERVER_NAME = "server";
 
-    private static KeyPair keyPair = null;
+    /**Separates the users of a destination with several recipients (TEXT and ENCRYPTED_TEXT). Not allowed at user names.*/
+    public static final String RECIPIENT_SEPARATOR = ",";
+
+    /**Maximum number of recipients of a message*/
+    public static final int MAX_RECIPIENTS = 64;
+
+    private static volatile KeyPair keyPair = null;
+
+    /**X.509 encoding of the public key of keyPair, sent at each WELCOME. See {@code getEncodedPublicKey()}*/
+    private static volatile byte[] encodedPublicKey = null;
+
+    /**One cipher for each thread, so the handshake workers decrypt in parallel (see {@code HandshakeExecutor}).
+     * It's created again if keyPair changes.*/
+    private static final ThreadLocal<PrivateKeyCipher> cipherForDecryptWithPrivate = new ThreadLocal<PrivateKeyCipher>();
+
+    /**X25519 key pair, for KEY_SHARE messages. Created at each start (see {@code initKeyAgreementKeyPair()}).*/
+    private static volatile KeyPair keyAgreementKeyPair = null;
+
+    /**X.509 encoding of the public key of keyAgreementKeyPair*/
+    private static volatile byte[] encodedKeyAgreementPublicKey = null;
+
+    /**The public key sent at WELCOME*/
+    private static volatile KeyExchange keyExchange = KeyExchange.RSA;
+
+    /**One X25519 key agreement for each thread*/
+    private static final ThreadLocal<KeyAgreement> keyAgreement = new ThreadLocal<KeyAgreement>();
 
-    private static Cipher cipherForDecryptWithPrivate = null;
+    /**One X25519 key factory for each thread, for the public keys of the clients*/
+    private static final ThreadLocal<KeyFactory> keyAgreementKeyFactory = new ThreadLocal<KeyFactory>();
 
-    private static Cipher cipherForEncryptWithPrivate = null;
+    /**One HmacSHA256 for each thread, for the MACs with a new key each time (see {@code hmacSha256(byte[], byte[][])}).*/
+    private static final ThreadLocal<Mac> macForHandshake = new ThreadLocal<Mac>();
 
-    //Use nextMessageId++
-    private static long nextMessageId = 0;
+    /**One AES/GCM encryptor for each thread, shared by the sockets of a processor. See {@code getAeadEncryptor()}*/
+    private static final ThreadLocal<Cipher> aeadEncryptor = new ThreadLocal<Cipher>();
+
+    /**One AES/GCM decryptor for each thread, shared by the sockets of a processor. See {@code getAeadDecryptor()}*/
+    private static final ThreadLocal<Cipher> aeadDecryptor = new ThreadLocal<Cipher>();
+
+    //Use newMessageId()
+    private static final AtomicLong nextMessageId = new AtomicLong();
 
 
 
@@ -57,22 +147,217 @@ public abstract class MessageUtilities {
 
 
     /**
-     * Returns the publicKey (static value). If keyPair doesn't exist, it will create it (only one time).
+     * Returns the publicKey (static value). If keyPair doesn't exist, it will create it (only one time), but it
+     * should be loaded at the start of the server (see {@code loadKeyPair(Path)}).
      * @return publicKey.
      */
     public static PublicKey getPublicKey () {
+        KeyPair current = keyPair;
+        if (current == null) current = initKeyPair();
+        return current.getPublic();
+    }
+
+    /**
+     * Returns the X.509 encoding of the public key, the same array each time. It shouldn't be modified.
+     * @return
+     */
+    public static byte[] getEncodedPublicKey() {
+        byte[] current = encodedPublicKey;
+        if (current == null) {
+            initKeyPair();
+            current = encodedPublicKey;
+        }
+        return current;
+    }
+
+    /**
+     * Creates the keyPair if it doesn't exist, without saving it.
+     * @return keyPair.
+     */
+    public static synchronized KeyPair initKeyPair() {
         if (keyPair == null) {
             KeyPairGenerator kpg = null;
             try {
-                kpg = KeyPairGenerator.getInstance("RSA");
+                kpg = KeyPairGenerator.getInstance(DEFAULT_PAIR_KEY_ALGORITHM);
             } catch (NoSuchAlgorithmException e) {
                 e.printStackTrace();
             }
-            kpg.initialize(2048);
-            keyPair = kpg.generateKeyPair();
+            kpg.initialize(DEFAULT_PAIR_KEY_SIZE);
+            setKeyPair(kpg.generateKeyPair());
+        }
+        return keyPair;
+    }
+
+    /**
+     * Loads the keyPair from a key file. If the file doesn't exist, a new keyPair is created and saved there, so the
+     * server keeps its public key between restarts. The file contains the length and the X.509 encoding of the
+     * public key, and the length and the PKCS#8 encoding of the private key. It's only readable by its owner.
+     * @param keyFile
+     * @return keyPair.
+     * @throws IOException if the file can't be read or written, or if it isn't a valid key file.
+     */
+    public static synchronized KeyPair loadKeyPair(Path keyFile) throws IOException {
+        if (Files.exists(keyFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(keyFile)))) {
+                byte[] publicKey = readKeyBytes(in);
+                byte[] privateKey = readKeyBytes(in);
+                KeyFactory keyFactory = KeyFactory.getInstance(DEFAULT_PAIR_KEY_ALGORITHM);
+                setKeyPair(new KeyPair(keyFactory.generatePublic(new X509EncodedKeySpec(publicKey)),
+                        keyFactory.generatePrivate(new PKCS8EncodedKeySpec(privateKey))));
+            } catch (GeneralSecurityException | EOFException e) {
+                throw new IOException("Not a valid key file: " + keyFile, e);
+            }
+            return keyPair;
+        }
+
+        KeyPair newKeyPair;
+        try {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance(DEFAULT_PAIR_KEY_ALGORITHM);
+            kpg.initialize(DEFAULT_PAIR_KEY_SIZE);
+            newKeyPair = kpg.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        //Written to a temporary file and moved, so a crash doesn't leave half a key file.
+        Path directory = keyFile.toAbsolutePath().getParent();
+        Path temporaryFile = Files.createTempFile(directory, keyFile.getFileName().toString(), ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temporaryFile, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                //Not a POSIX file system.
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                byte[] publicKey = newKeyPair.getPublic().getEncoded();
+                byte[] privateKey = newKeyPair.getPrivate().getEncoded();
+                out.writeInt(publicKey.length);
+                out.write(publicKey);
+                out.writeInt(privateKey.length);
+                out.write(privateKey);
+            }
+            Files.move(temporaryFile, keyFile, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+
+        setKeyPair(newKeyPair);
+        return keyPair;
+    }
+
+    private static byte[] readKeyBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_KEY_FILE_ENTRY_LENGTH) throw new EOFException();
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * The encoded public key is set before the keyPair, so whoever sees the keyPair sees its encoding.
+     * @param newKeyPair
+     */
+    private static void setKeyPair(KeyPair newKeyPair) {
+        encodedPublicKey = newKeyPair.getPublic().getEncoded();
+        keyPair = newKeyPair;
+    }
+
+    /**
+     * Creates the X25519 key pair if it doesn't exist. It isn't saved, so the clients shouldn't expect the same
+     * public key after a restart.
+     * @return keyAgreementKeyPair.
+     */
+    public static synchronized KeyPair initKeyAgreementKeyPair() {
+        if (keyAgreementKeyPair == null) {
+            try {
+                KeyPair newKeyPair = KeyPairGenerator.getInstance(KEY_AGREEMENT_ALGORITHM).generateKeyPair();
+                encodedKeyAgreementPublicKey = newKeyPair.getPublic().getEncoded();
+                keyAgreementKeyPair = newKeyPair;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
         }
+        return keyAgreementKeyPair;
+    }
 
-        return keyPair.getPublic();
+    /**
+     * Returns the X.509 encoding of the X25519 public key, the same array each time. It shouldn't be modified.
+     * @return
+     */
+    public static byte[] getEncodedKeyAgreementPublicKey() {
+        byte[] current = encodedKeyAgreementPublicKey;
+        if (current == null) {
+            initKeyAgreementKeyPair();
+            current = encodedKeyAgreementPublicKey;
+        }
+        return current;
+    }
+
+    /**
+     * Sets the public key sent at WELCOME. Has to be called before the server starts.
+     * @param newKeyExchange
+     */
+    public static void setKeyExchange(KeyExchange newKeyExchange) {
+        keyExchange = newKeyExchange;
+    }
+
+    public static KeyExchange getKeyExchange() {
+        return keyExchange;
+    }
+
+    /**
+     * Calculates the X25519 shared secret of the server's key pair and a client's public key.
+     * @param encodedPublicKey X.509 encoding of the client's public key.
+     * @return
+     * @throws ServerException if the client's key isn't a valid X25519 public key.
+     */
+    public static byte[] agreeWithKeyAgreementKey(byte[] encodedPublicKey) throws ServerException {
+        KeyPair current = keyAgreementKeyPair;
+        if (current == null) current = initKeyAgreementKeyPair();
+        try {
+            PublicKey publicKey = getKeyAgreementKeyFactory().generatePublic(new X509EncodedKeySpec(encodedPublicKey));
+            KeyAgreement agreement = getKeyAgreement();
+            agreement.init(current.getPrivate());
+            agreement.doPhase(publicKey, true);
+            return agreement.generateSecret();
+        } catch (GeneralSecurityException | IllegalStateException e) {
+            throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+        }
+    }
+
+    private static KeyAgreement getKeyAgreement() throws GeneralSecurityException {
+        KeyAgreement agreement = keyAgreement.get();
+        if (agreement == null) {
+            agreement = KeyAgreement.getInstance(KEY_AGREEMENT_ALGORITHM);
+            keyAgreement.set(agreement);
+        }
+        return agreement;
+    }
+
+    private static KeyFactory getKeyAgreementKeyFactory() throws GeneralSecurityException {
+        KeyFactory keyFactory = keyAgreementKeyFactory.get();
+        if (keyFactory == null) {
+            keyFactory = KeyFactory.getInstance(KEY_AGREEMENT_ALGORITHM);
+            keyAgreementKeyFactory.set(keyFactory);
+        }
+        return keyFactory;
+    }
+
+    /**
+     * Creates the crypto objects of the current thread (the cipher for decrypting with the private key, the key
+     * agreement, the MAC of the handshakes and the GCM ciphers), so the first message of a thread doesn't pay for it.
+     */
+    public static void prepareCurrentThread() {
+        try {
+            getCipherForDecryptWithPrivate();
+            getKeyAgreement();
+            getKeyAgreementKeyFactory();
+            getMacForHandshake();
+            getAeadEncryptor();
+            getAeadDecryptor();
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+        }
     }
 
 
@@ -86,17 +371,152 @@ public abstract class MessageUtilities {
     public static byte[] decryptWithPrivateKey(byte[] bytes) throws ServerException {
 
         try {
-            if (cipherForDecryptWithPrivate == null) {
-                cipherForDecryptWithPrivate = Cipher.getInstance(DEFAULT_PAIR_KEY_ALGORITHM);
-                cipherForDecryptWithPrivate.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
-            }
-            return cipherForDecryptWithPrivate.doFinal(bytes);
+            return getCipherForDecryptWithPrivate().doFinal(bytes);
+        } catch (Exception e) {
+            throw new ServerException(ServerException.Type.PRIVATE_KEY_PROBLEM);
+        }
+
+    }
+
+    /**
+     * Decrypts the remaining bytes of input into output with the private key.
+     * @param input
+     * @param output Needs at least input.remaining() bytes remaining.
+     * @throws ServerException
+     */
+    public static void decryptWithPrivateKey(ByteBuffer input, ByteBuffer output) throws ServerException {
+
+        try {
+            getCipherForDecryptWithPrivate().doFinal(input, output);
         } catch (Exception e) {
             throw new ServerException(ServerException.Type.PRIVATE_KEY_PROBLEM);
         }
 
     }
 
+    /**
+     * Gets the cipher of the current thread for decrypting with the private key. It's created the first time, and
+     * again if the keyPair has changed.
+     * @return
+     * @throws GeneralSecurityException
+     */
+    private static Cipher getCipherForDecryptWithPrivate() throws GeneralSecurityException {
+        KeyPair current = keyPair;
+        if (current == null) current = initKeyPair();
+        PrivateKeyCipher privateKeyCipher = cipherForDecryptWithPrivate.get();
+        if (privateKeyCipher == null || privateKeyCipher.keyPair != current) {
+            Cipher cipher = Cipher.getInstance(DEFAULT_PAIR_KEY_ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, current.getPrivate());
+            privateKeyCipher = new PrivateKeyCipher(current, cipher);
+            cipherForDecryptWithPrivate.set(privateKeyCipher);
+        }
+        return privateKeyCipher.cipher;
+    }
+
+    /**
+     * A cipher initialized with the private key of a keyPair.
+     */
+    private static final class PrivateKeyCipher {
+        final KeyPair keyPair;
+        final Cipher cipher;
+
+        PrivateKeyCipher(KeyPair keyPair, Cipher cipher) {
+            this.keyPair = keyPair;
+            this.cipher = cipher;
+        }
+    }
+
+    /**
+     * Calculates a HmacSHA256 with the MAC of the current thread.
+     * @param key
+     * @param datas
+     * @return
+     * @throws ServerException if the key isn't valid.
+     */
+    public static byte[] hmacSha256(byte[] key, byte[][] datas) throws ServerException {
+        try {
+            Mac mac = getMacForHandshake();
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            for (byte[] data : datas) {
+                mac.update(data);
+            }
+            return mac.doFinal();
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+        }
+    }
+
+    /**
+     * HKDF with HmacSHA256 (RFC 5869), with the MAC of the current thread.
+     * @param salt
+     * @param inputKeyMaterial
+     * @param info
+     * @param length Of the output, at most 255 * 32.
+     * @return
+     * @throws ServerException
+     */
+    public static byte[] hkdfSha256(byte[] salt, byte[] inputKeyMaterial, byte[] info, int length) throws ServerException {
+        byte[] pseudoRandomKey = hmacSha256(salt.length == 0 ? new byte[32] : salt, new byte[][]{inputKeyMaterial});
+        byte[] output = new byte[length];
+        try {
+            Mac mac = getMacForHandshake();
+            mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+            byte[] block = new byte[0];
+            for (int position = 0, counter = 1; position < length; counter++) {
+                mac.update(block);
+                mac.update(info);
+                mac.update((byte) counter);
+                block = mac.doFinal();
+                int n = Math.min(block.length, length - position);
+                System.arraycopy(block, 0, output, position, n);
+                position += n;
+            }
+        } catch (GeneralSecurityException e) {
+            throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+        } finally {
+            Arrays.fill(pseudoRandomKey, (byte) 0);
+        }
+        return output;
+    }
+
+    private static Mac getMacForHandshake() throws GeneralSecurityException {
+        Mac mac = macForHandshake.get();
+        if (mac == null) {
+            mac = Mac.getInstance("HmacSHA256");
+            macForHandshake.set(mac);
+        }
+        return mac;
+    }
+
+    /**
+     * Gets the AES/GCM encryptor of the current thread. It's initialized with the key and the nonce of each frame,
+     * so it's shared by all the sockets of a processor thread.
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public static Cipher getAeadEncryptor() throws GeneralSecurityException {
+        Cipher cipher = aeadEncryptor.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(AEAD_ALGORITHM);
+            aeadEncryptor.set(cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Gets the AES/GCM decryptor of the current thread. See {@code getAeadEncryptor()}
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public static Cipher getAeadDecryptor() throws GeneralSecurityException {
+        Cipher cipher = aeadDecryptor.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(AEAD_ALGORITHM);
+            aeadDecryptor.set(cipher);
+        }
+        return cipher;
+    }
+
     /**
      * Given a byte[], decrypts it with the private key. Just for testing.
      * @param bytes
@@ -105,37 +525,73 @@ public abstract class MessageUtilities {
      * @throws BadPaddingException
      */
     public static byte [] encryptWithPrivateKey(byte[] bytes) throws IllegalBlockSizeException, BadPaddingException {
-        if (cipherForDecryptWithPrivate == null) {
-            try {
-                cipherForEncryptWithPrivate = Cipher.getInstance(MessageUtilities.DEFAULT_PAIR_KEY_ALGORITHM);
-                cipherForEncryptWithPrivate.init(Cipher.ENCRYPT_MODE, keyPair.getPrivate());
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        Cipher cipherForEncryptWithPrivate = null;
+        try {
+            cipherForEncryptWithPrivate = Cipher.getInstance(MessageUtilities.DEFAULT_PAIR_KEY_ALGORITHM);
+            cipherForEncryptWithPrivate.init(Cipher.ENCRYPT_MODE, initKeyPair().getPrivate());
+        } catch (Exception e) {
+            e.printStackTrace();
         }
 
-        return cipherForDecryptWithPrivate.doFinal(bytes);
+        return cipherForEncryptWithPrivate.doFinal(bytes);
     }
 
     /**
-     * Creates the welcome message. Contains public socketId + publicKey.
+     * Creates the welcome message. Contains public socketId (8 bytes) + publicKey (RSA or X25519, see {@code setKeyExchange}).
+     * @param socketId
      * @return
      */
     public static Message createWelcome(long socketId){
-        return new Message(MessageType.WELCOME, SERVER_NAME, "client", nextMessageId++,
-                new byte[][] {longToByteArray(socketId),getPublicKey().getEncoded()});
+        return new Message(MessageType.WELCOME, SERVER_NAME, "client", newMessageId(),
+                new byte[][] {longToByteArray(socketId), getWelcomePublicKey()});
+    }
+
+    /**
+     * @return SERVER_RANDOM_LENGTH random bytes, for a new connection. With the socketId, the salt of the key
+     * derivation of SECRET_GCM (see {@code Handshake.prepare}), so a replayed SECRET_GCM doesn't give the same key.
+     */
+    public static byte[] newServerRandom() {
+        byte[] serverRandom = new byte[SERVER_RANDOM_LENGTH];
+        serverRandomGenerator.nextBytes(serverRandom);
+        return serverRandom;
+    }
+
+    /**
+     * @return The X.509 encoding of the public key sent at WELCOME. It shouldn't be modified.
+     */
+    public static byte[] getWelcomePublicKey() {
+        return keyExchange == KeyExchange.X25519 ? getEncodedKeyAgreementPublicKey() : getEncodedPublicKey();
     }
 
     public static Message createACK(String destination, long referredMessageId) {
-        return new Message(MessageType.ACK, SERVER_NAME, destination, nextMessageId++,
+        return new Message(MessageType.ACK, SERVER_NAME, destination, newMessageId(),
                 MessageUtilities.longToByteArray(referredMessageId) );
     }
 
     public static Message createNACK(String destination, long referredMessageId, String comments) {
-        return new Message(MessageType.NACK, SERVER_NAME, destination, nextMessageId++,
+        return new Message(MessageType.NACK, SERVER_NAME, destination, newMessageId(),
                 new byte[][]{MessageUtilities.longToByteArray(referredMessageId), comments.getBytes(StandardCharsets.UTF_8)});
     }
 
+    /**
+     * @param destination
+     * @return A BYE from the server, with an empty body: the server is stopping, the connection will be closed.
+     */
+    public static Message createBye(String destination) {
+        return new Message(MessageType.BYE, SERVER_NAME, destination, newMessageId(), new byte[0]);
+    }
+
+    /**
+     * @param destination
+     * @param userName The user that has logged in or out.
+     * @param joined
+     * @return A PRESENCE from the server: 1 (joined) or 0 (left) + user name.
+     */
+    public static Message createPresence(String destination, String userName, boolean joined) {
+        return new Message(MessageType.PRESENCE, SERVER_NAME, destination, newMessageId(),
+                new byte[][]{new byte[]{(byte) (joined ? 1 : 0)}, userName.getBytes(StandardCharsets.UTF_8)});
+    }
+
 
     private static short byteArrayToShort(byte[] b) {
         return  (short) (((b[0] & 0xFF) << 8 ) |
@@ -172,6 +628,47 @@ public abstract class MessageUtilities {
                 ((b[3] & 0xFF) << 0 );
     }
 
+    /**
+     * Reads an int (big endian) at a position of an array.
+     * @param b
+     * @param offset
+     * @return
+     */
+    public static int byteArrayToInt(final byte[] b, int offset){
+        return ((b[offset] & 0xFF) << 24) |
+                ((b[offset + 1] & 0xFF) << 16) |
+                ((b[offset + 2] & 0xFF) << 8 ) |
+                ((b[offset + 3] & 0xFF) << 0 );
+    }
+
+    /**
+     * Gets the length of a String encoded with UTF-8, without encoding it if it's ASCII.
+     * @param s
+     * @return
+     */
+    public static int utf8Length(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) return s.getBytes(StandardCharsets.UTF_8).length;
+        }
+        return s.length();
+    }
+
+    /**
+     * Puts a String encoded with UTF-8 into a buffer, without allocating an array if it's ASCII.
+     * @param s
+     * @param bb
+     */
+    public static void putUtf8(String s, ByteBuffer bb) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) { //the first i chars are ASCII, they have been put as one byte each.
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                bb.put(bytes, i, bytes.length - i);
+                return;
+            }
+            bb.put((byte) s.charAt(i));
+        }
+    }
+
     public static long byteArrayToLong(final byte[] b) {
         long result = 0;
         for (int i = 0; i < 8; i++) {
@@ -206,7 +703,7 @@ public abstract class MessageUtilities {
     }
 
     public static long newMessageId(){
-        return nextMessageId++;
+        return nextMessageId.getAndIncrement();
     }
 
 
@@ -5,65 +5,290 @@ import Non.blocking.server.Socket;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 
+/**
+ * An instance of {@code MessageWriter} is associated to a Socket. It keeps the messages to send and sends them.
+ * Each write sends as many enqueued messages as possible with one gathering write
+ * (up to {@code MAX_GATHER_BUFFERS} messages and {@code MAX_GATHER_BYTES} bytes).
+ * The queue is bounded (see {@code setLimits}), a client that doesn't read can't make the server run out of memory.
+ * Before the limits, the senders of the messages stop reading while the queue is over a watermark (see {@code setWatermarks}).
+ */
 public class MessageWriter {
 
+	/**Maximum number of messages sent with one write*/
+	public static final int MAX_GATHER_BUFFERS = 64;
 
-	private ByteBuffer messageByteBufferInProgress = null;
+	/**Once the messages for one write have this number of bytes, no more messages are added*/
+	public static final int MAX_GATHER_BYTES = 256 * 1024;
 
-	private Queue<ByteBuffer> messageBufferQueue = new LinkedList<ByteBuffer>();
+	/**Array for the gathering write, one for each processor thread. Its elements are set to null after each write.*/
+	private static final ThreadLocal<ByteBuffer[]> gatherBuffers = ThreadLocal.withInitial(() -> new ByteBuffer[MAX_GATHER_BUFFERS]);
+
+	/**Messages to send, in read mode. The first one could be partially sent.*/
+	private Queue<ByteBuffer> messageBufferQueue = new ArrayDeque<ByteBuffer>();
 
 	private Socket socket = null;
 
+	/**Maximum number of messages at the queue*/
+	private int maxQueuedMessages = Integer.MAX_VALUE;
+
+	/**Maximum number of bytes at the queue*/
+	private long maxQueuedBytes = Long.MAX_VALUE;
+
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+
+	/**Messages at the queue. Only written by the processor thread, read by others (see {@code hasRoom}).*/
+	private volatile int queuedMessages = 0;
+
+	/**Bytes not sent at the queue. Only written by the processor thread, read by others (see {@code hasRoom}).*/
+	private volatile long queuedBytes = 0;
+
+	/**Messages dropped or rejected because the queue was full*/
+	private long droppedMessages = 0;
+
+	/**Over these queued bytes, the senders of new messages stop reading*/
+	private long highWatermark = Long.MAX_VALUE;
+
+	/**Under these queued bytes, the paused senders read again*/
+	private long lowWatermark = Long.MAX_VALUE;
+
+	/**Since the queue went over highWatermark, until it goes under lowWatermark*/
+	private boolean congested = false;
+
+	/**Senders that don't read because of this queue*/
+	private List<Socket> pausedSenders = new ArrayList<Socket>();
+
 	public MessageWriter(Socket socket) {
 		this.socket = socket;
 	}
 
+	/**
+	 * Sets the limits of the queue. A message is always accepted if the queue is empty.
+	 * @param maxQueuedMessages
+	 * @param maxQueuedBytes
+	 * @param slowConsumerPolicy What to do with a new message if the queue is full.
+	 */
+	public void setLimits(int maxQueuedMessages, long maxQueuedBytes, SlowConsumerPolicy slowConsumerPolicy) {
+		this.maxQueuedMessages = maxQueuedMessages;
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+
+	/**
+	 * Sets the watermarks for the backpressure. When the queued bytes go over highWatermark, the senders of the next
+	 * forwarded messages stop reading (see {@code pauseSender}), until the queued bytes go under lowWatermark.
+	 * So a fast sender can't flood a slow recipient, and no message is dropped if highWatermark is well under the limits.
+	 * @param highWatermark
+	 * @param lowWatermark Lower than highWatermark.
+	 */
+	public void setWatermarks(long highWatermark, long lowWatermark) {
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+	}
+
+	/**
+	 * @return true if the queue is over the high watermark, and hasn't gone under the low one yet.
+	 */
+	public boolean isCongested() {
+		return congested;
+	}
+
+	/**
+	 * Stops reading from a sender while this queue is congested. The sender reads again when this queue is drained
+	 * under the low watermark, or released (see {@code clear()}).
+	 * Has to be called by the processor thread of this writer's socket.
+	 * @param sender A socket of any processor.
+	 */
+	public void pauseSender(Socket sender) {
+		if (!congested || sender.socketProcessor == null || pausedSenders.contains(sender)) return;
+		pausedSenders.add(sender);
+		sender.socketProcessor.execute(sender::recipientCongested);
+	}
+
+	/**
+	 * The paused senders read again.
+	 */
+	private void resumeSenders() {
+		congested = false;
+		if (pausedSenders.isEmpty()) return;
+		Socket[] senders = pausedSenders.toArray(new Socket[0]);
+		pausedSenders.clear();
+		for (Socket sender : senders) {
+			sender.socketProcessor.execute(sender::recipientDrained);
+		}
+	}
+
+	public SlowConsumerPolicy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
+
+	/**
+	 * Checks if a message fits in the queue. It can be called by any thread, then the answer could be outdated.
+	 * @param bytes Length of the message.
+	 * @return
+	 */
+	public boolean hasRoom(int bytes) {
+		int messages = queuedMessages;
+		return messages == 0 || (messages < maxQueuedMessages && queuedBytes + bytes <= maxQueuedBytes);
+	}
+
 	/**
 	 * Puts the messageByteBufer in read mode (does a flip!).
-	 * Enqueues a new message (@code ByteBuffer}. If there is not a {@code this.messageByteBufferInProgress}, will be it.
-	 * If there is a {@code this.messageByteBufferInProgress}, the message will be enqueued at {@code this.messageBufferQueue}.
+	 * Enqueues a new message (@code ByteBuffer} at {@code this.messageBufferQueue}.
 	 * @param messageByteBuffer A message.
 	 */
 	private void enqueue(ByteBuffer messageByteBuffer) {
 		messageByteBuffer.flip();
-		if (messageByteBufferInProgress == null) {
-			this.messageByteBufferInProgress = messageByteBuffer;
+		messageBufferQueue.add(messageByteBuffer);
+		queuedMessages++;
+		queuedBytes += messageByteBuffer.remaining();
+		if (queuedBytes > highWatermark) congested = true;
+	}
+
+	/**
+	 * Drops the oldest messages not being sent (the first one could be partially sent) until there is room for bytes.
+	 * @param bytes
+	 */
+	private void dropOldest(int bytes) {
+		Iterator<ByteBuffer> iterator = messageBufferQueue.iterator();
+		if (iterator.hasNext() && isPartiallySent(iterator.next())) {
+			//it stays, the next one is the oldest not being sent.
 		} else {
-			messageBufferQueue.add(messageByteBuffer); //will throw Exception if it's not possible to add a new element to the queue.
+			iterator = messageBufferQueue.iterator();
+		}
+		while (!hasRoom(bytes) && iterator.hasNext()) {
+			ByteBuffer dropped = iterator.next();
+			iterator.remove();
+			queuedMessages--;
+			queuedBytes -= dropped.remaining();
+			droppedMessages++;
+			socket.getFrameBufferPool().release(dropped);
+		}
+	}
+
+	private static boolean isPartiallySent(ByteBuffer bb) {
+		return bb.position() > 0;
+	}
+
+	/**
+	 * Releases all the messages of the queue, they won't be sent. The paused senders read again.
+	 */
+	public void clear() {
+		ByteBuffer bb;
+		while ((bb = messageBufferQueue.poll()) != null) {
+			socket.getFrameBufferPool().release(bb);
 		}
+		queuedMessages = 0;
+		queuedBytes = 0;
+		resumeSenders();
 	}
 
 
 	/**
-	 * Tries to send the {@code messageByteBufferInProgres}.
-	 * If it's fully sent, removes it put the next from {@code this.messageBufferQueue} or null if the queue is empty.
+	 * Tries to send the enqueued messages with one gathering write.
+	 * The fully sent messages are removed from {@code this.messageBufferQueue}, a partially sent message stays the first one.
+	 * When there is nothing more to send, the socket stops being selected for writing.
 	 * @throws IOException If some other I/O error occurs
 	 */
 	public void write () throws ServerException {
 
-		if (this.messageByteBufferInProgress != null) {
+		if (!messageBufferQueue.isEmpty()) {
+			ByteBuffer[] buffers = gatherBuffers.get();
+			int count = 0;
+			long bytes = 0;
+			for (ByteBuffer bb : messageBufferQueue) {
+				if (count == buffers.length || bytes >= MAX_GATHER_BYTES) break;
+				buffers[count++] = bb;
+				bytes += bb.remaining();
+			}
+
+			long written;
 			try {
-				socket.socketChannel.write(this.messageByteBufferInProgress);
+				written = socket.socketChannel.write(buffers, 0, count);
 			} catch (Exception e){
 				throw new ServerException(ServerException.Type.CONNECTION_PROBLEM);
+			} finally {
+				Arrays.fill(buffers, 0, count, null);
 			}
-			if (!this.messageByteBufferInProgress.hasRemaining()) {
-				this.messageByteBufferInProgress = messageBufferQueue.poll();
+
+			queuedBytes -= written;
+			while (!messageBufferQueue.isEmpty() && !messageBufferQueue.peek().hasRemaining()) {
+				socket.getFrameBufferPool().release(messageBufferQueue.poll()); //sent, back to the pool.
+				queuedMessages--;
 			}
-		} else {
-			this.messageByteBufferInProgress = messageBufferQueue.poll();
+		}
+
+		if (congested && queuedBytes < lowWatermark) {
+			resumeSenders();
+		}
+
+		if (isEmpty() && socket.socketProcessor != null) {
+			socket.socketProcessor.disableWriteInterest(socket);
 		}
 	}
 
 	/**
-	 * Tries to enqueue a message to send.
-	 * @param bb
+	 * Tries to enqueue a message to send. If the queue is full, applies the {@code SlowConsumerPolicy}.
+	 * Has to be called by the processor thread.
+	 * @param bb In write mode.
+	 * @return false if the message has been dropped (then it has been released).
 	 */
-	public void enqueueMessage(ByteBuffer bb) {
+	public boolean enqueueMessage(ByteBuffer bb) {
+		if (socket.socketChannel != null && !socket.socketChannel.isOpen()) {
+			socket.getFrameBufferPool().release(bb);
+			return false;
+		}
+
+		if (!hasRoom(bb.position())) {
+			if (slowConsumerPolicy == SlowConsumerPolicy.DROP_OLDEST) dropOldest(bb.position());
+			if (!hasRoom(bb.position())) {
+				socket.getFrameBufferPool().release(bb);
+				droppedMessages++;
+				if (slowConsumerPolicy == SlowConsumerPolicy.DISCONNECT) disconnectSlowConsumer();
+				return false;
+			}
+		}
+
+		boolean wasEmpty = isEmpty();
 		enqueue(bb);
+		if (wasEmpty && socket.socketProcessor != null) {
+			socket.socketProcessor.enableWriteInterest(socket); //now the socket has to be selected when it's ready for writing.
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the connection of a client that doesn't read its messages, and releases them.
+	 */
+	private void disconnectSlowConsumer() {
+		socket.close();
+	}
+
+	/**
+	 * @return Number of messages at the queue.
+	 */
+	public int getQueuedMessages() {
+		return queuedMessages;
+	}
+
+	/**
+	 * @return Number of bytes not sent at the queue.
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/**
+	 * @return Number of messages dropped or rejected because the queue was full.
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages;
 	}
 
 	/**
@@ -71,6 +296,6 @@ public class MessageWriter {
 	 * @return true if it's empty. Otherwise false.
 	 */
 	public boolean isEmpty() {
-		return this.messageBufferQueue.isEmpty() && this.messageByteBufferInProgress == null;
+		return this.messageBufferQueue.isEmpty();
 	}
 }
@@ -0,0 +1,197 @@
+package Non.blocking.server.messages;
+
+import Non.blocking.server.ServerException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Session tickets, so a client that reconnects can restore its session with a RESUME message instead of a new
+ * SECRET (see {@code Handshake.resume}): only symmetric crypto, no RSA.
+ * A ticket is the secret key and the frame mode of a session, encrypted with AES/GCM and a key that only the server
+ * knows (created at each start, so a restart invalidates the tickets):
+ * [nonce (12 bytes)][ciphertext of: ticketId (16 bytes), expiration (8 bytes), mode (1 byte), secret key][tag].
+ * Each ticket can be redeemed once and before it expires. The ids of the tickets not redeemed are kept, at most
+ * maxTickets: when there are more, the oldest ones can't be redeemed anymore.
+ * Shared by all the {@code SocketProcessor}'s of the server.
+ */
+public class SessionTickets {
+
+    private static final int TICKET_ID_LENGTH = 16;
+
+    /**ticketId + expiration + mode + secret key length*/
+    private static final int TICKET_FIELDS_LENGTH = TICKET_ID_LENGTH + 8 + 1 + 1;
+
+    /**Maximum length of a ticket: nonce + fields + the longest AES key + tag*/
+    public static final int MAX_TICKET_LENGTH = MessageUtilities.AEAD_NONCE_LENGTH + TICKET_FIELDS_LENGTH + 32 + MessageUtilities.AEAD_TAG_LENGTH;
+
+    private static final byte MODE_SECRET = 0;
+
+    private static final byte MODE_SECRET_GCM = 1;
+
+    /**Authenticated with each ticket, so a ticket can't be taken for another kind of GCM ciphertext*/
+    private static final byte[] TICKET_AAD = {MessageType.TICKET.byteValue};
+
+    private final SecretKey ticketKey;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**Lifetime of a ticket, in milliseconds*/
+    private final long lifetime;
+
+    /**Ids of the tickets not redeemed, with their expiration. In issuing order, so the oldest ones are the first.*/
+    private final LinkedHashMap<ByteBuffer, Long> issuedTickets;
+
+    /**
+     * A redeemed ticket.
+     */
+    public static class Ticket {
+
+        public final byte[] secretKey;
+
+        /**true if the session used AES/GCM (see {@code MessageType.SECRET_GCM})*/
+        public final boolean aead;
+
+        private Ticket(byte[] secretKey, boolean aead) {
+            this.secretKey = secretKey;
+            this.aead = aead;
+        }
+    }
+
+    /**
+     * Constructor. Creates the key of the tickets.
+     * @param lifetime Lifetime of a ticket, in milliseconds.
+     * @param maxTickets Maximum number of tickets that can be redeemed at once. At least 1.
+     */
+    public SessionTickets(long lifetime, int maxTickets) {
+        this.lifetime = lifetime;
+        int max = Math.max(1, maxTickets);
+        this.issuedTickets = new LinkedHashMap<ByteBuffer, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Long> eldest) {
+                return size() > max;
+            }
+        };
+
+        try {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance(MessageUtilities.DEFAULT_SECRET_KEY_ALGORITHM);
+            keyGenerator.init(256, random);
+            this.ticketKey = keyGenerator.generateKey();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Issues a ticket for the session of a socket.
+     * @param secretKey The secret key of the session.
+     * @param aead true if the session uses AES/GCM.
+     * @return the ticket, body of a TICKET message.
+     * @throws ServerException
+     */
+    public byte[] issue(byte[] secretKey, boolean aead) throws ServerException {
+        byte[] ticketId = new byte[TICKET_ID_LENGTH];
+        byte[] nonce = new byte[MessageUtilities.AEAD_NONCE_LENGTH];
+        random.nextBytes(ticketId);
+        random.nextBytes(nonce);
+        long expiration = System.currentTimeMillis() + lifetime;
+
+        ByteBuffer fields = ByteBuffer.allocate(TICKET_FIELDS_LENGTH + secretKey.length);
+        fields.put(ticketId).putLong(expiration).put(aead ? MODE_SECRET_GCM : MODE_SECRET).put((byte) secretKey.length).put(secretKey);
+
+        byte[] ticket = new byte[MessageUtilities.AEAD_NONCE_LENGTH + fields.capacity() + MessageUtilities.AEAD_TAG_LENGTH];
+        System.arraycopy(nonce, 0, ticket, 0, nonce.length);
+        try {
+            Cipher cipher = MessageUtilities.getAeadEncryptor();
+            cipher.init(Cipher.ENCRYPT_MODE, ticketKey, new GCMParameterSpec(MessageUtilities.AEAD_TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(TICKET_AAD);
+            cipher.doFinal(fields.array(), 0, fields.capacity(), ticket, nonce.length);
+        } catch (GeneralSecurityException e) {
+            throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+        } finally {
+            Arrays.fill(fields.array(), (byte) 0);
+        }
+
+        synchronized (issuedTickets) {
+            removeExpired(System.currentTimeMillis());
+            issuedTickets.put(ByteBuffer.wrap(ticketId), expiration);
+        }
+        return ticket;
+    }
+
+    /**
+     * Redeems a ticket. It can't be redeemed again.
+     * @param ticket
+     * @return the session of the ticket.
+     * @throws ServerException if the ticket isn't valid, has expired or has already been redeemed.
+     */
+    public Ticket redeem(byte[] ticket) throws ServerException {
+        if (ticket.length < MessageUtilities.AEAD_NONCE_LENGTH + TICKET_FIELDS_LENGTH + MessageUtilities.AEAD_TAG_LENGTH ||
+                ticket.length > MAX_TICKET_LENGTH)
+            throw new ServerException(ServerException.Type.TICKET_PROBLEM);
+
+        byte[] fields;
+        try {
+            Cipher cipher = MessageUtilities.getAeadDecryptor();
+            cipher.init(Cipher.DECRYPT_MODE, ticketKey, new GCMParameterSpec(MessageUtilities.AEAD_TAG_LENGTH * 8,
+                    ticket, 0, MessageUtilities.AEAD_NONCE_LENGTH));
+            cipher.updateAAD(TICKET_AAD);
+            fields = cipher.doFinal(ticket, MessageUtilities.AEAD_NONCE_LENGTH, ticket.length - MessageUtilities.AEAD_NONCE_LENGTH);
+        } catch (AEADBadTagException e) {
+            throw new ServerException(ServerException.Type.TICKET_PROBLEM);
+        } catch (GeneralSecurityException e) {
+            throw new ServerException(ServerException.Type.SECRET_KEY_PROBLEM);
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(fields);
+        ByteBuffer ticketId = ByteBuffer.wrap(Arrays.copyOf(fields, TICKET_ID_LENGTH));
+        bb.position(TICKET_ID_LENGTH);
+        long expiration = bb.getLong();
+        byte mode = bb.get();
+        int secretKeyLength = bb.get();
+        if (secretKeyLength != bb.remaining()) throw new ServerException(ServerException.Type.TICKET_PROBLEM);
+        byte[] secretKey = new byte[secretKeyLength];
+        bb.get(secretKey);
+        Arrays.fill(fields, (byte) 0);
+
+        long now = System.currentTimeMillis();
+        synchronized (issuedTickets) {
+            removeExpired(now);
+            if (issuedTickets.remove(ticketId) == null || expiration <= now)
+                throw new ServerException(ServerException.Type.TICKET_PROBLEM);
+        }
+        return new Ticket(secretKey, mode == MODE_SECRET_GCM);
+    }
+
+    /**
+     * Removes the expired tickets from the beginning. All the tickets have the same lifetime, so they expire in order.
+     * Has to be called holding the lock of issuedTickets.
+     * @param now
+     */
+    private void removeExpired(long now) {
+        Iterator<Long> expirations = issuedTickets.values().iterator();
+        while (expirations.hasNext() && expirations.next() <= now) {
+            expirations.remove();
+        }
+    }
+
+    /**
+     * @return Number of tickets that can be redeemed (some of them could have expired).
+     */
+    public int size() {
+        synchronized (issuedTickets) {
+            return issuedTickets.size();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package Non.blocking.server.messages;
+
+
+/**
+ * What a {@code MessageWriter} does with a new message when its queue is full (see {@code MessageWriter.setLimits}):
+ * the client isn't reading as fast as it receives messages.
+ */
+public enum SlowConsumerPolicy {
+	//The oldest messages not being sent are dropped, so the client receives the newest ones.
+	DROP_OLDEST,
+	//The new message is dropped. If it's forwarded from another user, the sender receives a NACK.
+	REJECT,
+	//The client is disconnected and its queue is released.
+	DISCONNECT
+
+}
@@ -0,0 +1,135 @@
+package Non.blocking.server;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatabaseTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return An empty store, used by Database. Few iterations, so the tests are fast.
+     */
+    private static MemoryUserStore newStore() {
+        MemoryUserStore store = new MemoryUserStore();
+        Database.setUserStore(store);
+        Database.setHashIterations(1000);
+        Database.forgetVerified();
+        return store;
+    }
+
+    @Test
+    @DisplayName("The password isn't kept, and only the right one logs in")
+    void newUserAndLogIn() throws ServerException {
+        MemoryUserStore store = newStore();
+        Database.newUser("User1", bytes("User1p"));
+
+        assertFalse(new String(store.getCredential("User1"), StandardCharsets.ISO_8859_1).contains("User1p"));
+        assertTrue(Database.canILogIn("User1", bytes("User1p")));
+        assertTrue(Database.canILogIn("User1", bytes("User1p"))); //remembered.
+        assertFalse(Database.canILogIn("User1", bytes("User1P")));
+        assertFalse(Database.canILogIn("User2", bytes("User1p")));
+
+        ServerException e = assertThrows(ServerException.class, () -> Database.newUser("User1", bytes("other")));
+        assertEquals(ServerException.Type.NEW_USER_PROBLEM, e.type);
+    }
+
+    @Test
+    @DisplayName("Two users with the same password have different credentials")
+    void salted() throws ServerException {
+        MemoryUserStore store = newStore();
+        Database.newUser("User1", bytes("same"));
+        Database.newUser("User2", bytes("same"));
+
+        assertFalse(Arrays.equals(store.getCredential("User1"), store.getCredential("User2")));
+    }
+
+    @Test
+    @DisplayName("A plain password is replaced by a hash at the first log in")
+    void upgradePlainPassword() {
+        MemoryUserStore store = newStore();
+        store.addUser("User1", bytes("User1p"));
+
+        assertFalse(Database.canILogIn("User1", bytes("wrong")));
+        assertArrayEquals(bytes("User1p"), store.getCredential("User1"));
+
+        assertTrue(Database.canILogIn("User1", bytes("User1p")));
+        assertFalse(Arrays.equals(bytes("User1p"), store.getCredential("User1")));
+        Database.forgetVerified();
+        assertTrue(Database.canILogIn("User1", bytes("User1p")));
+    }
+
+    @Test
+    @DisplayName("A remembered user isn't accepted with its old password after a change")
+    void changedCredential() {
+        MemoryUserStore store = newStore();
+        store.addUser("User1", Database.createCredential(bytes("old")));
+        assertTrue(Database.canILogIn("User1", bytes("old")));
+
+        store.setCredential("User1", Database.createCredential(bytes("new")));
+        assertFalse(Database.canILogIn("User1", bytes("old")));
+        assertTrue(Database.canILogIn("User1", bytes("new")));
+    }
+
+    @Test
+    @DisplayName("The hash of a UTF-8 password is PBKDF2WithHmacSHA256, so the credentials made before are valid")
+    void compatibleHash() throws GeneralSecurityException {
+        byte[] salt = new byte[16];
+        Arrays.fill(salt, (byte) 7);
+        for (String password : new String[] {"User1p", "contrasenya \u00e0\u00e8\u00f2 \u20ac", ""}) {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 1000, 256);
+            byte[] expected = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            assertArrayEquals(expected, Database.hash(bytes(password), salt, 1000));
+        }
+    }
+
+    @Test
+    @DisplayName("Passwords that aren't valid UTF-8 don't log in with each other")
+    void invalidUtf8() throws ServerException {
+        newStore();
+        Database.newUser("User1", new byte[] {'a', (byte) 0xFF});
+
+        assertTrue(Database.canILogIn("User1", new byte[] {'a', (byte) 0xFF}));
+        assertFalse(Database.canILogIn("User1", new byte[] {'a', (byte) 0xFE}));
+        assertFalse(Database.canILogIn("User1", bytes("a\uFFFD")));
+    }
+
+    @Test
+    @DisplayName("An unknown user costs a hash, as a wrong password")
+    void unknownUser() throws ServerException {
+        newStore();
+        Database.newUser("User1", bytes("User1p"));
+
+        long hashes = Database.getHashCount();
+        assertFalse(Database.canILogIn("User2", bytes("User1p")));
+        assertEquals(hashes + 1, Database.getHashCount());
+        assertFalse(Database.canILogIn("User1", bytes("wrong")));
+        assertEquals(hashes + 2, Database.getHashCount());
+    }
+
+    @Test
+    @DisplayName("A remembered user is only accepted without a hash, a wrong password costs a hash")
+    void rememberedUserWrongPassword() throws ServerException {
+        newStore();
+        Database.newUser("User1", bytes("User1p"));
+        assertTrue(Database.canILogIn("User1", bytes("User1p")));
+
+        long hashes = Database.getHashCount();
+        assertTrue(Database.canILogIn("User1", bytes("User1p")));
+        assertEquals(hashes, Database.getHashCount());
+        assertFalse(Database.canILogIn("User1", bytes("wrong")));
+        assertEquals(hashes + 1, Database.getHashCount());
+        assertTrue(Database.canILogIn("User1", bytes("User1p"))); //still remembered.
+        assertEquals(hashes + 1, Database.getHashCount());
+    }
+}
@@ -0,0 +1,126 @@
+package Non.blocking.server;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileUserStoreTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Path newLog() throws IOException {
+        Path path = Files.createTempFile("users", ".log");
+        Files.delete(path);
+        path.toFile().deleteOnExit();
+        return path;
+    }
+
+    @Test
+    @DisplayName("The users, their changes and removals survive a restart")
+    void reload() throws IOException {
+        Path path = newLog();
+        try (FileUserStore store = new FileUserStore(path)) {
+            assertTrue(store.addUser("User1", bytes("User1p")));
+            assertFalse(store.addUser("User1", bytes("other")));
+            assertTrue(store.addUser("User2", bytes("User2p")));
+            assertTrue(store.addUser("Usuari3", bytes("User3p")));
+            assertTrue(store.setCredential("User2", bytes("changed")));
+            assertTrue(store.removeUser("Usuari3"));
+            assertFalse(store.setCredential("Usuari3", bytes("User3p")));
+        }
+
+        try (FileUserStore store = new FileUserStore(path)) {
+            assertEquals(2, store.size());
+            assertArrayEquals(bytes("User1p"), store.getCredential("User1"));
+            assertArrayEquals(bytes("changed"), store.getCredential("User2"));
+            assertNull(store.getCredential("Usuari3"));
+        }
+    }
+
+    @Test
+    @DisplayName("A record cut by a crash stops the start, it's removed with the repair, and the next records are kept")
+    void tornRecord() throws IOException {
+        Path path = newLog();
+        try (FileUserStore store = new FileUserStore(path)) {
+            store.addUser("User1", bytes("User1p"));
+            store.addUser("User2", bytes("User2p"));
+        }
+        long length = Files.size(path);
+        Files.write(path, new byte[] {0, 0, 0, 20, 1, 2}, StandardOpenOption.APPEND);
+
+        assertThrows(IOException.class, () -> new FileUserStore(path));
+        assertEquals(length + 6, Files.size(path));
+
+        try (FileUserStore store = new FileUserStore(path, true)) {
+            assertEquals(2, store.size());
+            assertEquals(length, Files.size(path));
+            assertEquals(6, store.getTruncatedBytes());
+            store.addUser("User3", bytes("User3p"));
+        }
+
+        try (FileUserStore store = new FileUserStore(path)) {
+            assertEquals(0, store.getTruncatedBytes());
+            assertEquals(3, store.size());
+            assertArrayEquals(bytes("User3p"), store.getCredential("User3"));
+        }
+    }
+
+    @Test
+    @DisplayName("A corrupted record stops the start, and the repair reports it as truncated, with the records after it")
+    void corruptedRecord() throws IOException {
+        Path path = newLog();
+        try (FileUserStore store = new FileUserStore(path)) {
+            store.addUser("User1", bytes("User1p"));
+            store.addUser("User2", bytes("User2p"));
+        }
+        long length = Files.size(path);
+        byte[] log = Files.readAllBytes(path);
+        log[log.length / 2 + 6] ^= 1; //in the payload of the second record.
+        Files.write(path, log);
+
+        assertThrows(IOException.class, () -> new FileUserStore(path));
+        assertArrayEquals(log, Files.readAllBytes(path));
+
+        try (FileUserStore store = new FileUserStore(path, true)) {
+            assertEquals(1, store.size());
+            assertNull(store.getCredential("User2"));
+            assertEquals(length - store.getLogBytes(), store.getTruncatedBytes());
+            assertEquals(store.getLogBytes(), Files.size(path));
+        }
+    }
+
+    @Test
+    @DisplayName("Compaction only keeps the records of the current users")
+    void compact() throws IOException {
+        Path path = newLog();
+        try (FileUserStore store = new FileUserStore(path)) {
+            store.addUser("User1", bytes("User1p"));
+            for (int i = 0; i < 100; i++) {
+                store.setCredential("User1", bytes("password" + i));
+            }
+            store.addUser("User2", bytes("User2p"));
+            store.removeUser("User2");
+            long before = store.getLogBytes();
+
+            store.compact();
+            assertTrue(store.getLogBytes() < before / 50);
+            assertEquals(Files.size(path), store.getLogBytes());
+            store.addUser("User3", bytes("User3p"));
+        }
+
+        try (FileUserStore store = new FileUserStore(path)) {
+            assertEquals(2, store.size());
+            assertArrayEquals(bytes("password99"), store.getCredential("User1"));
+            assertArrayEquals(bytes("User3p"), store.getCredential("User3"));
+        }
+    }
+}
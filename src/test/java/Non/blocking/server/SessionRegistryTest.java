@@ -0,0 +1,42 @@
+package Non.blocking.server;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionRegistryTest {
+
+    @Test
+    @DisplayName("A user name has one session, and only its socket can remove it")
+    void registerAndUnregister() {
+        SessionRegistry registry = new SessionRegistry(16);
+        Socket first = new Socket(null);
+        Socket second = new Socket(null);
+
+        assertTrue(registry.register("User1", first));
+        assertFalse(registry.register("User1", second));
+        assertFalse(registry.unregister("User1", second));
+        assertSame(first, registry.lookup("User1"));
+
+        assertTrue(registry.unregister("User1", first));
+        assertNull(registry.lookup("User1"));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    @DisplayName("The owner of a session is the processor of its socket")
+    void owner() throws Exception {
+        SessionRegistry registry = new SessionRegistry(16);
+        SocketProcessor processor = new SocketProcessor(new ArrayBlockingQueue<Socket>(1), registry);
+        Socket socket = new Socket(null);
+        socket.socketProcessor = processor;
+        registry.register("User1", socket);
+
+        assertSame(processor, registry.getOwner("User1"));
+        assertNull(registry.getOwner("User2"));
+        assertTrue(registry.getUserNames().contains("User1"));
+    }
+}
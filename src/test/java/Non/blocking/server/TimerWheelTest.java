@@ -0,0 +1,73 @@
+package Non.blocking.server;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+
+    @Test
+    @DisplayName("A socket expires at the first tick after its deadline, not before")
+    void expire() {
+        TimerWheel wheel = new TimerWheel(8, 100, 1000);
+        Socket socket = new Socket(null);
+        wheel.schedule(socket, 1250);
+
+        assertTrue(wheel.expire(1250).isEmpty());
+        List<Socket> expired = wheel.expire(1300);
+
+        assertEquals(1, expired.size());
+        assertSame(socket, expired.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    @DisplayName("A deadline some rounds later stays at its slot until the right round")
+    void rounds() {
+        TimerWheel wheel = new TimerWheel(8, 100, 0);
+        Socket socket = new Socket(null);
+        wheel.schedule(socket, 2000); //two rounds and a half.
+
+        for (long now = 100; now < 2000; now += 100) {
+            assertTrue(wheel.expire(now).isEmpty(), "expired at " + now);
+        }
+        assertEquals(1, wheel.expire(2000).size());
+    }
+
+    @Test
+    @DisplayName("Cancelled and rescheduled sockets don't expire at their old deadline")
+    void cancelAndReschedule() {
+        TimerWheel wheel = new TimerWheel(8, 100, 0);
+        Socket first = new Socket(null);
+        Socket second = new Socket(null);
+        Socket third = new Socket(null);
+        wheel.schedule(first, 300);
+        wheel.schedule(second, 300);
+        wheel.schedule(third, 300);
+
+        wheel.cancel(second);
+        wheel.schedule(third, 700);
+        wheel.cancel(second); //not scheduled, nothing happens.
+
+        List<Socket> expired = wheel.expire(300);
+        assertEquals(1, expired.size());
+        assertSame(first, expired.get(0));
+        assertEquals(1, wheel.size());
+        assertEquals(1, wheel.expire(700).size());
+    }
+
+    @Test
+    @DisplayName("After a long pause, all the passed deadlines expire")
+    void longPause() {
+        TimerWheel wheel = new TimerWheel(8, 100, 0);
+        for (int i = 1; i <= 20; i++) {
+            wheel.schedule(new Socket(null), i * 100);
+        }
+
+        assertEquals(20, wheel.expire(10000).size());
+        assertEquals(0, wheel.getTimeout(10000));
+    }
+}
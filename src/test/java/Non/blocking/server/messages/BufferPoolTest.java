@@ -0,0 +1,54 @@
+package Non.blocking.server.messages;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+
+    @Test
+    @DisplayName("Leased buffers are direct, have the size class capacity and the requested limit")
+    void lease() {
+        BufferPool pool = new BufferPool(4096, 4);
+
+        ByteBuffer small = pool.lease(10);
+        ByteBuffer medium = pool.lease(600);
+
+        assertAll(() -> assertTrue(small.isDirect()),
+                () -> assertEquals(BufferPool.MIN_CAPACITY, small.capacity()),
+                () -> assertEquals(10, small.limit()),
+                () -> assertEquals(0, small.position()),
+                () -> assertEquals(1024, medium.capacity()),
+                () -> assertEquals(600, medium.limit()));
+    }
+
+    @Test
+    @DisplayName("Released buffers are leased again")
+    void releaseAndLease() {
+        BufferPool pool = new BufferPool(4096, 4);
+
+        ByteBuffer first = pool.lease(2000);
+        first.put((byte) 1);
+        pool.release(first);
+
+        ByteBuffer second = pool.lease(1500);
+
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(1500, second.limit());
+    }
+
+    @Test
+    @DisplayName("Heap buffers aren't pooled and too long lengths are rejected")
+    void foreignBuffersAndLimits() {
+        BufferPool pool = new BufferPool(4096, 4);
+
+        pool.release(ByteBuffer.allocate(BufferPool.MIN_CAPACITY));
+
+        assertTrue(pool.lease(10).isDirect());
+        assertThrows(IllegalArgumentException.class, () -> pool.lease(4097));
+    }
+}
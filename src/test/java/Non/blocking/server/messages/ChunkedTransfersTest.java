@@ -0,0 +1,150 @@
+package Non.blocking.server.messages;
+
+import Non.blocking.server.ServerException;
+import Non.blocking.server.Socket;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedTransfersTest {
+
+    private static Message chunk(long transferId, int index, boolean last, String destination) {
+        ByteBuffer body = ByteBuffer.allocate(ChunkedTransfers.CHUNK_HEADER_LENGTH + 3);
+        body.putLong(transferId).putInt(index).put(last ? ChunkedTransfers.LAST_CHUNK : 0).put(new byte[] {1, 2, 3});
+        return new Message(MessageType.CHUNK, "User1", destination, 100 + index, body.array());
+    }
+
+    @Test
+    @DisplayName("The chunks of a transfer are taken in order, and the last one ends it")
+    void reassembly() throws ServerException {
+        ChunkedTransfers transfers = new ChunkedTransfers(2);
+
+        Message first = chunk(7, 0, false, "User2");
+        assertEquals(7, ChunkedTransfers.getTransferId(first));
+        assertEquals(0, ChunkedTransfers.getIndex(first));
+        assertFalse(ChunkedTransfers.isLast(first));
+
+        assertTrue(transfers.next(first, 0));
+        assertTrue(transfers.next(chunk(8, 0, false, "User3"), 0));
+        assertTrue(transfers.next(chunk(7, 1, false, "User2"), 0));
+        assertTrue(transfers.next(chunk(8, 1, true, "User3"), 0));
+        assertEquals(1, transfers.size());
+        assertTrue(transfers.next(chunk(7, 2, true, "User2"), 0));
+        assertEquals(0, transfers.size());
+
+        assertTrue(transfers.next(chunk(9, 0, true, "User2"), 0)); //only one chunk.
+        assertEquals(0, transfers.size());
+        assertFalse(transfers.next(chunk(7, 3, true, "User2"), 0)); //already finished.
+    }
+
+    @Test
+    @DisplayName("A chunk out of order, to another destination or starting a started transfer is malformed")
+    void outOfOrder() throws ServerException {
+        ChunkedTransfers transfers = new ChunkedTransfers(2);
+        transfers.next(chunk(7, 0, false, "User2"), 0);
+
+        ServerException e = assertThrows(ServerException.class, () -> transfers.next(chunk(7, 2, false, "User2"), 0));
+        assertEquals(ServerException.Type.MALFORMED_MESSAGE, e.type);
+        e = assertThrows(ServerException.class, () -> transfers.next(chunk(7, 1, false, "User3"), 0));
+        assertEquals(ServerException.Type.MALFORMED_MESSAGE, e.type);
+        e = assertThrows(ServerException.class, () -> transfers.next(chunk(7, 0, false, "User2"), 0));
+        assertEquals(ServerException.Type.MALFORMED_MESSAGE, e.type);
+
+        Message tooShort = new Message(MessageType.CHUNK, "User1", "User2", 1, new byte[ChunkedTransfers.CHUNK_HEADER_LENGTH - 1]);
+        e = assertThrows(ServerException.class, () -> transfers.next(tooShort, 0));
+        assertEquals(ServerException.Type.MALFORMED_MESSAGE, e.type);
+
+        assertTrue(transfers.next(chunk(7, 1, false, "User2"), 0));
+    }
+
+    @Test
+    @DisplayName("A transfer can't start with maxTransfers started, and an aborted one is unknown")
+    void limit() throws ServerException {
+        ChunkedTransfers transfers = new ChunkedTransfers(2);
+        transfers.next(chunk(1, 0, false, "User2"), 0);
+        transfers.next(chunk(2, 0, false, "User2"), 0);
+
+        Message third = chunk(3, 0, false, "User2");
+        ServerException e = assertThrows(ServerException.class, () -> transfers.next(third, 0));
+        assertEquals(ServerException.Type.TOO_MANY_TRANSFERS, e.type);
+        assertEquals(third.messageId, e.messageId);
+
+        transfers.abort(1);
+        assertFalse(transfers.next(chunk(1, 1, false, "User2"), 0));
+        assertTrue(transfers.next(third, 0));
+        assertEquals(2, transfers.size());
+    }
+
+    @Test
+    @DisplayName("Only the transfers without chunks for the timeout are dropped")
+    void expire() throws ServerException {
+        ChunkedTransfers transfers = new ChunkedTransfers(2);
+        assertEquals(Long.MAX_VALUE, transfers.getOldestChunkTime());
+
+        transfers.next(chunk(1, 0, false, "User2"), 1000);
+        transfers.next(chunk(2, 0, false, "User2"), 1000);
+        transfers.next(chunk(2, 1, false, "User2"), 5000);
+        assertEquals(1000, transfers.getOldestChunkTime());
+
+        assertEquals(0, transfers.expire(10999, 10000));
+        assertEquals(1, transfers.expire(11000, 10000));
+        assertEquals(5000, transfers.getOldestChunkTime());
+
+        assertFalse(transfers.next(chunk(1, 1, false, "User2"), 11000));
+        assertTrue(transfers.next(chunk(2, 2, true, "User2"), 11000));
+        assertEquals(Long.MAX_VALUE, transfers.getOldestChunkTime());
+    }
+
+    @Test
+    @DisplayName("Each type has its own frame limit, a longer frame is rejected from its header")
+    void frameLimits() throws IOException, ServerException {
+        assertTrue(MessageType.CHUNK.getMaxBundleLength() > MessageType.TEXT.getMaxBundleLength());
+        assertTrue(MessageType.ALL_USERS.getMaxBundleLength() < MessageType.TEXT.getMaxBundleLength());
+        for (MessageType mt : MessageType.values()) {
+            assertTrue(mt.getMaxBundleLength() <= MessageType.MAX_BUNDLE_LENGTH);
+        }
+        assertTrue(MessageReader.HEADER_LENGTH + MessageType.MAX_BUNDLE_LENGTH <= MessageReader.READ_BUFFER_SIZE);
+
+        //Headers of partial frames: at the limit it waits for the rest, over it the frame is rejected.
+        assertNull(readHeader(MessageType.CHUNK, MessageType.CHUNK.getMaxBundleLength()));
+        assertNull(readHeader(MessageType.TEXT, MessageType.TEXT.getMaxBundleLength()));
+        assertEquals(ServerException.Type.MESSAGE_TOO_LONG, readHeader(MessageType.TEXT, MessageType.TEXT.getMaxBundleLength() + 1));
+        assertEquals(ServerException.Type.MESSAGE_TOO_LONG, readHeader(MessageType.ALL_USERS, MessageType.TEXT.getMaxBundleLength()));
+        assertEquals(ServerException.Type.MESSAGE_TOO_LONG, readHeader(MessageType.TEXT, 0));
+    }
+
+    /**
+     * Sends a frame header through a local connection and reads it with a {@code MessageReader}.
+     * @param messageType
+     * @param length
+     * @return The type of the error, null if there isn't.
+     */
+    private static ServerException.Type readHeader(MessageType messageType, int length) throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             SocketChannel client = SocketChannel.open(server.getLocalAddress());
+             SocketChannel accepted = server.accept()) {
+
+            ByteBuffer header = ByteBuffer.allocate(MessageReader.HEADER_LENGTH);
+            header.put(messageType.byteValue).putInt(length).flip();
+            client.write(header);
+
+            Socket socket = new Socket(accepted);
+            try {
+                socket.messageReader.readMessage();
+                return null;
+            } catch (ServerException e) {
+                return e.type;
+            } finally {
+                socket.messageReader.release();
+            }
+        }
+    }
+}
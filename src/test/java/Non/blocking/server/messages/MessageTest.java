@@ -6,9 +6,12 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
 import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
@@ -59,16 +62,17 @@ class MessageTest {
         try {
 
             //without mac check
-            Message m2 = new Message(MessageType.getTypeByByte(messageInBytes[0])
+            Message m2 = Message.rebuildMessage(MessageType.getTypeByByte(messageInBytes[0])
                     , bundle);
 
             //with mac check
-            Message m3 = new Message(MessageType.getTypeByByte(messageInBytes[0]), bundle, socket);
+            Message m3 = Message.rebuildAndCheckMessage(MessageType.getTypeByByte(messageInBytes[0]), bundle, socket);
 
-            assertAll (() -> assertEquals(m1.messageId, m2.messageId, m3.messageId),
-                    () -> assertEquals(m1.origin, m2.origin),
-                    () -> assertEquals(m1.destination, m2.destination),
-                    () -> assertEquals(Arrays.compare(m1.body, m2.body), 0),
+            assertAll (() -> assertEquals(m1.messageId, m2.messageId),
+                    () -> assertEquals(m1.messageId, m3.messageId),
+                    () -> assertEquals(m1.getOrigin(), m2.getOrigin()),
+                    () -> assertEquals(m1.getDestination(), m2.getDestination()),
+                    () -> assertEquals(Arrays.compare(m1.getBody(), m2.getBody()), 0),
                     () -> assertEquals(Arrays.compare(m1.getMessageInBytes(socket2), m2.getMessageInBytes(socket2)),0));
 
         } catch (Exception e) {
@@ -90,12 +94,17 @@ class MessageTest {
 
         byte[] messageInBytes = messageInByteBuffer.array();
 
-        Message wm2 = new Message( MessageType.getTypeByByte(messageInBytes[0]), Arrays.copyOfRange(messageInBytes, 5, messageInBytes.length));
+        Message wm2 = null;
+        try {
+            wm2 = Message.rebuildMessage( MessageType.getTypeByByte(messageInBytes[0]), Arrays.copyOfRange(messageInBytes, 5, messageInBytes.length));
+        } catch (ServerException e) {
+            e.printStackTrace();
+        }
 
-        long socketId =  MessageUtilities.byteArrayToLong(Arrays.copyOfRange(wm2.body, 0, 8));
+        long socketId =  MessageUtilities.byteArrayToLong(Arrays.copyOfRange(wm2.getBody(), 0, 8));
 
         try {
-            PublicKey pk = KeyFactory.getInstance(MessageUtilities.DEFAULT_PAIR_KEY_ALGORITHM).generatePublic(new X509EncodedKeySpec(Arrays.copyOfRange(wm2.body, 8, wm2.body.length)));
+            PublicKey pk = KeyFactory.getInstance(MessageUtilities.DEFAULT_PAIR_KEY_ALGORITHM).generatePublic(new X509EncodedKeySpec(Arrays.copyOfRange(wm2.getBody(), 8, wm2.getBody().length)));
 
             assertEquals(pk, MessageUtilities.getPublicKey());
 
@@ -110,8 +119,154 @@ class MessageTest {
     }
 
 
+    @Test
+    @DisplayName("A GCM frame sealed by the server is opened by the client, with the nonce of its sequence")
+    void sealGcmFrame() throws Exception {
+        Socket socket = giveMeAGcmSocket();
+        Message m1 = new Message(MessageType.TEXT, "Origin", "destination", 3433, "Sample body".getBytes(StandardCharsets.UTF_8));
+
+        for (long expectedSequence = 0; expectedSequence < 2; expectedSequence++) {
+            ByteBuffer frame = ByteBuffer.wrap(m1.getMessageInBytes(socket));
+            assertEquals(MessageType.TEXT.byteValue, frame.get());
+            int length = frame.getInt();
+            assertEquals(length, frame.remaining());
+            long sequence = frame.getLong();
+            assertEquals(expectedSequence, sequence);
+
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(socket.getSecretKeyInBytes(), "AES"),
+                    new GCMParameterSpec(128, gcmNonce(MessageUtilities.AEAD_SERVER_TO_CLIENT, sequence)));
+            cipher.updateAAD(new byte[]{MessageType.TEXT.byteValue});
+            byte[] fields = cipher.doFinal(frame.array(), frame.position(), frame.remaining());
+
+            Message m2 = Message.rebuildMessage(MessageType.TEXT, fields);
+            assertEquals(m1.messageId, m2.messageId);
+            assertEquals(m1.getOrigin(), m2.getOrigin());
+            assertEquals(m1.getDestination(), m2.getDestination());
+            assertArrayEquals(m1.getBody(), m2.getBody());
+        }
+    }
+
+    @Test
+    @DisplayName("A GCM frame from the client is opened by the server, and a replayed or old sequence is rejected")
+    void openGcmFrame() throws Exception {
+        Socket socket = giveMeAGcmSocket();
+        byte[] fields = plainFields(10, "Origin", "destination", "Sample body");
+
+        Message m = openGcm(socket, MessageType.TEXT, sealGcm(socket, MessageType.TEXT, 10, fields));
+        assertEquals(10, m.messageId);
+        assertEquals("Origin", m.getOrigin());
+        assertEquals("destination", m.getDestination());
+        assertArrayEquals("Sample body".getBytes(StandardCharsets.UTF_8), m.getBody());
+
+        ServerException replayed = assertThrows(ServerException.class,
+                () -> openGcm(socket, MessageType.TEXT, sealGcm(socket, MessageType.TEXT, 10, fields)));
+        assertEquals(ServerException.Type.REPLAYED_MESSAGE, replayed.type);
+        ServerException old = assertThrows(ServerException.class,
+                () -> openGcm(socket, MessageType.TEXT, sealGcm(socket, MessageType.TEXT, 9, plainFields(9, "Origin", "destination", "x"))));
+        assertEquals(ServerException.Type.REPLAYED_MESSAGE, old.type);
+
+        assertEquals(11, openGcm(socket, MessageType.TEXT, sealGcm(socket, MessageType.TEXT, 11, plainFields(11, "Origin", "destination", "x"))).messageId);
+    }
+
+    @Test
+    @DisplayName("A GCM frame with a tampered tag, ciphertext, sequence or message type is rejected")
+    void tamperedGcmFrame() throws Exception {
+        Socket socket = giveMeAGcmSocket();
+        byte[] frame = sealGcm(socket, MessageType.TEXT, 20, plainFields(20, "Origin", "destination", "Sample body"));
+
+        byte[] tamperedTag = frame.clone();
+        tamperedTag[tamperedTag.length - 1] ^= 1;
+        byte[] tamperedCiphertext = frame.clone();
+        tamperedCiphertext[MessageUtilities.AEAD_SEQUENCE_LENGTH] ^= 1;
+        byte[] wrongSequence = frame.clone();
+        ByteBuffer.wrap(wrongSequence).putLong(21); //the nonce of another sequence.
+
+        for (byte[] tampered : new byte[][]{tamperedTag, tamperedCiphertext, wrongSequence}) {
+            ServerException e = assertThrows(ServerException.class, () -> openGcm(socket, MessageType.TEXT, tampered));
+            assertEquals(ServerException.Type.MAC_NOT_EQUAL, e.type);
+        }
+        ServerException wrongType = assertThrows(ServerException.class, () -> openGcm(socket, MessageType.ENCRYPTED_TEXT, frame));
+        assertEquals(ServerException.Type.MAC_NOT_EQUAL, wrongType.type);
+
+        assertEquals(20, openGcm(socket, MessageType.TEXT, frame).messageId); //the rejected ones haven't moved the sequence.
+    }
+
+    @Test
+    @DisplayName("Only the CHECK_WELCOME of SECRET_GCM brings the server random, without encryption, and the key depends on it")
+    void secretGcmCheckWelcome() throws Exception {
+        byte[] clientKey = new byte[32];
+        Arrays.fill(clientKey, (byte) 5);
+        byte[] body = ByteBuffer.allocate(4 + clientKey.length).putInt(77).put(clientKey).array();
+        byte[] serverRandom = MessageUtilities.newServerRandom();
+
+        Handshake secret = Handshake.prepare(new Message(MessageType.SECRET, "client", "server", 1, body), 654654, serverRandom);
+        assertNull(secret.serverRandom);
+        assertArrayEquals(clientKey, secret.secretKey);
+
+        Handshake gcm = Handshake.prepare(new Message(MessageType.SECRET_GCM, "client", "server", 1, body), 654654, serverRandom);
+        byte[] salt = ByteBuffer.allocate(8 + MessageUtilities.SERVER_RANDOM_LENGTH).putLong(654654).put(serverRandom).array();
+        assertArrayEquals(MessageUtilities.hkdfSha256(salt, clientKey, MessageUtilities.SECRET_GCM_INFO, clientKey.length), gcm.secretKey);
+        assertArrayEquals(serverRandom, Arrays.copyOf(gcm.checkWelcomeBody, MessageUtilities.SERVER_RANDOM_LENGTH));
+        Handshake replayed = Handshake.prepare(new Message(MessageType.SECRET_GCM, "client", "server", 1, body), 654654, MessageUtilities.newServerRandom());
+        assertFalse(Arrays.equals(gcm.secretKey, replayed.secretKey));
+
+        Message checkWelcome = new Message(MessageType.CHECK_WELCOME, MessageUtilities.SERVER_NAME, "client", 2, gcm.checkWelcomeBody);
+        ByteBuffer frame = new FrameEncoder().encodePlain(checkWelcome, new Socket(null));
+        frame.flip();
+        assertEquals(MessageType.CHECK_WELCOME.byteValue, frame.get());
+        byte[] bundle = new byte[frame.getInt()];
+        frame.get(bundle);
+        assertFalse(frame.hasRemaining());
+        assertArrayEquals(gcm.checkWelcomeBody, Message.rebuildMessage(MessageType.CHECK_WELCOME, bundle).getBody());
+    }
+
+    /**
+     * The plaintext fields of a frame, as a client makes them: messageId, origin, destination and body, with their lengths.
+     */
+    private static byte[] plainFields(long messageId, String origin, String destination, String body) {
+        byte[] o = origin.getBytes(StandardCharsets.UTF_8);
+        byte[] d = destination.getBytes(StandardCharsets.UTF_8);
+        byte[] b = body.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(8 + 4 + o.length + 4 + d.length + 4 + b.length)
+                .putLong(messageId).putInt(o.length).put(o).putInt(d.length).put(d).putInt(b.length).put(b).array();
+    }
+
+    private static byte[] gcmNonce(int direction, long sequence) {
+        return ByteBuffer.allocate(MessageUtilities.AEAD_NONCE_LENGTH).putInt(direction).putLong(sequence).array();
+    }
+
+    /**
+     * Seals a frame as a client does: sequence + AES/GCM of the fields, with the message type as additional data.
+     */
+    private static byte[] sealGcm(Socket socket, MessageType messageType, long sequence, byte[] fields) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(socket.getSecretKeyInBytes(), "AES"),
+                new GCMParameterSpec(128, gcmNonce(MessageUtilities.AEAD_CLIENT_TO_SERVER, sequence)));
+        cipher.updateAAD(new byte[]{messageType.byteValue});
+        byte[] ciphertext = cipher.doFinal(fields);
+        return ByteBuffer.allocate(8 + ciphertext.length).putLong(sequence).put(ciphertext).array();
+    }
+
+    private static Message openGcm(Socket socket, MessageType messageType, byte[] frame) throws ServerException {
+        ByteBuffer fields = ByteBuffer.allocate(frame.length);
+        socket.decryptAead(messageType, ByteBuffer.wrap(frame), fields);
+        fields.flip();
+        byte[] bundle = new byte[fields.remaining()];
+        fields.get(bundle);
+        return Message.rebuildMessage(messageType, bundle);
+    }
+
+    Socket giveMeAGcmSocket() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+        Socket socket = new Socket(null);
+        KeyGenerator kg = KeyGenerator.getInstance("AES");
+        kg.init(256, new SecureRandom());
+        socket.setSecretKeyCiphers(kg.generateKey().getEncoded(), true);
+        return socket;
+    }
+
     Socket giveMeASocket() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
-        Socket socket = new Socket();
+        Socket socket = new Socket(null);
         KeyGenerator kg = KeyGenerator.getInstance("AES");
         SecureRandom secureRandom = new SecureRandom();
         int keyBitSize = 256;